@@ -1,10 +1,20 @@
 package com.criteo.gssclient;
 
 import org.ietf.jgss.*;
-import java.net.Socket;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.security.auth.Subject;
 import com.criteo.gssutils.*;
 
 /**
@@ -16,33 +26,96 @@ import com.criteo.gssutils.*;
  * <p>
  * The protocol is: 1. Context establishment loop: a. client sends init sec context token to server
  * b. server sends accept sec context token to client .... 2. client sends a wrapped token to the
- * server. 3. server sends a wrapped token back to the client for the application
+ * server. 3. server sends a wrapped token back to the client for the application. 4. steps 2 and
+ * 3 are repeated for each message on the same context, then the client sends a close frame.
  * <p>
  * Start GSS Server first before starting GSS Client.
  * <p>
- * Usage: java <options> GssClient <service> <serverName> for example <service>=host and
- * <serverName>=
+ * With gss.client.streams greater than 0, the client opens one multiplexed connection (Preface,
+ * MuxConnection, served by the nio modes of GssServer) and runs that many contexts on it
+ * concurrently, each one in its own stream sending the messages.
+ * <p>
+ * With gss.client.pipeline greater than 0, the client asks for pipelining (Preface.PIPELINE) and
+ * keeps up to that many messages in flight on each context (PipelinedChannel) instead of waiting
+ * for each reply before sending the next message.
+ * <p>
+ * With gss.client.batchBytes greater than 0, the client asks for batching (Preface.BATCH) and
+ * coalesces messages into one wrap token of up to that many bytes (BatchingChannel), sent at the
+ * latest after gss.client.batchDelayMillis.
+ * <p>
+ * With gss.client.compress=true, the client asks for compression (Preface.COMPRESS): payloads are
+ * deflated before wrap and inflated after unwrap (CompressedChannel).
+ * <p>
+ * With gss.client.integrityOnly=true, messages are only protected for integrity: sent in the clear
+ * next to their MIC when the server accepts Preface.INTEGRITY, wrapped without privacy otherwise.
+ * <p>
+ * With gss.client.earlyData=true, the client does not ask for mutual authentication: the context
+ * is established by the AP-REQ, and the preface, the AP-REQ and the first wrapped message are sent
+ * in one write (Preface.EARLY_DATA), saving the round trips of the preface and of the AP-REP. The
+ * server is still authenticated by its first reply, which only the holder of the session key can
+ * wrap. Not used with gss.client.streams.
+ * <p>
+ * With gss.client.datagrams=true, the client asks for datagrams (Preface.DATAGRAM) and sends the
+ * messages as fire-and-forget UDP datagrams over the established context (DatagramSender), then
+ * one request on the connection before closing it. Not used with gss.client.streams.
+ * <p>
+ * With gss.client.unixSocket set to a path, the client connects to the Unix domain socket of a
+ * server on the same host (Java 16+, UnixSockets) instead of TCP; serverName still names the
+ * service principal.
+ * <p>
+ * With gss.client.resumptionFile set to a path, the client asks for resumption (Preface.RESUME)
+ * and saves the ticket of the server to this file (owner only). The next runs present the ticket
+ * instead of an AP-REQ while it is valid (ResumptionTicket), and fall back to Kerberos on a new
+ * connection if the server refuses it. Not used with gss.client.streams.
+ * <p>
+ * With gss.client.pool=true, the client keeps established channels ready in a ChannelPool
+ * (prefilled with gss.pool.minIdle channels) and sends each message on a channel taken from the
+ * pool and given back after the reply, as an application serving requests would: one round trip
+ * per message once the pool is warm. Not used with gss.client.streams, pipeline, batchBytes,
+ * datagrams or resumptionFile.
+ * <p>
+ * With gss.client.fast=true, the client asks for the fast channel (Preface.FAST): once the context
+ * is established, messages are protected with AES-GCM under keys derived from its session key
+ * (SessionKeyContext) instead of the Kerberos wrap, for bulk messages. Not used with
+ * gss.client.streams.
+ * <p>
+ * Usage: java <options> GssClient <service> <serverName> [messages] for example <service>=host
+ * and <serverName>=, messages is the number of messages sent over the context (default 1)
  */
 
 public class GssClient {
 
   private static final int PORT = 4567;
+  private static final int STREAMS = Integer.getInteger("gss.client.streams", 0);
+  private static final int PIPELINE = Integer.getInteger("gss.client.pipeline", 0);
+  private static final int BATCH_BYTES = Integer.getInteger("gss.client.batchBytes", 0);
+  private static final int BATCH_DELAY_MILLIS =
+      Integer.getInteger("gss.client.batchDelayMillis", 5);
+  private static final boolean COMPRESS = Boolean.getBoolean("gss.client.compress");
+  private static final boolean INTEGRITY_ONLY = Boolean.getBoolean("gss.client.integrityOnly");
+  private static final boolean EARLY_DATA = Boolean.getBoolean("gss.client.earlyData");
+  private static final boolean DATAGRAMS = Boolean.getBoolean("gss.client.datagrams");
+  private static final String UNIX_SOCKET = System.getProperty("gss.client.unixSocket");
+  private static final String RESUMPTION_FILE = System.getProperty("gss.client.resumptionFile");
+  private static final boolean POOL = Boolean.getBoolean("gss.client.pool");
+  private static final boolean FAST = Boolean.getBoolean("gss.client.fast");
   private static final boolean verbose = false;
 
   public static void usage() {
-    System.err.println("Usage: java <options> GssClient <service> <serverName>");
+    System.err.println("Usage: java <options> GssClient <service> <serverName> [messages]");
     System.exit(1);
   }
 
   public static void main(String[] args) throws Exception {
     // Obtain the command-line arguments and parse the server's principal
-    if (args.length != 2) {
+    if (args.length != 2 && args.length != 3) {
       usage();
     }
     String service = args[0];
     String serverName = args[1];
+    int messages = args.length == 3 ? Integer.parseInt(args[2]) : 1;
     String serverPrinc = String.format("%s@%s", service, serverName);
-    GssClientAction action = new GssClientAction(serverPrinc, serverName, PORT);
+    GssClientAction action = new GssClientAction(serverPrinc, serverName, PORT, messages);
     Jaas.loginAndAction("client", action);
   }
 
@@ -51,20 +124,287 @@ public class GssClient {
     private String serverPrinc;
     private String hostName;
     private int port;
+    private int messages;
 
-    GssClientAction(String serverPrinc, String hostName, int port) {
+    GssClientAction(String serverPrinc, String hostName, int port, int messages) {
       this.serverPrinc = serverPrinc;
       this.hostName = hostName;
       this.port = port;
+      this.messages = messages;
     }
 
     public Object run() throws Exception {
-      Socket socket = new Socket(hostName, port);
-      DataInputStream inStream = new DataInputStream(socket.getInputStream());
-      DataOutputStream outStream = new DataOutputStream(socket.getOutputStream());
+      if (POOL) {
+        runPooled();
+        return null;
+      }
+
+      SocketChannel socket = connect();
+
+      if (STREAMS > 0) {
+        runStreams(socket);
+        return null;
+      }
+
+      // Do the context eastablishment loop, with early data the
+      // first message goes with the initial token. A valid ticket
+      // replaces the Kerberos context.
+      ResumptionTicket ticket = RESUMPTION_FILE == null ? null
+          : ResumptionTicket.load(Paths.get(RESUMPTION_FILE));
+      GssChannel gssChannel;
+      if (ticket != null && !ticket.isExpired()) {
+        try {
+          gssChannel = establish(socket, ticket.newContext());
+          System.out.println("Resumed session, ticket expires " + new Date(ticket.expiresMillis()));
+        } catch (IOException e) {
+          // Server restarted or its key was replaced
+          System.out.println("Resumption refused: " + e);
+          socket.close();
+          gssChannel = establish(connect(), createContext());
+        }
+      } else {
+        gssChannel = establish(socket, createContext());
+      }
+      int features = gssChannel.features();
+      MessageChannel channel = layer(gssChannel, features);
+
+      GSSContext context = channel.getContext();
+      System.out.println("Context Established! ");
+      System.out.println("Client principal is " + context.getSrcName());
+      System.out.println("Server principal is " + context.getTargName());
+
+      // If mutual authentication did not take place, then only the
+      // client was authenticated to the server. Otherwise, both
+      // client and server were authenticated to each other.
+      if (context.getMutualAuthState()) {
+        System.out.println("Mutual authentication took place!");
+      }
+
+      if ((features & Preface.DATAGRAM) != 0) {
+        sendDatagrams(gssChannel);
+        // One request on the connection then, the session lasts as long as it
+        messages = 1;
+      }
+
+      if ((features & Preface.PIPELINE) != 0) {
+        PipelinedChannel pipeline = new PipelinedChannel(channel, PIPELINE);
+        try {
+          System.out.println("Received " + sendPipelined(pipeline) + " replies");
+        } finally {
+          pipeline.close();
+        }
+        saveTicket(gssChannel);
+        return null;
+      }
+
+      // Reuse the established context for all the messages: the
+      // channel wraps them with confidentiality (encryption of the
+      // message), integrity protection is always applied.
+      for (int i = 0; i < messages; i++) {
+        byte[] messageBytes = "Hello There!".getBytes("UTF-8");
+
+        System.out.println("Sending message: " + new String(messageBytes, "UTF-8"));
+
+        // Now we will allow the server to decrypt the message,
+        // append a time/date on it, and send then it back.
+        channel.send(messageBytes, !INTEGRITY_ONLY);
+        byte[] replyBytes = channel.receive();
+        if (replyBytes == null) {
+          System.out.println("Connection closed by server");
+          break;
+        }
+
+        System.out.println("Received message: " + new String(replyBytes, "UTF-8"));
+      }
+
+      System.out.println("Done.");
+      // Send a close frame, dispose the context and close the socket
+      channel.close();
+      saveTicket(gssChannel);
+
+      return null;
+    }
+
+    private SocketChannel connect() throws IOException {
+      SocketChannel socket = UNIX_SOCKET != null ? UnixSockets.connect(UNIX_SOCKET)
+          : SocketChannel.open(new InetSocketAddress(hostName, port));
+      System.out.println("Connected to address " + socket.getRemoteAddress());
+      return socket;
+    }
 
-      System.out.println("Connected to address " + socket.getInetAddress());
+    /**
+     * Run the context establishment loop of context on socket.
+     */
+    private GssChannel establish(SocketChannel socket, GSSContext context)
+        throws IOException, GSSException {
+      if (EARLY_DATA) {
+        return GssChannel.initiateEarly(socket, context, features());
+      }
+      int accepted = features() == 0 ? 0 : Preface.negotiate(socket, features());
+      return GssChannel.initiate(socket, context, accepted);
+    }
+
+    /**
+     * Save the resumption ticket received on channel, if any, for the next run.
+     */
+    private void saveTicket(GssChannel channel) throws IOException {
+      ResumptionTicket ticket = channel.resumptionTicket();
+      if (ticket != null) {
+        ticket.save(Paths.get(RESUMPTION_FILE));
+        System.out.println("Saved resumption ticket to " + RESUMPTION_FILE);
+      }
+    }
 
+    /**
+     * Send each message on a channel of a ChannelPool, given back after its reply.
+     */
+    private void runPooled() throws Exception {
+      ChannelPool.Endpoint endpoint = new ChannelPool.Endpoint(serverPrinc, hostName, port);
+      // The endpoint is the only one of this client
+      try (ChannelPool pool = new ChannelPool(target -> establish(connect(), createContext()))) {
+        long start = System.nanoTime();
+        pool.prefill(endpoint);
+        System.out.println(String.format("Pool of %s filled in %d ms", endpoint,
+            (System.nanoTime() - start) / 1000000));
+
+        byte[] messageBytes = "Hello There!".getBytes("UTF-8");
+        long[] latencies = new long[messages];
+        int replies = 0;
+        for (int i = 0; i < messages; i++) {
+          long sent = System.nanoTime();
+          GssChannel channel = pool.acquire(endpoint);
+          byte[] replyBytes;
+          try {
+            channel.send(messageBytes, !INTEGRITY_ONLY);
+            replyBytes = channel.receive();
+          } catch (IOException | GSSException e) {
+            channel.close();
+            throw e;
+          }
+          if (replyBytes == null) {
+            System.out.println("Connection closed by server");
+            channel.close();
+            continue;
+          }
+          pool.release(endpoint, channel);
+          latencies[replies++] = System.nanoTime() - sent;
+          if (verbose) {
+            System.out.println("Received message: " + new String(replyBytes, "UTF-8"));
+          }
+        }
+        Arrays.sort(latencies, 0, replies);
+        System.out.println(String.format("Received %d replies, median %d us, pool %s", replies,
+            replies == 0 ? 0 : latencies[replies / 2] / 1000, pool.counters()));
+      }
+    }
+
+    /**
+     * Run STREAMS contexts concurrently on one multiplexed connection, each one in its own thread
+     * running as the login Subject.
+     */
+    private void runStreams(SocketChannel socket) throws Exception {
+      MuxConnection connection = MuxConnection.open(socket, features());
+      int features = connection.features();
+      Subject subject = Jaas.currentSubject();
+      ExecutorService executor = Executors.newFixedThreadPool(STREAMS);
+      List<Future<Integer>> results = new ArrayList<>();
+      long start = System.nanoTime();
+      try {
+        for (int s = 0; s < STREAMS; s++) {
+          results.add(executor.submit(() -> Subject.doAs(subject,
+              (PrivilegedExceptionAction<Integer>) () -> {
+                MessageChannel stream = layer(connection.initiate(createContext()), features);
+                if ((features & Preface.PIPELINE) != 0) {
+                  try (PipelinedChannel pipeline = new PipelinedChannel(stream, PIPELINE)) {
+                    return sendPipelined(pipeline);
+                  }
+                }
+                int replies = 0;
+                try {
+                  byte[] messageBytes = "Hello There!".getBytes("UTF-8");
+                  for (int i = 0; i < messages; i++) {
+                    stream.send(messageBytes, !INTEGRITY_ONLY);
+                    if (stream.receive() == null) {
+                      break;
+                    }
+                    replies++;
+                  }
+                } finally {
+                  stream.close();
+                }
+                return replies;
+              })));
+        }
+        int replies = 0;
+        for (Future<Integer> result : results) {
+          replies += result.get();
+        }
+        System.out.println(String.format("Received %d replies on %d streams in %d ms", replies,
+            STREAMS, (System.nanoTime() - start) / 1000000));
+      } finally {
+        executor.shutdown();
+        connection.close();
+      }
+    }
+
+    /**
+     * @return Preface flags asked for by the properties
+     */
+    private int features() {
+      return (PIPELINE > 0 ? Preface.PIPELINE : 0) | (BATCH_BYTES > 0 ? Preface.BATCH : 0)
+          | (COMPRESS ? Preface.COMPRESS : 0) | (INTEGRITY_ONLY ? Preface.INTEGRITY : 0)
+          | (DATAGRAMS ? Preface.DATAGRAM : 0) | (RESUMPTION_FILE != null ? Preface.RESUME : 0)
+          | (FAST ? Preface.FAST : 0);
+    }
+
+    /**
+     * @return channel compressing payloads and coalescing messages, as accepted by the server
+     */
+    private MessageChannel layer(MessageChannel channel, int features) {
+      if ((features & Preface.COMPRESS) != 0) {
+        channel = new CompressedChannel(channel);
+      }
+      if ((features & Preface.BATCH) != 0) {
+        channel = new BatchingChannel(channel, BATCH_BYTES, BATCH_DELAY_MILLIS);
+      }
+      return channel;
+    }
+
+    /**
+     * Send the messages as datagrams over the context of channel, without replies.
+     */
+    private void sendDatagrams(GssChannel channel) throws Exception {
+      byte[] messageBytes = "Hello There!".getBytes("UTF-8");
+      try (DatagramSender sender =
+          new DatagramSender(channel, new InetSocketAddress(hostName, port))) {
+        for (int i = 0; i < messages; i++) {
+          sender.send(messageBytes, !INTEGRITY_ONLY);
+        }
+      }
+      System.out.println("Sent " + messages + " datagrams");
+    }
+
+    /**
+     * Send the messages without waiting for the replies, then wait for all of them.
+     *
+     * @return number of replies received
+     */
+    private int sendPipelined(PipelinedChannel pipeline) throws Exception {
+      byte[] messageBytes = "Hello There!".getBytes("UTF-8");
+      List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+      for (int i = 0; i < messages; i++) {
+        replies.add(pipeline.submit(messageBytes, !INTEGRITY_ONLY));
+      }
+      for (CompletableFuture<byte[]> reply : replies) {
+        byte[] replyBytes = reply.get();
+        if (verbose) {
+          System.out.println("Received message: " + new String(replyBytes, "UTF-8"));
+        }
+      }
+      return replies.size();
+    }
+
+    private GSSContext createContext() throws GSSException {
       // This Oid is used to represent the Kerberos version 5 GSS-API
       // mechanism. It is defined in RFC 1964. We will use this Oid
       // whenever we need to indicate to the GSS-API that it must
@@ -94,89 +434,17 @@ public class GssClient {
       // Set the desired optional features on the context. The client
       // chooses these options.
 
-      context.requestMutualAuth(true); // Mutual authentication
+      // Without mutual authentication the context is established by
+      // the AP-REQ, early data can then follow it right away.
+      context.requestMutualAuth(!EARLY_DATA); // Mutual authentication
       context.requestConf(true); // Will use confidentiality later
       context.requestInteg(true); // Will use integrity later
-
-      // Do the context eastablishment loop
-
-      byte[] token = new byte[0];
-
-      while (!context.isEstablished()) {
-
-        // token is ignored on the first call
-        token = context.initSecContext(token, 0, token.length);
-
-        // Send a token to the server if one was generated by
-        // initSecContext
-        if (token != null) {
-          if (verbose) {
-            System.out.println("Will send token of size " + token.length + " from initSecContext.");
-            System.out.println("writing token = " + Utils.getHexBytes(token));
-          }
-
-          outStream.writeInt(token.length);
-          outStream.write(token);
-          outStream.flush();
-        }
-
-        // If the client is done with context establishment
-        // then there will be no more tokens to read in this loop
-        if (!context.isEstablished()) {
-          token = new byte[inStream.readInt()];
-          if (verbose) {
-            System.out.println("reading token = " + Utils.getHexBytes(token));
-            System.out.println("Will read input token of size " + token.length
-                + " for processing by initSecContext");
-          }
-          inStream.readFully(token);
-        }
+      if (DATAGRAMS) {
+        // Datagrams may be lost or reordered, replays are still detected
+        context.requestSequenceDet(false);
+        context.requestReplayDet(true);
       }
-
-      System.out.println("Context Established! ");
-      System.out.println("Client principal is " + context.getSrcName());
-      System.out.println("Server principal is " + context.getTargName());
-
-      // If mutual authentication did not take place, then only the
-      // client was authenticated to the server. Otherwise, both
-      // client and server were authenticated to each other.
-      if (context.getMutualAuthState()) {
-        System.out.println("Mutual authentication took place!");
-      }
-
-      byte[] messageBytes = "Hello There!".getBytes("UTF-8");
-
-      // The first MessageProp argument is 0 to request
-      // the default Quality-of-Protection.
-      // The second argument is true to request
-      // privacy (encryption of the message).
-      MessageProp prop = new MessageProp(0, true);
-
-      // Encrypt the data and send it across. Integrity protection
-      // is always applied, irrespective of confidentiality
-      // (i.e., encryption).
-      // You can use the same token (byte array) as that used when
-      // establishing the context.
-      System.out.println("Sending message: " + new String(messageBytes, "UTF-8"));
-      token = context.wrap(messageBytes, 0, messageBytes.length, prop);
-      outStream.writeInt(token.length);
-      outStream.write(token);
-      outStream.flush();
-
-      // Now we will allow the server to decrypt the message,
-      // append a time/date on it, and send then it back.
-      token = new byte[inStream.readInt()];
-      System.out.println("Will read token of size " + token.length);
-      inStream.readFully(token);
-      byte[] replyBytes = context.unwrap(token, 0, token.length, prop);
-
-      System.out.println("Received message: " + new String(replyBytes, "UTF-8"));
-
-      System.out.println("Done.");
-      context.dispose();
-      socket.close();
-
-      return null;
+      return context;
     }
 
   }
@@ -0,0 +1,88 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.net.InetAddress;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Rate limits of new GSS context establishments, so that a reconnect storm cannot spend all the
+ * server CPU decrypting AP-REQs while established clients starve.
+ * <p>
+ * Before the handshake, a new connection takes a permit from the token bucket of its client
+ * address, then from the bucket shared by all handshakes. A connection without permit is closed
+ * right away, before any token is read or decrypted. Once the context is established, the
+ * connection takes a permit from the bucket of the client principal: the principal is only known
+ * after decryption of the AP-REQ, but a principal reconnecting too often does not get served.
+ * <p>
+ * Limits are handshakes per second (0 for no limit, the default) set by system properties
+ * gss.server.admission.[ip|principal|handshake].rate, with bursts
+ * gss.server.admission.[ip|principal|handshake].burst (default rate). Rejections are counted in
+ * admission.rejected.[ip|principal|handshake] and connections.rejected.
+ */
+class AdmissionController {
+
+  private static final int MAX_KEYS = Integer.getInteger("gss.server.admission.maxKeys", 100000);
+
+  private final TokenBuckets<InetAddress> byAddress;
+  private final TokenBuckets<String> byPrincipal;
+  private final TokenBuckets<String> handshakes;
+  private final Counters counters;
+
+  AdmissionController(TokenBuckets<InetAddress> byAddress, TokenBuckets<String> byPrincipal,
+      TokenBuckets<String> handshakes, Counters counters) {
+    this.byAddress = byAddress;
+    this.byPrincipal = byPrincipal;
+    this.handshakes = handshakes;
+    this.counters = counters;
+  }
+
+  /**
+   * @return controller configured by gss.server.admission.* system properties
+   */
+  static AdmissionController fromProperties(Counters counters) {
+    return new AdmissionController(buckets("ip", MAX_KEYS), buckets("principal", MAX_KEYS),
+        buckets("handshake", 1), counters);
+  }
+
+  private static <K> TokenBuckets<K> buckets(String name, int maxKeys) {
+    int rate = Integer.getInteger("gss.server.admission." + name + ".rate", 0);
+    int burst = Integer.getInteger("gss.server.admission." + name + ".burst", Math.max(1, rate));
+    return new TokenBuckets<>(rate, burst, maxKeys);
+  }
+
+  /**
+   * Check the rate of handshakes of a new connection from address, before the handshake.
+   *
+   * @return true if the handshake may start, false if the connection must be closed
+   */
+  boolean admitAddress(InetAddress address) {
+    long now = System.nanoTime();
+    if (!byAddress.tryAcquire(address, now)) {
+      return reject("ip");
+    }
+    if (!handshakes.tryAcquire("", now)) {
+      return reject("handshake");
+    }
+    return true;
+  }
+
+  /**
+   * Check the rate of handshakes of the client principal of a newly established context.
+   *
+   * @return true if the connection may be served, false if it must be closed
+   */
+  boolean admitPrincipal(GSSName principal) {
+    if (!byPrincipal.tryAcquire(principal.toString())) {
+      return reject("principal");
+    }
+    return true;
+  }
+
+  private boolean reject(String reason) {
+    counters.increment("admission.rejected." + reason);
+    counters.increment("connections.rejected");
+    return false;
+  }
+
+}
@@ -0,0 +1,519 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Serve one client connection accepted by GssServer: context establishment loop, then for every
+ * wrap token received, one wrap token sent back with the reply of the RequestHandler. The
+ * connection lasts until the client sends a close frame or disconnects, or until one of its
+ * Timeouts expires. A client principal refused by the AdmissionController gets a close frame as
+ * soon as the context is established. Frames over the limits of GssTokens and initial tokens which
+ * are not krb5 AP-REQs are refused before allocation or acceptSecContext.
+ * <p>
+ * Deadlines are checked by a timing wheel shared by all handlers: on expiry, the input of the
+ * socket is shut down so that the blocked read of the handler returns. Handshake frames must be
+ * received within the handshake deadline, then each frame must be received completely within
+ * idle + read timeouts of the previous reply.
+ * <p>
+ * Frames are read and written by FrameCodec, handshake tokens are read in pooled buffers. A Preface
+ * may enable batching, compression, integrity only messages and pipelining: requests sent without
+ * waiting for replies are then served one after the other, with their request ids. Multiplexing is
+ * refused. A reply has the protection of its request. With early data the preface answer and the
+ * last handshake token are held back and written with the first reply. With datagrams, the session
+ * of the context is open on the DatagramServer while the connection lasts. With resumption the
+ * admitted client gets a ticket with its first reply, and an initial token presenting a ticket is
+ * accepted by a ResumedContext instead of a Kerberos context. With Preface.FAST messages are
+ * protected by the SessionKeyContext of the established context.
+ * <p>
+ * A handler only uses the shared server credentials, so many handlers can run concurrently.
+ */
+class ConnectionHandler {
+
+  private static final boolean verbose = false;
+
+  private final GSSManager manager;
+  private final GSSCredential serverCreds;
+  private final RequestHandler requestHandler;
+  private final AdmissionController admission;
+  private final Counters counters;
+  private final Timeouts timeouts;
+  private final HashedTimingWheel timer;
+  private final DatagramServer datagrams;
+  private final Resumption resumption;
+  private final BufferPool pool = BufferPool.shared();
+
+  /**
+   * @param timer started timing wheel checking the deadlines of the connections
+   * @param datagrams datagram sessions (Preface.DATAGRAM), null to refuse them
+   * @param resumption issuer of resumption tickets (Preface.RESUME), null to refuse them
+   */
+  ConnectionHandler(GSSManager manager, GSSCredential serverCreds, RequestHandler requestHandler,
+      AdmissionController admission, Counters counters, Timeouts timeouts,
+      HashedTimingWheel timer, DatagramServer datagrams, Resumption resumption) {
+    this.manager = manager;
+    this.serverCreds = serverCreds;
+    this.requestHandler = requestHandler;
+    this.admission = admission;
+    this.counters = counters;
+    this.timeouts = timeouts;
+    this.timer = timer;
+    this.datagrams = datagrams;
+    this.resumption = resumption;
+  }
+
+  /**
+   * Serve the connection and close the socket, counting completed and failed connections.
+   */
+  void handle(SocketChannel socket) {
+    handle(socket, null);
+  }
+
+  /**
+   * Establish the context of the connection, then serve it in the calling thread, or in one of
+   * dataWorkers when not null: the context is handed over exported (GSSContext.export) when its
+   * mechanism supports it, else as is. The socket is closed once served, counting completed and
+   * failed connections, or right away if dataWorkers rejects it.
+   */
+  void handle(SocketChannel socket, Executor dataWorkers) {
+    Deadline deadline = new Deadline(socket);
+    Session session;
+    try {
+      session = handshake(socket, deadline);
+    } catch (Exception e) {
+      failed(socket, deadline, e);
+      close(socket, deadline);
+      return;
+    }
+    if (session == null) {
+      close(socket, deadline);
+      return;
+    }
+    if (dataWorkers == null) {
+      serve(session);
+      return;
+    }
+    try {
+      session.export();
+      dataWorkers.execute(() -> serve(session));
+      counters.increment(session.exported != null ? "handoff.exported" : "handoff.context");
+    } catch (RejectedExecutionException e) {
+      // Data workers are all busy: shed the connection rather than serving it on the front thread
+      session.dispose();
+      counters.increment("handoff.rejected");
+      close(socket, deadline);
+    } catch (GSSException e) {
+      session.dispose();
+      failed(socket, deadline, e);
+      close(socket, deadline);
+    }
+  }
+
+  /**
+   * Exchange messages on an established session, then close its socket.
+   */
+  private void serve(Session session) {
+    try {
+      exchange(session);
+      counters.increment("connections.completed");
+    } catch (Exception e) {
+      failed(session.socket, session.deadline, e);
+    } finally {
+      close(session.socket, session.deadline);
+    }
+  }
+
+  private void failed(SocketChannel socket, Deadline deadline, Exception e) {
+    InetAddress client = UnixSockets.inetAddress(socket);
+    if (e instanceof FrameRejectedException) {
+      counters.increment("frames.rejected." + ((FrameRejectedException) e).getReason());
+      counters.increment("connections.rejected");
+      System.err.println("Rejecting frame of client " + client + ": " + e.getMessage());
+      return;
+    }
+    if (deadline.expired != null) {
+      counters.increment(deadline.expired);
+      System.out.println("Closing connection with client " + client
+          + " after " + deadline.expired);
+      return;
+    }
+    counters.increment("connections.failed");
+    System.err.println("Connection with client " + client + " failed: " + e);
+    if (verbose) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void close(SocketChannel socket, Deadline deadline) {
+    deadline.cancel();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+
+  /**
+   * Run the context establishment loop and admit the client principal.
+   *
+   * @return established session, null if the client principal was rejected
+   */
+  private Session handshake(SocketChannel socket, Deadline deadline)
+      throws IOException, GSSException {
+    InetAddress client = UnixSockets.inetAddress(socket);
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+
+    System.out.println("Got connection from client " + client);
+
+    // Create a GSSContext to receive the incoming request
+    // from the client. The shared server credentials are
+    // acquired once by GssServer and reused by all connections.
+    GSSContext context = manager.createContext(serverCreds);
+    long sessionId = 0;
+    boolean established = false;
+
+    try {
+      // Do the context establishment loop
+
+      byte[] token = null;
+      boolean first = true;
+      boolean prefaceRead = false;
+      int features = 0;
+      List<byte[]> deferred = new ArrayList<>();
+      deadline.set("connections.timeout.handshake",
+          System.nanoTime() + timeouts.handshakeNanos);
+
+      while (!context.isEstablished()) {
+
+        if (verbose) {
+          System.out.println("Reading ...");
+        }
+        // Token read in a pooled buffer, checked against the handshake
+        // frame limit before allocation
+        ByteBuffer frame = FrameCodec.read(socket, header, GssTokens.MAX_HANDSHAKE_FRAME_BYTES,
+            pool);
+        if (frame == null) {
+          throw new EOFException("Connection closed during context establishment");
+        }
+        try {
+          int length = frame.remaining();
+          if (verbose) {
+            System.out.println("Read input token of size " + length
+                + " for processing by acceptSecContext");
+          }
+
+          if (length == 0) {
+            if (verbose) {
+              System.out.println("skipping zero length token");
+            }
+            continue;
+          }
+          if (first && !prefaceRead) {
+            // Multiplexing is only served by the nio modes, pipelined requests are served in
+            // order
+            prefaceRead = true;
+            int flags = Preface.decode(frame.array(), 0, length);
+            if (flags >= 0) {
+              features = flags & (Preface.PIPELINE | Preface.BATCH | Preface.COMPRESS
+                  | Preface.INTEGRITY | Preface.EARLY_DATA | Preface.FAST
+                  | (datagrams != null ? Preface.DATAGRAM : 0)
+                  | (resumption != null ? Preface.RESUME : 0));
+              // With early data the answer goes out with the first reply
+              deferred.add(Preface.encode(features));
+              if ((features & Preface.EARLY_DATA) == 0) {
+                flush(socket, deferred);
+              }
+              continue;
+            }
+          }
+          if (first) {
+            // Drop garbage before any crypto
+            first = false;
+            if (resumption != null && Resumption.isToken(frame.array(), 0, length)) {
+              // No Kerberos work for a client presenting a ticket
+              context.dispose();
+              context = resumption.newContext();
+              counters.increment("resumption.accepted");
+            } else {
+              String reason = GssTokens.checkInitialToken(frame.array(), 0, length);
+              if (reason != null) {
+                throw new FrameRejectedException(reason, "Not a krb5 AP-REQ token");
+              }
+            }
+            if ((features & (Preface.DATAGRAM | Preface.FAST)) != 0) {
+              sessionId = DatagramSender.sessionId(frame.array(), 0, length);
+            }
+          }
+          if (verbose) {
+            System.out.println("Token = " + Utils.getHexBytes(frame.array(), 0, length));
+            System.out.println("acceptSecContext..");
+          }
+          token = context.acceptSecContext(frame.array(), 0, length);
+        } finally {
+          pool.release(frame);
+        }
+
+        // Send a token to the peer if one was generated by
+        // acceptSecContext, with the first reply after early data
+        if (token != null) {
+          if (verbose) {
+            System.out
+                .println("Will send token of size " + token.length + " from acceptSecContext.");
+          }
+
+          deferred.add(token);
+        }
+        if ((features & Preface.EARLY_DATA) == 0 || !context.isEstablished()) {
+          flush(socket, deferred);
+        }
+      }
+
+      System.out.println("Context Established! ");
+      System.out.println("Client principal is " + context.getSrcName());
+      System.out.println("Server principal is " + context.getTargName());
+
+      // If mutual authentication did not take place, then
+      // only the client was authenticated to the
+      // server. Otherwise, both client and server were
+      // authenticated to each other.
+      if (context.getMutualAuthState()) {
+        System.out.println("Mutual authentication took place!");
+      }
+
+      if (!admission.admitPrincipal(context.getSrcName())) {
+        System.out.println("Rejecting client principal " + context.getSrcName());
+        deferred.add(new byte[0]);
+        flush(socket, deferred);
+        return null;
+      }
+      established = true;
+      return new Session(socket, deadline, context, features, sessionId, deferred);
+    } finally {
+      if (!established) {
+        context.dispose();
+      }
+    }
+  }
+
+  /**
+   * Keep exchanging wrapped messages on the context of session until the client sends a close
+   * frame, closes the connection or stays idle for too long.
+   */
+  private void exchange(Session session)
+      throws IOException, GSSException, InterruptedException, ExecutionException {
+
+    SocketChannel socket = session.socket;
+    Deadline deadline = session.deadline;
+    InetAddress client = UnixSockets.inetAddress(socket);
+    int features = session.features;
+    long sessionId = session.sessionId;
+    List<byte[]> deferred = session.deferred;
+    Compression compression = null;
+    boolean sessionOpen = false;
+    if (session.exported != null) {
+      session.context = manager.createContext(session.exported);
+    }
+    GSSContext context = session.context;
+
+    try {
+      if ((features & Preface.FAST) != 0) {
+        context = SessionKeyContext.of(context, sessionId);
+      }
+      if ((features & Preface.DATAGRAM) != 0) {
+        datagrams.open(sessionId, context, features);
+        sessionOpen = true;
+      }
+      if ((features & Preface.RESUME) != 0) {
+        // Written with the first reply: a write of its own would stall it behind a delayed ACK
+        deferred.add(resumption.issue(context));
+        counters.increment("resumption.issued");
+      }
+
+      GssChannel gssChannel = new GssChannel(socket, context, features);
+      for (byte[] frame : deferred) {
+        gssChannel.defer(frame);
+      }
+      MessageChannel channel = gssChannel;
+      if ((features & Preface.COMPRESS) != 0) {
+        compression = new Compression();
+        channel = new CompressedChannel(channel, compression);
+      }
+      GSSName source = context.getSrcName();
+      MessageProp prop = new MessageProp(0, false);
+      byte[] input;
+      while (true) {
+        deadline.set("connections.idle",
+            System.nanoTime() + timeouts.idleNanos + timeouts.readNanos);
+        if ((input = channel.receive(prop)) == null) {
+          break;
+        }
+        deadline.set(null, 0);
+        counters.increment("messages");
+        if (verbose) {
+          System.out.println("Received data \"" + new String(input, "UTF-8") + "\"");
+        }
+
+        // Now generate reply with the application handler, this
+        // thread has nothing else to do than waiting for it.
+        byte[] reply =
+            Payloads.handle(requestHandler, input, source, features).toCompletableFuture().get();
+
+        if (verbose) {
+          System.out.println("Sending: " + new String(reply, "UTF-8"));
+        }
+        // Same protection as the request
+        channel.send(reply, prop.getPrivacy());
+      }
+
+      if (deadline.expired != null) {
+        // Idle: input is shut down but the client can still read the close frame
+        counters.increment(deadline.expired);
+        System.out.println("Closing idle connection with client " + client);
+        channel.close();
+        return;
+      }
+
+      System.out.println("Closing connection with client " + client);
+    } finally {
+      if (sessionOpen) {
+        datagrams.close(sessionId, context);
+      }
+      if (compression != null) {
+        compression.end();
+      }
+      context.dispose();
+    }
+  }
+
+  /**
+   * Write the frames held back, if any, with one gathering write.
+   */
+  private static void flush(SocketChannel socket, List<byte[]> deferred) throws IOException {
+    if (!deferred.isEmpty()) {
+      FrameCodec.write(socket, deferred);
+      deferred.clear();
+    }
+  }
+
+  /**
+   * Established context of a connection with what its data phase needs, handed from the thread
+   * which ran the handshake to a data worker in front mode.
+   */
+  private class Session {
+
+    final SocketChannel socket;
+    final Deadline deadline;
+    GSSContext context;
+    final int features;
+    final long sessionId;
+    // Preface answer, last context token held back with early data
+    final List<byte[]> deferred;
+    byte[] exported;
+
+    Session(SocketChannel socket, Deadline deadline, GSSContext context, int features,
+        long sessionId, List<byte[]> deferred) {
+      this.socket = socket;
+      this.deadline = deadline;
+      this.context = context;
+      this.features = features;
+      this.sessionId = sessionId;
+      this.deferred = deferred;
+    }
+
+    /**
+     * Replace the context by its interprocess token if its mechanism supports export (native GSS),
+     * else keep it.
+     */
+    void export() throws GSSException {
+      try {
+        exported = context.export();
+        context = null;
+      } catch (GSSException e) {
+        if (e.getMajor() != GSSException.UNAVAILABLE) {
+          throw e;
+        }
+      }
+    }
+
+    void dispose() {
+      if (context != null) {
+        try {
+          context.dispose();
+        } catch (GSSException e) {
+          // nothing to do
+        }
+      }
+    }
+  }
+
+  /**
+   * Deadline of the current step of a connection, checked by the timing wheel. Setting it only
+   * updates fields: the timeout on the wheel is scheduled again when it fires before the current
+   * deadline.
+   */
+  private class Deadline implements Runnable {
+
+    private final SocketChannel socket;
+    private volatile String counter;
+    private volatile long nanos;
+    private volatile String expired;
+    private volatile boolean cancelled;
+    private volatile HashedTimingWheel.Timeout timeout;
+
+    Deadline(SocketChannel socket) {
+      this.socket = socket;
+    }
+
+    /**
+     * @param counter counter incremented on expiry, null for no deadline
+     * @param nanos deadline
+     */
+    void set(String counter, long nanos) {
+      this.nanos = nanos;
+      this.counter = counter;
+      if (timeout == null && counter != null) {
+        timeout = timer.schedule(this, nanos);
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      HashedTimingWheel.Timeout current = timeout;
+      if (current != null) {
+        current.cancel();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+      String current = counter;
+      long now = System.nanoTime();
+      if (current == null) {
+        timeout = timer.schedule(this, now + timeouts.idleNanos);
+      } else if (now - nanos < 0) {
+        timeout = timer.schedule(this, nanos);
+      } else {
+        expired = current;
+        try {
+          socket.shutdownInput();
+        } catch (IOException e) {
+          // already closed
+        }
+      }
+    }
+  }
+
+}
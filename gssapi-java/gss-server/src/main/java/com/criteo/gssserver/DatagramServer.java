@@ -0,0 +1,135 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.criteo.gssutils.*;
+
+/**
+ * UDP socket of GssServer for the connections which negotiated Preface.DATAGRAM (DatagramSender):
+ * one thread receives the datagrams, finds the context of their session, unprotects them and hands
+ * their messages to the RequestHandler. Datagrams are fire-and-forget, the replies are dropped.
+ * <p>
+ * A connection opens its session once its context is established and its client principal
+ * admitted, with the id derived from the initial token, and closes it with the context. Datagrams
+ * of unknown sessions, with invalid tokens, duplicated (replayed) or too old to be checked are
+ * dropped and counted (datagrams.dropped.session, token, replay); lost or reordered datagrams are
+ * not errors, the context tolerates gaps and out of sequence tokens.
+ */
+class DatagramServer implements Runnable {
+
+  private static final boolean verbose = false;
+  private static final int MAX_DATAGRAM_BYTES = 65535;
+
+  private final DatagramChannel channel;
+  private final RequestHandler requestHandler;
+  private final Counters counters;
+  private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+
+  private static class Session {
+
+    final GSSContext context;
+    final GSSName source;
+    final boolean mic;
+
+    Session(GSSContext context, GSSName source, boolean mic) {
+      this.context = context;
+      this.source = source;
+      this.mic = mic;
+    }
+  }
+
+  DatagramServer(int port, RequestHandler requestHandler, Counters counters) throws IOException {
+    this.channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+    this.requestHandler = requestHandler;
+    this.counters = counters;
+  }
+
+  /**
+   * Start the receiving thread.
+   */
+  DatagramServer start() {
+    Thread thread = new Thread(this, "gss-datagrams");
+    thread.setDaemon(true);
+    thread.start();
+    return this;
+  }
+
+  /**
+   * Open the session of an established context (any thread).
+   *
+   * @param features Preface flags of the connection
+   */
+  void open(long id, GSSContext context, int features) throws GSSException {
+    Session session =
+        new Session(context, context.getSrcName(), (features & Preface.INTEGRITY) != 0);
+    if (sessions.putIfAbsent(id, session) != null) {
+      // Replayed AP-REQ are refused by the context, this is a hash collision
+      counters.increment("datagrams.sessions.collided");
+    }
+  }
+
+  /**
+   * Close the session of context before its disposal (any thread).
+   */
+  void close(long id, GSSContext context) {
+    sessions.computeIfPresent(id, (key, session) -> session.context == context ? null : session);
+  }
+
+  @Override
+  public void run() {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    try {
+      while (true) {
+        buffer.clear();
+        channel.receive(buffer);
+        receive(buffer.array(), buffer.position());
+      }
+    } catch (IOException e) {
+      System.err.println("Datagram server stopped: " + e);
+    }
+  }
+
+  private void receive(byte[] datagram, int length) {
+    Session session = length < DatagramSender.SESSION_BYTES ? null
+        : sessions.get(ByteBuffer.wrap(datagram).getLong());
+    if (session == null) {
+      counters.increment("datagrams.dropped.session");
+      return;
+    }
+    MessageProp prop = new MessageProp(0, false);
+    byte[] message;
+    try {
+      synchronized (session.context) {
+        message = Protection.unprotect(session.context, datagram, DatagramSender.SESSION_BYTES,
+            length - DatagramSender.SESSION_BYTES, prop, session.mic);
+      }
+    } catch (GSSException | FrameRejectedException e) {
+      counters.increment("datagrams.dropped.token");
+      return;
+    }
+    if (prop.isDuplicateToken() || prop.isOldToken()) {
+      counters.increment("datagrams.dropped.replay");
+      return;
+    }
+    counters.increment("datagrams.received");
+    try {
+      requestHandler.handle(message, session.source).whenComplete((reply, e) -> {
+        if (e != null) {
+          counters.increment("datagrams.failed");
+        }
+      });
+    } catch (RuntimeException e) {
+      counters.increment("datagrams.failed");
+      if (verbose) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+}
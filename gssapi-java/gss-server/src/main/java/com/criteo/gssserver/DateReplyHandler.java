@@ -0,0 +1,28 @@
+package com.criteo.gssserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.ietf.jgss.GSSName;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Default GssServer application: reply to a message with the concatenation of the message with
+ * the current time.
+ */
+public class DateReplyHandler implements RequestHandler {
+
+  @Override
+  public CompletionStage<byte[]> handle(byte[] request, GSSName source) {
+    byte[] nowBytes = new Date().toString().getBytes(StandardCharsets.UTF_8);
+    int len = request.length + 1 + nowBytes.length;
+    byte[] reply = new byte[len];
+    System.arraycopy(request, 0, reply, 0, request.length);
+    reply[request.length] = ' ';
+    System.arraycopy(nowBytes, 0, reply, request.length + 1, nowBytes.length);
+    return CompletableFuture.completedFuture(reply);
+  }
+
+}
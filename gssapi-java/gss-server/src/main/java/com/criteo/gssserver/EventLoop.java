@@ -0,0 +1,161 @@
+package com.criteo.gssserver;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Single thread owning a Selector and the socket I/O of the connections registered on it.
+ * <p>
+ * The event loop only reads and writes frames: any other work (GSS context establishment,
+ * unwrap, wrap) is done by the connections on a separate worker pool. Other threads interact with
+ * the loop by submitting tasks with {@link #execute(Runnable)}. Connection deadlines are
+ * scheduled on the timing wheel of the loop, advanced after every select: the loop wakes up at
+ * every tick whatever the number of connections, and only looks at the timeouts of that tick.
+ * <p>
+ * A RuntimeException thrown by a connection callback, or by a task or timeout of a connection,
+ * fails that connection only: the loop goes on serving the others.
+ */
+class EventLoop implements Runnable {
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final HashedTimingWheel timer;
+  private final long tickMillis;
+  private volatile boolean running = true;
+
+  EventLoop(Timeouts timeouts) throws IOException {
+    this.selector = Selector.open();
+    this.timer = timeouts.newWheel();
+    this.tickMillis = timeouts.tickMillis;
+  }
+
+  /**
+   * @return timing wheel whose tasks run in the event loop thread
+   */
+  HashedTimingWheel timer() {
+    return timer;
+  }
+
+  /**
+   * Run task in the event loop thread.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Run task of connection in the event loop thread, a RuntimeException fails the connection (any
+   * thread).
+   */
+  void execute(NioConnection connection, Runnable task) {
+    execute(() -> run(connection, task));
+  }
+
+  /**
+   * Run task of connection in the event loop thread once deadlineNanos is reached, a
+   * RuntimeException fails the connection (event loop thread).
+   */
+  HashedTimingWheel.Timeout schedule(NioConnection connection, Runnable task, long deadlineNanos) {
+    return timer.schedule(() -> run(connection, task), deadlineNanos);
+  }
+
+  /**
+   * Register a new accepted channel for read events, attached to the connection created by
+   * factory.
+   */
+  void register(SocketChannel channel, Function<SelectionKey, NioConnection> factory) {
+    execute(() -> {
+      try {
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(factory.apply(key));
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Unable to register channel: " + e);
+        closeQuietly(channel);
+      }
+    });
+  }
+
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select(tickMillis);
+        runTasks();
+        timer.advance(System.nanoTime());
+        runTasks();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          NioConnection connection = (NioConnection) key.attachment();
+          if (!key.isValid() || connection == null) {
+            continue;
+          }
+          run(connection, () -> {
+            if (key.isReadable()) {
+              connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          });
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      System.err.println("Event loop stopped: " + e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key.channel());
+      }
+      closeQuietly(selector);
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        System.err.println("Event loop task failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Run task of connection, failing the connection on a RuntimeException: its close is queued
+   * and runs before the next callbacks of the connection (event loop thread).
+   */
+  private static void run(NioConnection connection, Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      connection.fail(e);
+    }
+  }
+
+  static void closeQuietly(java.io.Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+  }
+
+}
@@ -0,0 +1,25 @@
+package com.criteo.gssserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Processing of the frames read by NioServer event loops: everything but socket I/O.
+ * <p>
+ * Both methods are called from the event loop thread of the connection and must not block.
+ */
+interface FrameProcessor {
+
+  /**
+   * Process a complete frame (without its header) received on stream.
+   *
+   * @param frame token at index 0 of frame.array(), in a pooled buffer to be given back with
+   * {@link NioStream#release(ByteBuffer)} once the token is consumed
+   */
+  void process(NioStream stream, ByteBuffer frame);
+
+  /**
+   * Release resources of a closed stream, its GSS context in particular.
+   */
+  void closed(NioStream stream);
+
+}
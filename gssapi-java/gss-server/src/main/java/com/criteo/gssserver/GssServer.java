@@ -2,10 +2,17 @@ package com.criteo.gssserver;
 
 import org.ietf.jgss.*;
 import java.io.*;
-import java.net.Socket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.*;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
 
 import com.criteo.gssutils.*;
 
@@ -25,36 +32,113 @@ import com.criteo.gssutils.*;
  * ....
  * 2. client sends a wrap token to the server.
  * 3. server sends a wrap token back to the client.
+ * 4. steps 2 and 3 are repeated until the client sends a close frame (a frame of length 0) or
+ * closes the connection. The server closes connections idle for more than
+ * gss.server.idleTimeoutSeconds (default 60) after sending them a close frame, and connections
+ * which do not complete their handshake or a frame in time (Timeouts).
  * <p>
  * Start GssServer first before starting GssClient.
  * <p>
- * Usage:  java <options> GssServer
+ * Modes:
+ * - single (default): serve LOOP_LIMIT connections one at a time then exit.
+ * - threaded: long-running server handing each accepted connection to its own virtual thread
+ * (Java 21+) or to a bounded pool of platform threads (gss.server.maxThreads, default 256, with as
+ * many queued connections). Connections over that capacity are closed (connections.busy).
+ * <p>
+ * - nio: long-running non-blocking server, a few event loops (gss.server.eventLoops, default 2)
+ * read and write frames and a separate pool of workers (gss.server.workers, default number of
+ * processors) runs acceptSecContext, unwrap and wrap. With gss.server.acceptors greater than 1,
+ * each acceptor listens on its own SO_REUSEPORT socket with its own event loops.
+ * <p>
+ * - staged: nio transport with a staged pipeline unwrap -> handle -> wrap -> write, each stage with
+ * its own threads (gss.server.stage.[unwrap|handle|wrap|write].threads) and bounded queues.
+ * <p>
+ * - front: blocking connections as in threaded mode, but context establishments run on a bounded
+ * front pool (gss.server.front.threads, default number of processors, and gss.server.front.queue
+ * queued connections, default 1024) which hands each established context with its socket to a
+ * data worker for the messages: a virtual thread, or one of gss.server.maxThreads platform
+ * threads. Handshake and data capacities are sized apart: a reconnect storm waits in the front
+ * queue without taking the threads of established clients. Neither pool runs tasks in the
+ * submitting thread: connections over the front queue are closed by the acceptor
+ * (connections.busy), established contexts over the data capacity are closed by the front thread
+ * (handoff.rejected). Contexts are handed over exported when their mechanism supports
+ * GSSContext.export (native GSS), as is otherwise (the JDK krb5 mechanism).
+ * <p>
+ * The nio modes also serve multiplexed connections, many contexts on one connection (Preface,
+ * NioStream).
+ * <p>
+ * In all modes the reply to a client message is computed by the RequestHandler class named by
+ * gss.server.handler (default DateReplyHandler).
+ * <p>
+ * With gss.server.datagram=true, clients may also send fire-and-forget messages as UDP datagrams
+ * on the port of the same number, over contexts established on TCP connections (DatagramServer).
+ * <p>
+ * With gss.server.unixSocket set to a path, the threaded, front and nio modes also accept
+ * connections on a Unix domain socket (Java 16+, UnixSockets) for clients on the same host, with
+ * the same frames and authentication as over TCP.
+ * <p>
+ * With gss.server.resumption=true, clients asking for it (Preface.RESUME) get a resumption ticket
+ * with their first reply, and may present it on later connections instead of an AP-REQ
+ * (Resumption): no Kerberos work, which is most of the CPU spent on reconnecting clients.
+ * <p>
+ * In all modes new context establishments can be rate limited per client address, per client
+ * principal and globally (AdmissionController, gss.server.admission.* properties).
+ * <p>
+ * Usage:  java <options> GssServer [single|threaded|nio|staged|front]
  */
 
 public class GssServer {
 
   private static final int PORT = 4567;
-  private static final boolean verbose = false;
   private static final int LOOP_LIMIT = 1;
+  private static final int BACKLOG = Integer.getInteger("gss.server.backlog", 50);
+  private static final int MAX_THREADS = Integer.getInteger("gss.server.maxThreads", 256);
+  private static final int ACCEPTORS = Integer.getInteger("gss.server.acceptors", 1);
+  private static final int EVENT_LOOPS = Integer.getInteger("gss.server.eventLoops", 2);
+  private static final int WORKERS = Integer.getInteger("gss.server.workers",
+      Runtime.getRuntime().availableProcessors());
+  private static final int FRONT_THREADS = Integer.getInteger("gss.server.front.threads",
+      Runtime.getRuntime().availableProcessors());
+  private static final int FRONT_QUEUE = Integer.getInteger("gss.server.front.queue", 1024);
+  private static final int STAGE_CAPACITY = Integer.getInteger("gss.server.stage.capacity", 1024);
+  private static final Timeouts TIMEOUTS = Timeouts.fromProperties();
+  private static final int REPORT_SECONDS = Integer.getInteger("gss.server.reportSeconds", 10);
+  private static final boolean DATAGRAMS = Boolean.getBoolean("gss.server.datagram");
+  private static final String UNIX_SOCKET = System.getProperty("gss.server.unixSocket");
+  private static final boolean RESUMPTION = Boolean.getBoolean("gss.server.resumption");
+  private static final List<String> MODES = Arrays.asList("single", "threaded", "nio", "staged",
+      "front");
   private static int loopCount = 0;
 
+  public static void usage() {
+    System.err.println("Usage: java <options> GssServer [" + String.join("|", MODES) + "]");
+    System.exit(1);
+  }
+
   public static void main(String[] args) throws Exception {
-    PrivilegedExceptionAction action = new GssServerAction(PORT);
+    String mode = args.length > 0 ? args[0] : "single";
+    if (!MODES.contains(mode)) {
+      usage();
+    }
+    PrivilegedExceptionAction action = new GssServerAction(PORT, mode);
     Jaas.loginAndAction("server", action);
   }
 
   private static class GssServerAction implements PrivilegedExceptionAction {
 
     private int localPort;
+    private String mode;
+    private final Counters counters = new Counters();
+    private DatagramServer datagrams;
+    private Resumption resumption;
 
-    GssServerAction(int port) {
+    GssServerAction(int port, String mode) {
       this.localPort = port;
+      this.mode = mode;
     }
 
     public Object run() throws Exception {
 
-      ServerSocket ss = new ServerSocket(localPort);
-
       // Get own Kerberos credentials for accepting connection
       GSSManager manager = GSSManager.getInstance();
       Oid krb5Mechanism = new Oid("1.2.840.113554.1.2.2");
@@ -65,131 +149,205 @@ public class GssServer {
           GSSCredential.ACCEPT_ONLY
       );
 
-      while (loopCount++ < LOOP_LIMIT) {
-
-        System.out.println("Waiting for incoming connection...");
-
-        Socket socket = ss.accept();
-        DataInputStream inStream = new DataInputStream(socket.getInputStream());
-
-        DataOutputStream outStream = new DataOutputStream(socket.getOutputStream());
-
-        System.out.println("Got connection from client " +
-            socket.getInetAddress());
-
-        // Create a GSSContext to receive the incoming request
-        // from the client. Use null for the server credentials
-        // passed in. This tells the underlying mechanism
-        // to use whatever credentials it has available that
-        // can be used to accept this connection.
-        GSSContext context = manager.createContext((GSSCredential) serverCreds);
-
-        // Do the context establishment loop
-
-        byte[] token = null;
-
-        while (!context.isEstablished()) {
-
-          if (verbose) {
-            System.out.println("Reading ...");
-          }
-          token = new byte[inStream.readInt()];
-
-          if (verbose) {
-            System.out.println("Will read input token of size " + token.length
-                + " for processing by acceptSecContext");
+      RequestHandler requestHandler = createRequestHandler();
+      AdmissionController admission = AdmissionController.fromProperties(counters);
+      // Deadlines of blocking connections, nio modes use the timing wheels of their event loops
+      HashedTimingWheel timer = TIMEOUTS.newWheel();
+      // Datagrams of established contexts on the UDP port of the same number
+      if (DATAGRAMS) {
+        datagrams = new DatagramServer(localPort, requestHandler, counters).start();
+      }
+      if (RESUMPTION) {
+        resumption = new Resumption();
+      }
+      ConnectionHandler handler = new ConnectionHandler(manager, serverCreds, requestHandler,
+          admission, counters, TIMEOUTS, timer, datagrams, resumption);
+
+      switch (mode) {
+        case "threaded":
+          timer.start("gss-timer");
+          ServerSocketChannel unix =
+              UNIX_SOCKET == null ? null : UnixSockets.listen(UNIX_SOCKET, BACKLOG);
+          runThreaded(listen(), unix, handler, admission,
+              ThreadPools.newPerTaskExecutor("gss-connection", MAX_THREADS), null);
+          return null;
+        case "front":
+          timer.start("gss-timer");
+          ServerSocketChannel frontUnix =
+              UNIX_SOCKET == null ? null : UnixSockets.listen(UNIX_SOCKET, BACKLOG);
+          // The data phase needs no credentials: workers do not run as the Subject
+          ExecutorService dataWorkers =
+              ThreadPools.newPerTaskExecutor("gss-data", MAX_THREADS);
+          try {
+            runThreaded(listen(), frontUnix, handler, admission,
+                ThreadPools.newBoundedExecutor("gss-front", FRONT_THREADS, FRONT_QUEUE),
+                dataWorkers);
+          } finally {
+            dataWorkers.shutdown();
           }
-          inStream.readFully(token);
-
-          if (token.length == 0) {
-            if (verbose) {
-              System.out.println("skipping zero length token");
-            }
-            continue;
+          return null;
+        case "nio":
+          ExecutorService workers = java.util.concurrent.Executors.newFixedThreadPool(WORKERS,
+              ThreadPools.namedDaemonFactory("gss-worker"));
+          try {
+            runNio(manager, serverCreds,
+                new WorkerPoolProcessor(workers, requestHandler, admission), admission, null);
+          } finally {
+            workers.shutdown();
           }
-          if (verbose) {
-            System.out.println("Token = " + Utils.getHexBytes(token));
-            System.out.println("acceptSecContext..");
+          return null;
+        case "staged":
+          StagedProcessor staged = new StagedProcessor(
+              stageThreads("unwrap"), stageThreads("handle"), stageThreads("wrap"),
+              stageThreads("write"), STAGE_CAPACITY, requestHandler, admission).start();
+          try {
+            runNio(manager, serverCreds, staged, admission, staged);
+          } finally {
+            staged.shutdown();
           }
-          token = context.acceptSecContext(token, 0, token.length);
-
-          // Send a token to the peer if one was generated by
-          // acceptSecContext
-          if (token != null) {
-            if (verbose) {
-              System.out
-                  .println("Will send token of size " + token.length + " from acceptSecContext.");
-            }
+          return null;
+        default:
+          break;
+      }
 
-            outStream.writeInt(token.length);
-            outStream.write(token);
-            outStream.flush();
-          }
-        }
+      timer.start("gss-timer");
+      ServerSocketChannel ss = listen();
 
-        System.out.println("Context Established! ");
-        System.out.println("Client principal is " + context.getSrcName());
-        System.out.println("Server principal is " + context.getTargName());
+      while (loopCount++ < LOOP_LIMIT) {
 
-        // If mutual authentication did not take place, then
-        // only the client was authenticated to the
-        // server. Otherwise, both client and server were
-        // authenticated to each other.
-        if (context.getMutualAuthState()) {
-          System.out.println("Mutual authentication took place!");
-        }
+        System.out.println("Waiting for incoming connection...");
 
-        //
-        //  Create a MessageProp which unwrap will use to return
-        //information such as the Quality-of-Protection that was
-        // applied to the wrapped token, whether or not it was
-        // encrypted, etc. Since the initial MessageProp values
-        // are ignored, just set them to the defaults of 0 and false.
-        MessageProp prop = new MessageProp(0, false);
-
-        // Read the token. This uses the same token byte array
-        // as that used during context establishment.
-        token = new byte[inStream.readInt()];
-        if (verbose) {
-          System.out.println("Will read token of size " + token.length);
+        SocketChannel socket = ss.accept();
+        counters.increment("connections.accepted");
+        if (!admission.admitAddress(UnixSockets.inetAddress(socket))) {
+          socket.close();
+          continue;
         }
-        inStream.readFully(token);
-
-        byte[] input = context.unwrap(token, 0, token.length, prop);
-        String str = new String(input, "UTF-8");
-
-        System.out.println("Received data \"" + str + "\" of length " + str.length());
-
-        System.out.println("Confidentiality applied: " + prop.getPrivacy());
+        handler.handle(socket);
+      }
+      System.out.println("Connections: " + counters);
+      return null;
+    }
 
-        // Now generate reply that is the concatenation of the
-        // incoming string with the current time.
+    /**
+     * Accept connections forever, each one served by a thread of executor running as the login
+     * Subject of the server.
+     *
+     * @param unix Unix domain socket accepted by another thread, null if none
+     * @param dataWorkers executor serving established contexts, null to serve them in the
+     * threads of executor
+     */
+    private void runThreaded(ServerSocketChannel ss, ServerSocketChannel unix,
+        ConnectionHandler handler, AdmissionController admission, ExecutorService executor,
+        ExecutorService dataWorkers) throws IOException {
+      // Threads of the executor do not inherit the access control context of the acceptor
+      Subject subject = Jaas.currentSubject();
+      ScheduledExecutorService reporter = startReporter(null);
+
+      String threads = ThreadPools.hasVirtualThreads() ? "virtual threads"
+          : "a pool of " + MAX_THREADS + " platform threads";
+      System.out.println(dataWorkers == null ? "Serving connections with " + threads
+          : "Establishing contexts with " + FRONT_THREADS + " front threads, serving them with "
+          + threads);
+
+      try {
+        if (unix != null) {
+          Thread acceptor = new Thread(() -> {
+            try {
+              accept(unix, executor, dataWorkers, subject, handler, admission);
+            } catch (IOException e) {
+              System.err.println("Unix domain socket acceptor stopped: " + e);
+            }
+          }, "gss-unix-acceptor");
+          acceptor.setDaemon(true);
+          acceptor.start();
+          System.out.println("Accepting connections on " + UNIX_SOCKET);
+        }
+        accept(ss, executor, dataWorkers, subject, handler, admission);
+      } finally {
+        executor.shutdown();
+        reporter.shutdown();
+        ss.close();
+        if (unix != null) {
+          unix.close();
+        }
+      }
+    }
 
-        // First reset the QOP of the MessageProp to 0
-        // to ensure the default Quality-of-Protection
-        // is applied.
-        prop.setQOP(0);
+    private void accept(ServerSocketChannel ss, ExecutorService executor,
+        ExecutorService dataWorkers, Subject subject, ConnectionHandler handler,
+        AdmissionController admission) throws IOException {
+      while (true) {
+        SocketChannel socket = ss.accept();
+        counters.increment("connections.accepted");
+        if (!admission.admitAddress(UnixSockets.inetAddress(socket))) {
+          socket.close();
+          continue;
+        }
+        try {
+          executor.execute(() -> Subject.doAs(subject, (PrivilegedAction<Void>) () -> {
+            handler.handle(socket, dataWorkers);
+            return null;
+          }));
+        } catch (RejectedExecutionException e) {
+          // All threads and queued slots are taken: the acceptor never serves a connection itself
+          counters.increment("connections.busy");
+          socket.close();
+        }
+      }
+    }
 
-        String now = new Date().toString();
-        byte[] nowBytes = now.getBytes("UTF-8");
-        int len = input.length + 1 + nowBytes.length;
-        byte[] reply = new byte[len];
-        System.arraycopy(input, 0, reply, 0, input.length);
-        reply[input.length] = ' ';
-        System.arraycopy(nowBytes, 0, reply, input.length + 1, nowBytes.length);
+    /**
+     * @return listening channel in blocking mode, accepted channels are read and written by
+     * FrameCodec
+     */
+    private ServerSocketChannel listen() throws IOException {
+      ServerSocketChannel ss = ServerSocketChannel.open();
+      ss.bind(new InetSocketAddress(localPort), BACKLOG);
+      return ss;
+    }
 
-        System.out.println("Sending: " + new String(reply, "UTF-8"));
-        token = context.wrap(reply, 0, reply.length, prop);
+    private void runNio(GSSManager manager, GSSCredential serverCreds, FrameProcessor processor,
+        AdmissionController admission, Object metrics) throws IOException, InterruptedException {
+      ScheduledExecutorService reporter = startReporter(metrics);
+      try {
+        new NioServer(localPort, BACKLOG, ACCEPTORS, EVENT_LOOPS, processor, admission, manager,
+            serverCreds, counters, TIMEOUTS, datagrams, resumption, UNIX_SOCKET).run();
+      } finally {
+        reporter.shutdown();
+      }
+    }
 
-        outStream.writeInt(token.length);
-        outStream.write(token);
-        outStream.flush();
+    /**
+     * Report counters periodically, followed by metrics.toString() when metrics is not null.
+     */
+    private ScheduledExecutorService startReporter(Object metrics) {
+      ScheduledExecutorService reporter = java.util.concurrent.Executors
+          .newSingleThreadScheduledExecutor(ThreadPools.namedDaemonFactory("gss-reporter"));
+      reporter.scheduleAtFixedRate(() -> {
+        System.out.println(String.format("Connections: %s (%.1f completed/s)",
+            counters, counters.rate("connections.completed")));
+        if (metrics != null) {
+          System.out.println("Stages: " + metrics);
+        }
+      }, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+      return reporter;
+    }
 
-        System.out.println("Closing connection with client " + socket.getInetAddress());
-        context.dispose();
-        socket.close();
+    /**
+     * @return instance of the RequestHandler class named by gss.server.handler (with a public
+     * no-argument constructor), by default DateReplyHandler
+     */
+    private static RequestHandler createRequestHandler() throws ReflectiveOperationException {
+      String className = System.getProperty("gss.server.handler");
+      if (className == null) {
+        return new DateReplyHandler();
       }
-      return null;
+      return (RequestHandler) Class.forName(className).getConstructor().newInstance();
+    }
+
+    private static int stageThreads(String stage) {
+      return Integer.getInteger("gss.server.stage." + stage + ".threads", WORKERS);
     }
   }
 
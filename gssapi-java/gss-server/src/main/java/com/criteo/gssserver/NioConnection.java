@@ -0,0 +1,705 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Non-blocking connection served by NioServer, with the same protocol as ConnectionHandler.
+ * <p>
+ * Socket reads and writes happen in the event loop thread: 4-byte big-endian length-prefixed
+ * frames are accumulated in pooled buffers by a FrameCodec.Decoder without blocking. Complete
+ * frames are handed to the FrameProcessor of the server, which runs acceptSecContext, unwrap and
+ * wrap away from the event loop, in frame order for each stream. Output tokens are queued
+ * without copy and written back by the event loop with gathering writes: all the frames queued
+ * since the last write go out in one syscall.
+ * <p>
+ * Frames over the limits of GssTokens (handshake limit for the first token, a krb5 handshake has
+ * one client token) are refused before allocation, and a first token which is not a krb5 AP-REQ is
+ * refused before reaching the processor: the connection is closed right away.
+ * <p>
+ * The connection stays open for any number of exchanges until the client sends a close frame
+ * (processor calls {@link NioStream#finish()}) or disconnects, or until one of its Timeouts
+ * expires. A client principal refused by the AdmissionController gets a close frame after the last
+ * handshake token. The close frame of a stream waits for the replies of the requests read before
+ * it.
+ * <p>
+ * A client may start with a Preface asking for multiplexing: the connection then carries frames
+ * with 8-byte headers for many streams, each one with its own GSS context (NioStream) processed
+ * independently from the others. Every new stream takes permits of the AdmissionController like a
+ * new connection, and at most gss.server.maxStreams (default 256) streams are open at once; a
+ * refused stream gets a close frame of its id. Handshake and idle deadlines apply to the
+ * connection as a whole, once multiplexing is accepted the idle deadline applies.
+ * <p>
+ * The preface may also ask for pipelining (Preface.PIPELINE): wrapped messages then carry request
+ * ids and the client does not wait for a reply before sending the next request. Requests whose
+ * replies are not sent yet are counted per connection: beyond gss.server.maxInFlight (default 64)
+ * the event loop stops reading the connection until replies go out, so a client can not queue an
+ * unbounded amount of work. With batching (Preface.BATCH) a wrapped message holds many requests,
+ * counted as one. The event loop also stops reading while the processor has no room for the
+ * frames of a stream (pauseReading), since it must not block.
+ * <p>
+ * With early data (Preface.EARLY_DATA, plain connections only) the first request of the client
+ * follows its AP-REQ: the preface answer and the last handshake token of the stream stay queued and
+ * go out with the first reply, in the same gathering write. With datagrams (Preface.DATAGRAM,
+ * plain connections only) the stream opens the session of its context on the DatagramServer once
+ * established, and closes it with the context. With resumption (Preface.RESUME, plain connections
+ * only) the admitted client gets a ticket with its first reply; on any stream, a first
+ * token presenting a ticket gets a ResumedContext instead of a Kerberos context. With the fast
+ * channel (Preface.FAST, plain connections only) the stream replaces its context by a
+ * SessionKeyContext once established.
+ * <p>
+ * Each connection has one timeout on the timing wheel of its event loop. Reads only update
+ * timestamps: when the timeout fires before the current deadline of the connection (handshake,
+ * read or idle), it is scheduled again at this deadline. Only a frame whose read deadline comes
+ * before the timeout moves it earlier, so that a client stalling in a frame is closed on time.
+ */
+class NioConnection {
+
+  private static final int WRITE_BATCH = 64;
+  private static final int MAX_STREAMS = Integer.getInteger("gss.server.maxStreams", 256);
+  private static final int MAX_IN_FLIGHT = Integer.getInteger("gss.server.maxInFlight", 64);
+
+  private final SelectionKey key;
+  private final SocketChannel channel;
+  private final InetAddress address;
+  private final EventLoop loop;
+  private final FrameProcessor processor;
+  private final ContextFactory contexts;
+  private final AdmissionController admission;
+  private final Counters counters;
+  private final Timeouts timeouts;
+  private final DatagramServer datagrams;
+  private final Resumption resumption;
+
+  // Read state, only used by the event loop thread
+  private final BufferPool pool;
+  private FrameCodec.Decoder decoder;
+  private boolean firstFrame = true;
+  private boolean streamOpened;
+  private final Map<Integer, NioStream> streams = new HashMap<>();
+  private volatile boolean multiplexed;
+  private volatile int features;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Streams whose frames wait for room in the processor
+  private int stalledStreams;
+  private boolean readPaused;
+
+  // Write state, filled by processing threads and drained by the event loop thread
+  private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  private final Runnable writeTask = this::onWritable;
+  private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+  private int batchSize;
+  private boolean writePending;
+  private volatile boolean closeAfterWrite;
+  private boolean closed;
+  // Outcome of the connection already counted (failed, timed out, refused frame), else completed
+  // on close
+  private volatile boolean counted;
+  private volatile boolean rejected;
+  private volatile boolean established;
+
+  // Deadline state, only used by the event loop thread
+  private final long createdNanos = System.nanoTime();
+  private long lastActivityNanos = createdNanos;
+  private long frameStartNanos;
+  private boolean inFrame;
+  private HashedTimingWheel.Timeout timeout;
+  private long timeoutNanos;
+
+  /**
+   * Creation of the acceptor context of a new stream.
+   */
+  interface ContextFactory {
+    GSSContext create() throws GSSException;
+  }
+
+  NioConnection(SelectionKey key, EventLoop loop, FrameProcessor processor,
+      ContextFactory contexts, AdmissionController admission, Counters counters,
+      Timeouts timeouts, BufferPool pool, DatagramServer datagrams, Resumption resumption) {
+    this.key = key;
+    this.channel = (SocketChannel) key.channel();
+    this.address = UnixSockets.inetAddress(channel);
+    this.loop = loop;
+    this.processor = processor;
+    this.contexts = contexts;
+    this.admission = admission;
+    this.counters = counters;
+    this.timeouts = timeouts;
+    this.pool = pool;
+    this.datagrams = datagrams;
+    this.resumption = resumption;
+    this.decoder = new FrameCodec.Decoder(pool);
+    schedule(deadline());
+  }
+
+  /**
+   * Give back the buffer of a frame passed to the processor, once its token is consumed (any
+   * thread).
+   */
+  void release(ByteBuffer frame) {
+    pool.release(frame);
+  }
+
+  /**
+   * Read as many frames as available without blocking (event loop thread).
+   */
+  void onReadable() {
+    lastActivityNanos = System.nanoTime();
+    try {
+      while (!closed && stalledStreams == 0) {
+        // Multiplexed frames of new streams are checked against the handshake limit once read
+        NioStream plain = streams.get(0);
+        boolean handshake = !multiplexed && (plain == null || !plain.firstTokenRead);
+        ByteBuffer frame = decoder.read(channel, handshake ? GssTokens.MAX_HANDSHAKE_FRAME_BYTES
+            : GssTokens.MAX_FRAME_BYTES);
+        if (frame == null) {
+          if (decoder.inFrame() && !inFrame) {
+            inFrame = true;
+            frameStartNanos = lastActivityNanos;
+            scheduleEarlier();
+          }
+          return;
+        }
+        inFrame = false;
+        counters.increment("frames.read");
+        onFrame(frame);
+      }
+    } catch (EOFException e) {
+      close();
+    } catch (FrameRejectedException e) {
+      counted = true;
+      counters.increment("frames.rejected." + e.getReason());
+      counters.increment("connections.rejected");
+      close();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Route a complete frame to its stream, opening the stream if needed (event loop thread).
+   */
+  private void onFrame(ByteBuffer frame) throws IOException {
+    if (firstFrame) {
+      firstFrame = false;
+      int flags = Preface.decode(frame.array(), 0, frame.remaining());
+      if (flags >= 0) {
+        pool.release(frame);
+        acceptPreface(flags);
+        return;
+      }
+    }
+    int streamId = multiplexed ? decoder.stream() : 0;
+    NioStream stream = streams.get(streamId);
+    if (stream == null) {
+      if (multiplexed && (streamId == 0 || !frame.hasRemaining())) {
+        boolean token = frame.hasRemaining();
+        pool.release(frame);
+        if (token) {
+          throw new FrameRejectedException("stream", "Token on stream 0");
+        }
+        if (streamId == 0) {
+          // Close frame of the connection
+          finish();
+        }
+        // else close frame of a stream already closed by the server
+        return;
+      }
+      stream = openStream(streamId, frame);
+      if (stream == null) {
+        return;
+      }
+    }
+    if (!stream.firstTokenRead && frame.hasRemaining()) {
+      stream.firstTokenRead = true;
+      try {
+        if (multiplexed) {
+          GssTokens.checkFrameLength(frame.remaining(), GssTokens.MAX_HANDSHAKE_FRAME_BYTES);
+        }
+        String reason = resumed(frame) ? null
+            : GssTokens.checkInitialToken(frame.array(), 0, frame.remaining());
+        if (reason != null) {
+          throw new FrameRejectedException(reason, "Not a krb5 AP-REQ token");
+        }
+        if ((features & (Preface.DATAGRAM | Preface.FAST)) != 0) {
+          stream.sessionId = DatagramSender.sessionId(frame.array(), 0, frame.remaining());
+        }
+      } catch (FrameRejectedException e) {
+        pool.release(frame);
+        throw e;
+      }
+    }
+    processor.process(stream, frame);
+  }
+
+  /**
+   * Answer the preface of the client, accepting every feature (event loop thread).
+   */
+  private void acceptPreface(int flags) {
+    int accepted = flags & (Preface.MULTIPLEX | Preface.PIPELINE | Preface.BATCH
+        | Preface.COMPRESS | Preface.INTEGRITY | Preface.EARLY_DATA | Preface.FAST
+        | (datagrams != null ? Preface.DATAGRAM : 0) | (resumption != null ? Preface.RESUME : 0));
+    if ((accepted & Preface.MULTIPLEX) != 0) {
+      accepted &= ~(Preface.EARLY_DATA | Preface.DATAGRAM | Preface.RESUME | Preface.FAST);
+    }
+    write(0, Preface.encode(accepted));
+    if ((accepted & Preface.EARLY_DATA) == 0) {
+      scheduleWrite();
+    } else {
+      // The answer stays queued until the first reply, written with it
+      counters.increment("connections.early");
+    }
+    features = accepted;
+    if ((accepted & Preface.PIPELINE) != 0) {
+      counters.increment("connections.pipelined");
+    }
+    if ((accepted & Preface.BATCH) != 0) {
+      counters.increment("connections.batched");
+    }
+    if ((accepted & Preface.COMPRESS) != 0) {
+      counters.increment("connections.compressed");
+    }
+    if ((accepted & Preface.DATAGRAM) != 0) {
+      counters.increment("connections.datagram");
+    }
+    if ((accepted & Preface.FAST) != 0) {
+      counters.increment("connections.fast");
+    }
+    if ((accepted & Preface.MULTIPLEX) != 0) {
+      // Frames written from now on have multiplexed headers
+      multiplexed = true;
+      decoder = new FrameCodec.Decoder(pool, FrameCodec.MUX_HEADER_BYTES);
+      counters.increment("connections.multiplexed");
+      established();
+    }
+  }
+
+  /**
+   * @return new stream, or null if refused by the limits of the server (event loop thread)
+   */
+  private NioStream openStream(int streamId, ByteBuffer frame) throws IOException {
+    // The first stream of the connection was admitted by the acceptor
+    boolean admitted = !streamOpened;
+    streamOpened = true;
+    if (multiplexed && (streams.size() >= MAX_STREAMS
+        || !admitted && !admission.admitAddress(address))) {
+      pool.release(frame);
+      counters.increment("streams.rejected");
+      write(streamId, new byte[0]);
+      scheduleWrite();
+      return null;
+    }
+    GSSContext context;
+    try {
+      if (frame.hasRemaining() && resumed(frame)) {
+        context = resumption.newContext();
+        counters.increment("resumption.accepted");
+      } else {
+        context = contexts.create();
+      }
+    } catch (GSSException e) {
+      pool.release(frame);
+      throw new IOException("Unable to create context", e);
+    }
+    NioStream stream = new NioStream(this, streamId, context);
+    streams.put(streamId, stream);
+    if (multiplexed) {
+      counters.increment("streams.opened");
+    }
+    return stream;
+  }
+
+  /**
+   * @return true if frame presents a resumption ticket instead of an initial context token
+   */
+  private boolean resumed(ByteBuffer frame) {
+    return resumption != null && Resumption.isToken(frame.array(), 0, frame.remaining());
+  }
+
+  /**
+   * Write queued frames with gathering writes until the socket buffer is full (event loop
+   * thread).
+   */
+  void onWritable() {
+    writeScheduled.set(false);
+    if (closed) {
+      return;
+    }
+    lastActivityNanos = System.nanoTime();
+    try {
+      while (true) {
+        ByteBuffer buffer;
+        while (batchSize < batch.length && (buffer = outbound.poll()) != null) {
+          batch[batchSize++] = buffer;
+        }
+        if (batchSize == 0) {
+          break;
+        }
+        channel.write(batch, 0, batchSize);
+        int written = 0;
+        while (written < batchSize && !batch[written].hasRemaining()) {
+          written++;
+        }
+        System.arraycopy(batch, written, batch, 0, batchSize - written);
+        Arrays.fill(batch, batchSize - written, batchSize, null);
+        batchSize -= written;
+        if (batchSize > 0) {
+          writePending = true;
+          updateInterest();
+          return;
+        }
+      }
+      writePending = false;
+      updateInterest();
+      if (closeAfterWrite) {
+        close();
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * @return Preface flags accepted for the connection, 0 without preface
+   */
+  int features() {
+    return features;
+  }
+
+  /**
+   * A request was handed to the RequestHandler, stop reading the connection when too many are in
+   * flight (any thread).
+   */
+  void requestStarted() {
+    if (inFlight.incrementAndGet() == MAX_IN_FLIGHT) {
+      loop.execute(this, this::updateInterest);
+    }
+  }
+
+  /**
+   * The reply of a request was queued or the request failed (any thread).
+   */
+  void requestDone() {
+    if (inFlight.decrementAndGet() == MAX_IN_FLIGHT - 1) {
+      loop.execute(this, this::updateInterest);
+    }
+  }
+
+  /**
+   * The processor can not take the frames of stream for now: stop reading the connection until
+   * {@link #resumeReading()} (event loop thread).
+   */
+  void pauseReading() {
+    stalledStreams++;
+    updateInterest();
+  }
+
+  /**
+   * The processor took the frames of a stream paused by {@link #pauseReading()}: read again,
+   * including frames already buffered by the decoder (event loop thread).
+   */
+  void resumeReading() {
+    stalledStreams--;
+    updateInterest();
+    if (!readPaused) {
+      onReadable();
+    }
+  }
+
+  /**
+   * Run task in the event loop thread of the connection (any thread).
+   */
+  void execute(Runnable task) {
+    loop.execute(this, task);
+  }
+
+  /**
+   * Read unless too many requests are in flight or the processor is full, write if frames are
+   * pending (event loop thread).
+   */
+  private void updateInterest() {
+    if (closed) {
+      return;
+    }
+    boolean paused = inFlight.get() >= MAX_IN_FLIGHT || stalledStreams > 0;
+    if (paused != readPaused) {
+      readPaused = paused;
+      if (paused) {
+        counters.increment("connections.paused");
+      } else if (inFrame) {
+        // The rest of the frame was not read on purpose
+        frameStartNanos = System.nanoTime();
+        scheduleEarlier();
+      }
+    }
+    key.interestOps((paused ? 0 : SelectionKey.OP_READ)
+        | (writePending ? SelectionKey.OP_WRITE : 0));
+  }
+
+  /**
+   * Queue a frame of stream and ask the event loop to write it, then to close the stream if close
+   * is true (any thread).
+   */
+  void send(NioStream stream, byte[] token, boolean close) {
+    write(stream.streamId(), token);
+    if (close) {
+      if (multiplexed) {
+        loop.execute(this, () -> closeStream(stream));
+      } else {
+        closeAfterWrite = true;
+      }
+    }
+    scheduleWrite();
+  }
+
+  /**
+   * Queue the last handshake token of stream, written right away unless the client sent early
+   * data (any thread).
+   */
+  void sendLast(NioStream stream, byte[] token) {
+    write(stream.streamId(), token);
+    if ((features & Preface.EARLY_DATA) == 0) {
+      scheduleWrite();
+    }
+  }
+
+  /**
+   * Queue a frame of stream without asking for a write: it goes out with the next frame, the first
+   * reply, in the same write (any thread).
+   */
+  void sendWithNext(NioStream stream, byte[] token) {
+    write(stream.streamId(), token);
+  }
+
+  /**
+   * Queue a frame with the header of the current protocol of the connection (any thread).
+   */
+  private void write(int streamId, byte[] token) {
+    // Header and token stay adjacent in the queue when several threads send
+    synchronized (outbound) {
+      outbound.add(multiplexed ? FrameCodec.header(token.length, streamId)
+          : FrameCodec.header(token.length));
+      outbound.add(ByteBuffer.wrap(token));
+    }
+  }
+
+  private void scheduleWrite() {
+    if (writeScheduled.compareAndSet(false, true)) {
+      loop.execute(this, writeTask);
+    }
+  }
+
+  /**
+   * Close the connection once queued frames are written (any thread).
+   */
+  void finish() {
+    closeAfterWrite = true;
+    scheduleWrite();
+  }
+
+  /**
+   * Close stream after a close frame of the client, or the whole connection if it is not
+   * multiplexed (any thread).
+   */
+  void finish(NioStream stream) {
+    if (multiplexed) {
+      loop.execute(this, () -> closeStream(stream));
+    } else {
+      finish();
+    }
+  }
+
+  /**
+   * Count a plain connection as rejected instead of completed when it is closed (any thread).
+   */
+  void rejected(NioStream stream) {
+    if (multiplexed) {
+      counters.increment("streams.rejected");
+    } else {
+      rejected = true;
+    }
+  }
+
+  /**
+   * Switch from the handshake deadline to the idle deadline once the context is established (any
+   * thread).
+   */
+  void established() {
+    established = true;
+  }
+
+  /**
+   * Open the datagram session of the established context of stream, if negotiated (processing
+   * thread).
+   */
+  void openSession(NioStream stream) throws GSSException {
+    if ((features & Preface.DATAGRAM) != 0) {
+      datagrams.open(stream.sessionId, stream.context(), features);
+    }
+  }
+
+  /**
+   * @return resumption ticket for the admitted client of stream wrapped by its context, null if
+   * not negotiated (processing thread)
+   */
+  byte[] ticket(NioStream stream) throws GSSException {
+    if ((features & Preface.RESUME) == 0) {
+      return null;
+    }
+    counters.increment("resumption.issued");
+    return resumption.issue(stream.context());
+  }
+
+  /**
+   * Close the datagram session of stream, if any, before its context is disposed (processing
+   * thread).
+   */
+  void closeSession(NioStream stream) {
+    if ((features & Preface.DATAGRAM) != 0) {
+      datagrams.close(stream.sessionId, stream.context());
+    }
+  }
+
+  /**
+   * Forget a closed stream and let the processor release it (event loop thread).
+   */
+  private void closeStream(NioStream stream) {
+    if (streams.remove(stream.streamId(), stream)) {
+      processor.closed(stream);
+    }
+  }
+
+  /**
+   * @return earliest deadline of the connection in its current state (event loop thread)
+   */
+  private long deadline() {
+    long deadline = established ? lastActivityNanos + timeouts.idleNanos
+        : createdNanos + timeouts.handshakeNanos;
+    if (inFrame && !readPaused) {
+      deadline = Math.min(deadline, frameStartNanos + timeouts.readNanos);
+    }
+    return deadline;
+  }
+
+  /**
+   * Timer task: close the connection if its deadline has expired, else wait for the deadline
+   * (event loop thread).
+   */
+  private void onTimeout() {
+    if (closed) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (closeAfterWrite) {
+      // The client does not read the last frames
+      close();
+      return;
+    }
+    long deadline = deadline();
+    if (now - deadline < 0) {
+      schedule(deadline);
+      return;
+    }
+    if (inFrame && !readPaused && frameStartNanos + timeouts.readNanos == deadline) {
+      expire("connections.timeout.read");
+    } else if (!established) {
+      expire("connections.timeout.handshake");
+    } else {
+      // Idle: let the client know with a close frame (of stream 0 if multiplexed), then close even
+      // if it is not read
+      counters.increment("connections.idle");
+      write(0, new byte[0]);
+      finish();
+      schedule(now + timeouts.readNanos);
+    }
+  }
+
+  private void schedule(long deadline) {
+    timeoutNanos = deadline;
+    timeout = loop.schedule(this, this::onTimeout, deadline);
+  }
+
+  /**
+   * Move the timeout to the deadline of the connection if it is earlier, the read deadline of a
+   * frame just started (event loop thread).
+   */
+  private void scheduleEarlier() {
+    long deadline = deadline();
+    if (deadline - timeoutNanos < 0) {
+      timeout.cancel();
+      schedule(deadline);
+    }
+  }
+
+  private void expire(String counter) {
+    counted = true;
+    counters.increment(counter);
+    close();
+  }
+
+  /**
+   * Report failure and close the connection (any thread).
+   */
+  void fail(Exception e) {
+    counted = true;
+    counters.increment("connections.failed");
+    System.err.println("Connection with client " + address + " failed: " + e);
+    loop.execute(this::close);
+  }
+
+  /**
+   * Report failure of stream and close it, or the whole connection if it is not multiplexed (any
+   * thread).
+   */
+  void fail(NioStream stream, Exception e) {
+    if (e instanceof FrameRejectedException) {
+      // Payload refused after unwrap
+      counters.increment("frames.rejected." + ((FrameRejectedException) e).getReason());
+    }
+    if (!multiplexed) {
+      fail(e);
+      return;
+    }
+    counters.increment("streams.failed");
+    System.err.println("Stream " + stream.streamId() + " of client " + address + " failed: " + e);
+    send(stream, new byte[0], true);
+  }
+
+  /**
+   * Close the channel and let the processor release the connection (event loop thread).
+   */
+  private void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (!counted && !rejected) {
+      counters.increment("connections.completed");
+    }
+    timeout.cancel();
+    decoder.release();
+    key.cancel();
+    EventLoop.closeQuietly(channel);
+    for (NioStream stream : new ArrayList<>(streams.values())) {
+      processor.closed(stream);
+    }
+    streams.clear();
+  }
+
+}
@@ -0,0 +1,198 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Non-blocking GssServer transport: acceptor threads hand accepted channels round-robin to a
+ * few event loops (socket I/O only) and a FrameProcessor runs the CPU-heavy GSS calls on other
+ * threads.
+ * <p>
+ * A slow or idle client only costs a registered channel and its buffers, it never holds a thread.
+ * <p>
+ * With several acceptors, each acceptor (shard) opens its own listening socket on the same port
+ * with SO_REUSEPORT so that the kernel balances new connections between their accept queues, and
+ * owns its own event loops. All shards share the frame processor and the server credentials. When
+ * SO_REUSEPORT is not available, the acceptors share one listening socket.
+ * <p>
+ * With a Unix domain socket path, one more acceptor (shard "unix") listens on it with its own event
+ * loops: its connections are served like TCP ones, admitted as coming from the loopback address.
+ * <p>
+ * Acceptors close connections refused by the AdmissionController before registering them, GSS
+ * contexts are created by the connections for each of their streams.
+ */
+class NioServer {
+
+  private final int port;
+  private final int backlog;
+  private final int acceptors;
+  private final String unixPath;
+  private final GSSManager manager;
+  private final GSSCredential serverCreds;
+  private final Counters counters;
+  private final Shard[] shards;
+  private final FrameProcessor processor;
+  private final AdmissionController admission;
+  private final Timeouts timeouts;
+  private final DatagramServer datagrams;
+  private final Resumption resumption;
+  private final BufferPool pool = BufferPool.shared();
+
+  NioServer(int port, int backlog, int acceptors, int eventLoops, FrameProcessor processor,
+      AdmissionController admission, GSSManager manager, GSSCredential serverCreds,
+      Counters counters, Timeouts timeouts, DatagramServer datagrams, Resumption resumption,
+      String unixPath) throws IOException {
+    this.port = port;
+    this.backlog = backlog;
+    this.acceptors = acceptors;
+    this.unixPath = unixPath;
+    this.manager = manager;
+    this.serverCreds = serverCreds;
+    this.counters = counters;
+    this.timeouts = timeouts;
+    this.datagrams = datagrams;
+    this.resumption = resumption;
+    this.shards = new Shard[unixPath == null ? acceptors : acceptors + 1];
+    for (int i = 0; i < acceptors; i++) {
+      shards[i] = new Shard(String.valueOf(i + 1), eventLoops);
+    }
+    if (unixPath != null) {
+      shards[acceptors] = new Shard("unix", eventLoops);
+    }
+    this.processor = processor;
+    this.admission = admission;
+  }
+
+  /**
+   * Start event loops and accept connections until all acceptors fail.
+   */
+  void run() throws IOException, InterruptedException {
+    SocketOption<Boolean> reusePort = reusePortOption();
+    ServerSocketChannel shared = null;
+    try {
+      if (acceptors > 1 && reusePort == null) {
+        System.out.println("SO_REUSEPORT is not supported, acceptors share one listening socket");
+      }
+      for (int i = 0; i < acceptors; i++) {
+        if (acceptors == 1 || reusePort == null) {
+          if (shared == null) {
+            shared = open(null);
+          }
+          shards[i].server = shared;
+        } else {
+          shards[i].server = open(reusePort);
+        }
+      }
+      if (unixPath != null) {
+        shards[acceptors].server = UnixSockets.listen(unixPath, backlog);
+      }
+      System.out.println("Serving connections with " + shards.length + " acceptors of "
+          + shards[0].loops.length + " event loops"
+          + (unixPath == null ? "" : ", one of them on " + unixPath));
+
+      Thread[] threads = new Thread[shards.length];
+      for (int i = 0; i < shards.length; i++) {
+        threads[i] = new Thread(shards[i], "gss-acceptor-" + shards[i].id);
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } finally {
+      for (Shard shard : shards) {
+        shard.shutdown();
+      }
+    }
+  }
+
+  private ServerSocketChannel open(SocketOption<Boolean> reusePort) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    if (reusePort != null) {
+      server.setOption(reusePort, true);
+    }
+    server.bind(new InetSocketAddress(port), backlog);
+    return server;
+  }
+
+  /**
+   * @return SO_REUSEPORT option if supported by the runtime (Java 9+) and the platform, else null
+   */
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+          .getField("SO_REUSEPORT").get(null);
+      try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+        return probe.supportedOptions().contains(option) ? option : null;
+      }
+    } catch (ReflectiveOperationException | IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Acceptor thread with its listening socket and its own event loops.
+   */
+  private class Shard implements Runnable {
+
+    private final String id;
+    private final EventLoop[] loops;
+    private final String acceptedCounter;
+    private ServerSocketChannel server;
+
+    Shard(String id, int eventLoops) throws IOException {
+      this.id = id;
+      this.loops = new EventLoop[eventLoops];
+      for (int i = 0; i < eventLoops; i++) {
+        loops[i] = new EventLoop(timeouts);
+      }
+      this.acceptedCounter = "shard." + id + ".accepted";
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < loops.length; i++) {
+        Thread thread = new Thread(loops[i], "gss-event-loop-" + id + "-" + (i + 1));
+        thread.setDaemon(true);
+        thread.start();
+      }
+
+      // The acceptor stays in blocking mode: it has nothing else to do than accepting
+      int next = 0;
+      try {
+        while (true) {
+          SocketChannel channel = server.accept();
+          counters.increment("connections.accepted");
+          counters.increment(acceptedCounter);
+          if (!admission.admitAddress(UnixSockets.inetAddress(channel))) {
+            EventLoop.closeQuietly(channel);
+            continue;
+          }
+          EventLoop loop = loops[Math.floorMod(next++, loops.length)];
+          loop.register(channel, key ->
+              new NioConnection(key, loop, processor, () -> manager.createContext(serverCreds),
+                  admission, counters, timeouts, pool, datagrams, resumption));
+        }
+      } catch (IOException e) {
+        System.err.println("Acceptor " + id + " stopped: " + e);
+      }
+    }
+
+    void shutdown() {
+      if (server != null) {
+        EventLoop.closeQuietly(server);
+      }
+      for (EventLoop loop : loops) {
+        loop.shutdown();
+      }
+    }
+  }
+
+}
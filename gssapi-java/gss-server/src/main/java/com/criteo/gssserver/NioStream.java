@@ -0,0 +1,232 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.criteo.gssutils.*;
+
+/**
+ * GSS context served on a NioConnection: the only one of a plain connection, or one of the
+ * streams of a multiplexed connection (Preface.MULTIPLEX).
+ * <p>
+ * Frame processors only see streams. Closing, rejecting or failing the stream of a plain
+ * connection closes the connection, while a stream of a multiplexed connection only closes itself
+ * with a close frame of its id: the other streams of the connection go on.
+ */
+class NioStream {
+
+  private static final AtomicLong ids = new AtomicLong();
+
+  private final long id = ids.incrementAndGet();
+  private final NioConnection connection;
+  private final int streamId;
+  // Replaced by its fast channel once established (Preface.FAST)
+  private volatile GSSContext context;
+  private final Compression compression;
+  private Object attachment;
+  private volatile boolean rejected;
+  // Requests whose replies are not queued yet, a close frame of the client waits for them
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile boolean finishing;
+  private final AtomicBoolean finished = new AtomicBoolean();
+
+  // Only used by the event loop thread
+  boolean firstTokenRead;
+  // Datagram session id (Preface.DATAGRAM, Preface.FAST), set by the event loop before the first
+  // token is processed
+  long sessionId;
+
+  NioStream(NioConnection connection, int streamId, GSSContext context) {
+    this.connection = connection;
+    this.streamId = streamId;
+    this.context = context;
+    this.compression =
+        (connection.features() & Preface.COMPRESS) != 0 ? new Compression() : null;
+  }
+
+  /**
+   * @return id of the stream unique in the server, to route its tasks
+   */
+  long id() {
+    return id;
+  }
+
+  /**
+   * @return id of the stream in its connection, 0 for a plain connection
+   */
+  int streamId() {
+    return streamId;
+  }
+
+  /**
+   * @return GSS context of the stream, to be used by one thread at a time
+   */
+  GSSContext context() {
+    return context;
+  }
+
+  /**
+   * @return compression of the payloads of the stream (Preface.COMPRESS), null without
+   */
+  Compression compression() {
+    return compression;
+  }
+
+  /**
+   * Dispose the context and free the compression state of the closed stream (processing thread).
+   */
+  void dispose() throws GSSException {
+    connection.closeSession(this);
+    if (compression != null) {
+      compression.end();
+    }
+    context.dispose();
+  }
+
+  /**
+   * @return object attached by the frame processor (event loop thread)
+   */
+  Object attachment() {
+    return attachment;
+  }
+
+  void attach(Object attachment) {
+    this.attachment = attachment;
+  }
+
+  /**
+   * Give back the buffer of a frame passed to the processor, once its token is consumed (any
+   * thread).
+   */
+  void release(ByteBuffer frame) {
+    connection.release(frame);
+  }
+
+  /**
+   * Queue a frame of this stream, then close the stream if close is true (any thread).
+   */
+  void send(byte[] token, boolean close) {
+    connection.send(this, token, close);
+  }
+
+  /**
+   * Queue the last handshake token of the stream: with Preface.EARLY_DATA it is only written with
+   * the next frame, the first reply (any thread).
+   */
+  void sendLast(byte[] token) {
+    connection.sendLast(this, token);
+  }
+
+  /**
+   * Queue a frame of the stream written with the next one, the first reply (any thread).
+   */
+  void sendWithNext(byte[] token) {
+    connection.sendWithNext(this, token);
+  }
+
+  /**
+   * Stop reading the connection of the stream until {@link #resumeReading()}, when the processor
+   * has no room for its frames (event loop thread).
+   */
+  void pauseReading() {
+    connection.pauseReading();
+  }
+
+  void resumeReading() {
+    connection.resumeReading();
+  }
+
+  /**
+   * Run task in the event loop thread of the stream (any thread).
+   */
+  void execute(Runnable task) {
+    connection.execute(task);
+  }
+
+  /**
+   * Close the stream after a close frame of the client, once the replies of its requests are
+   * queued and written: requests still in the handler or being wrapped delay the close (any
+   * thread).
+   */
+  void finish() {
+    finishing = true;
+    if (requests.get() == 0) {
+      finishNow();
+    }
+  }
+
+  private void finishNow() {
+    if (finished.compareAndSet(false, true)) {
+      connection.finish(this);
+    }
+  }
+
+  /**
+   * Count the stream as rejected, the processor ignores its next frames and sends it a close frame
+   * (any thread).
+   */
+  void reject() {
+    rejected = true;
+    connection.closeSession(this);
+    connection.rejected(this);
+  }
+
+  boolean isRejected() {
+    return rejected;
+  }
+
+  /**
+   * The context is established: the connection switches from the handshake deadline to the idle
+   * deadline, the stream to its fast channel if negotiated, and opens the datagram session of the
+   * stream if any (processing thread).
+   */
+  void established() throws GSSException {
+    connection.established();
+    if ((features() & Preface.FAST) != 0) {
+      context = SessionKeyContext.of(context, sessionId);
+    }
+    connection.openSession(this);
+  }
+
+  /**
+   * The client principal is admitted: return the resumption ticket it asked for, to send after
+   * the last handshake token with {@link #sendWithNext(byte[])}, else null (processing thread).
+   */
+  byte[] admitted() throws GSSException {
+    return connection.ticket(this);
+  }
+
+  /**
+   * @return Preface flags accepted for the connection, for Payloads.handle
+   */
+  int features() {
+    return connection.features();
+  }
+
+  /**
+   * A wrapped message is handed to the RequestHandler, {@link #requestDone()} must follow once its
+   * reply is sent or it failed (any thread).
+   */
+  void requestStarted() {
+    requests.incrementAndGet();
+    connection.requestStarted();
+  }
+
+  void requestDone() {
+    connection.requestDone();
+    if (requests.decrementAndGet() == 0 && finishing) {
+      finishNow();
+    }
+  }
+
+  /**
+   * Report failure and close the stream (any thread).
+   */
+  void fail(Exception e) {
+    connection.fail(this, e);
+  }
+
+}
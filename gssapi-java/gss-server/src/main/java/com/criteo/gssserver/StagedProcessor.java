@@ -0,0 +1,294 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Process frames through a staged (SEDA) pipeline: read (event loops) -> unwrap -> handle ->
+ * wrap -> write, each stage with its own threads and bounded lock-free queues.
+ * <p>
+ * The handle stage only calls the RequestHandler: the task moves on to the wrap stage when the
+ * reply stage completes, without holding a handle thread meanwhile. On pipelined connections,
+ * replies thus reach the wrap stage in the order they complete, with their request ids. Messages
+ * batched in one payload are handled together and their replies wrapped together (Payloads).
+ * Compressed payloads are inflated in the unwrap stage and deflated in the wrap stage. A reply has
+ * the protection of its request (Protection).
+ * <p>
+ * Every stage routes the tasks of a stream to the same thread, so frames of one stream keep their
+ * order from one stage to the next (as GSSContext sequence numbers require) while different
+ * streams, of one multiplexed connection or of different connections, are processed in parallel
+ * in every stage. The unwrap stage also runs
+ * acceptSecContext during context establishment, and rejects client principals over their
+ * handshake rate.
+ * <p>
+ * Unwrap and wrap of one stream may run at the same time in two stages, so calls to the GSS
+ * context are synchronized on it.
+ * <p>
+ * Event loops never wait for room in the unwrap stage: a frame refused by a full queue waits in
+ * its stream and the connection stops reading until the stage calls back (Stage.trySubmit). The
+ * following stages push back on the previous ones by waiting.
+ */
+class StagedProcessor implements FrameProcessor {
+
+  private static final boolean verbose = false;
+
+  private final Stage<Task> unwrap;
+  private final Stage<Task> handle;
+  private final Stage<Task> wrap;
+  private final Stage<Task> write;
+  private final RequestHandler requestHandler;
+  private final AdmissionController admission;
+
+  /**
+   * Unit of work flowing through the stages.
+   */
+  private static class Task {
+
+    final NioStream stream;
+    ByteBuffer frame;
+    byte[] data;
+    MessageProp prop;
+    GSSName source;
+    boolean close;
+    // Last handshake token, held back until the first reply with early data
+    boolean last;
+    // Resumption ticket, always written with the first reply
+    boolean withNext;
+    // Payload handed to the RequestHandler
+    boolean request;
+
+    Task(NioStream stream, byte[] data) {
+      this.stream = stream;
+      this.data = data;
+    }
+  }
+
+  StagedProcessor(int unwrapThreads, int handleThreads, int wrapThreads, int writeThreads,
+      int capacity, RequestHandler requestHandler, AdmissionController admission) {
+    this.requestHandler = requestHandler;
+    this.admission = admission;
+    this.unwrap = new Stage<>("unwrap", unwrapThreads, capacity, this::unwrap);
+    this.handle = new Stage<>("handle", handleThreads, capacity, this::handle);
+    this.wrap = new Stage<>("wrap", wrapThreads, capacity, this::wrap);
+    this.write = new Stage<>("write", writeThreads, capacity, this::write);
+  }
+
+  StagedProcessor start() {
+    for (Stage<Task> stage : stages()) {
+      stage.start();
+    }
+    return this;
+  }
+
+  void shutdown() {
+    for (Stage<Task> stage : stages()) {
+      stage.shutdown();
+    }
+  }
+
+  List<Stage<Task>> stages() {
+    return Arrays.asList(unwrap, handle, wrap, write);
+  }
+
+  @Override
+  public void process(NioStream stream, ByteBuffer frame) {
+    Task task = new Task(stream, null);
+    task.frame = frame;
+    submit(stream, task);
+  }
+
+  @Override
+  public void closed(NioStream stream) {
+    // Queued behind the last frames of the stream in the unwrap stage
+    submit(stream, new Task(stream, null));
+  }
+
+  /**
+   * Queue task in the unwrap stage without blocking the event loop. When the queue is full, the
+   * task waits in the stream (its attachment) with the next ones, and the connection stops reading
+   * until the unwrap worker has room again (event loop thread).
+   */
+  private void submit(NioStream stream, Task task) {
+    @SuppressWarnings("unchecked")
+    Deque<Task> waiting = (Deque<Task>) stream.attachment();
+    if (waiting == null) {
+      if (unwrap.trySubmit(stream.id(), task, () -> stream.execute(() -> drain(stream)))) {
+        return;
+      }
+      waiting = new ArrayDeque<>();
+      stream.attach(waiting);
+      stream.pauseReading();
+    }
+    waiting.add(task);
+  }
+
+  /**
+   * Queue the tasks waiting in stream, then read its connection again if all of them are queued
+   * (event loop thread).
+   */
+  private void drain(NioStream stream) {
+    @SuppressWarnings("unchecked")
+    Deque<Task> waiting = (Deque<Task>) stream.attachment();
+    if (waiting == null) {
+      return;
+    }
+    while (!waiting.isEmpty()) {
+      if (!unwrap.trySubmit(stream.id(), waiting.peek(),
+          () -> stream.execute(() -> drain(stream)))) {
+        return;
+      }
+      waiting.poll();
+    }
+    stream.attach(null);
+    stream.resumeReading();
+  }
+
+  private void unwrap(Task task) {
+    GSSContext context = task.stream.context();
+    ByteBuffer frame = task.frame;
+    task.frame = null;
+    try {
+      synchronized (context) {
+        if (frame == null) {
+          task.stream.dispose();
+          return;
+        }
+        int length = frame.remaining();
+        if (!context.isEstablished()) {
+          if (length == 0) {
+            if (verbose) {
+              System.out.println("skipping zero length token");
+            }
+            return;
+          }
+          byte[] token = context.acceptSecContext(frame.array(), 0, length);
+          if (context.isEstablished()) {
+            System.out.println("Context Established! Client principal is "
+                + context.getSrcName());
+            task.stream.established();
+          }
+          if (token != null) {
+            task.data = token;
+            task.last = context.isEstablished();
+            write.submit(task.stream.id(), task);
+          }
+          if (context.isEstablished() && !admission.admitPrincipal(context.getSrcName())) {
+            // Close frame after the last handshake token
+            task.stream.reject();
+            Task reject = new Task(task.stream, new byte[0]);
+            reject.close = true;
+            write.submit(task.stream.id(), reject);
+          } else if (context.isEstablished()) {
+            byte[] ticket = task.stream.admitted();
+            if (ticket != null) {
+              Task issue = new Task(task.stream, ticket);
+              issue.withNext = true;
+              write.submit(task.stream.id(), issue);
+            }
+          }
+          return;
+        }
+        if (task.stream.isRejected()) {
+          return;
+        }
+        if (length == 0) {
+          // Close frame: the stream closes once the replies of its requests still in the
+          // handle and wrap stages are written
+          task.stream.finish();
+          return;
+        }
+        task.prop = new MessageProp(0, false);
+        task.data = Protection.unprotect(context, frame.array(), 0, length, task.prop, mic(task));
+        task.source = context.getSrcName();
+      }
+      Compression compression = task.stream.compression();
+      if (compression != null) {
+        task.data = compression.inflate(task.data);
+      }
+      task.request = true;
+      task.stream.requestStarted();
+      handle.submit(task.stream.id(), task);
+    } catch (GSSException | IOException e) {
+      task.stream.fail(e);
+    } finally {
+      if (frame != null) {
+        task.stream.release(frame);
+      }
+    }
+  }
+
+  private void handle(Task task) {
+    if (verbose) {
+      System.out.println("Received data \"" + new String(task.data, StandardCharsets.UTF_8) + "\"");
+    }
+    CompletionStage<byte[]> replied;
+    try {
+      replied = Payloads.handle(requestHandler, task.data, task.source, task.stream.features());
+    } catch (IOException | RuntimeException e) {
+      // Refused batch, or a handler throwing instead of failing its stage
+      task.stream.requestDone();
+      task.stream.fail(e);
+      return;
+    }
+    replied.whenComplete((reply, error) -> {
+      if (error != null) {
+        task.stream.requestDone();
+        task.stream.fail(error instanceof Exception ? (Exception) error : new Exception(error));
+        return;
+      }
+      // Pipelined replies reach the wrap stage in completion order
+      task.data = reply;
+      wrap.submit(task.stream.id(), task);
+    });
+  }
+
+  private void wrap(Task task) {
+    GSSContext context = task.stream.context();
+    try {
+      Compression compression = task.stream.compression();
+      if (compression != null) {
+        task.data = compression.deflate(task.data);
+      }
+      task.prop.setQOP(0);
+      synchronized (context) {
+        task.data = Protection.protect(context, task.data, task.prop, mic(task));
+      }
+      write.submit(task.stream.id(), task);
+    } catch (GSSException | IOException | RuntimeException e) {
+      task.stream.requestDone();
+      task.stream.fail(e);
+    }
+  }
+
+  private void write(Task task) {
+    if (task.last) {
+      task.stream.sendLast(task.data);
+    } else if (task.withNext) {
+      task.stream.sendWithNext(task.data);
+    } else {
+      task.stream.send(task.data, task.close);
+    }
+    if (task.request) {
+      task.stream.requestDone();
+    }
+  }
+
+  private static boolean mic(Task task) {
+    return (task.stream.features() & Preface.INTEGRITY) != 0;
+  }
+
+  @Override
+  public String toString() {
+    return stages().toString();
+  }
+
+}
@@ -0,0 +1,55 @@
+package com.criteo.gssserver;
+
+import java.util.concurrent.TimeUnit;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Deadlines of a server connection, so that neither a stalled client nor a slowloris sending one
+ * byte now and then holds a connection forever:
+ * <p>
+ * - handshake: context establishment must complete within gss.server.handshakeTimeoutSeconds
+ * (default 10) of the connection.
+ * - read: a frame must be received completely within gss.server.readTimeoutSeconds (default 10)
+ * of its first byte.
+ * - idle: a connection without any frame for gss.server.idleTimeoutSeconds (default 60) is sent a
+ * close frame and closed.
+ * <p>
+ * Deadlines are checked by hashed timing wheels (HashedTimingWheel) ticking every
+ * gss.server.timerTickMillis (default 100).
+ */
+class Timeouts {
+
+  private static final int WHEEL_SIZE = 512;
+
+  final long handshakeNanos;
+  final long readNanos;
+  final long idleNanos;
+  final long tickMillis;
+
+  Timeouts(long handshakeMillis, long readMillis, long idleMillis, long tickMillis) {
+    this.handshakeNanos = TimeUnit.MILLISECONDS.toNanos(handshakeMillis);
+    this.readNanos = TimeUnit.MILLISECONDS.toNanos(readMillis);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    this.tickMillis = tickMillis;
+  }
+
+  /**
+   * @return timeouts configured by system properties
+   */
+  static Timeouts fromProperties() {
+    return new Timeouts(
+        TimeUnit.SECONDS.toMillis(Integer.getInteger("gss.server.handshakeTimeoutSeconds", 10)),
+        TimeUnit.SECONDS.toMillis(Integer.getInteger("gss.server.readTimeoutSeconds", 10)),
+        TimeUnit.SECONDS.toMillis(Integer.getInteger("gss.server.idleTimeoutSeconds", 60)),
+        Integer.getInteger("gss.server.timerTickMillis", 100));
+  }
+
+  /**
+   * @return timing wheel with the tick of these timeouts, not started
+   */
+  HashedTimingWheel newWheel() {
+    return new HashedTimingWheel(tickMillis, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+  }
+
+}
@@ -0,0 +1,162 @@
+package com.criteo.gssserver;
+
+import org.ietf.jgss.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Process the frames of each stream on a shared pool of workers, one frame at a time per stream
+ * (SerialExecutor attached to the stream): acceptSecContext until the context is established, then
+ * unwrap, then wrap of the RequestHandler reply once it is completed. Streams of a multiplexed
+ * connection thus make progress independently. A frame of length 0 after establishment closes the
+ * stream. Client principals over their handshake rate are rejected once the context is
+ * established. On pipelined connections, the next requests are unwrapped while the handler runs
+ * and replies are wrapped with their request ids as they complete. Payloads of batched connections
+ * are split into messages, and their replies are wrapped together (Payloads). Payloads of
+ * compressed connections are inflated after unwrap and deflated before wrap, in the same serial
+ * tasks so that they follow the order of the tokens. A reply has the protection of its request:
+ * integrity only requests get integrity only replies (Protection). Unprotect and protect are
+ * synchronized on the context, also used by the datagram server of the session.
+ */
+class WorkerPoolProcessor implements FrameProcessor {
+
+  private static final boolean verbose = false;
+
+  private final Executor workers;
+  private final RequestHandler requestHandler;
+  private final AdmissionController admission;
+
+  WorkerPoolProcessor(Executor workers, RequestHandler requestHandler,
+      AdmissionController admission) {
+    this.workers = workers;
+    this.requestHandler = requestHandler;
+    this.admission = admission;
+  }
+
+  @Override
+  public void process(NioStream stream, ByteBuffer frame) {
+    Executor serial = serial(stream);
+    serial.execute(() -> exchange(stream, serial, frame));
+  }
+
+  @Override
+  public void closed(NioStream stream) {
+    serial(stream).execute(() -> {
+      try {
+        stream.dispose();
+      } catch (GSSException e) {
+        // nothing to do
+      }
+    });
+  }
+
+  private Executor serial(NioStream stream) {
+    Executor serial = (Executor) stream.attachment();
+    if (serial == null) {
+      serial = new SerialExecutor(workers);
+      stream.attach(serial);
+    }
+    return serial;
+  }
+
+  private void exchange(NioStream stream, Executor serial, ByteBuffer frame) {
+    GSSContext context = stream.context();
+    byte[] token = frame.array();
+    int length = frame.remaining();
+    try {
+      if (stream.isRejected()) {
+        return;
+      }
+      if (!context.isEstablished()) {
+        if (length == 0) {
+          if (verbose) {
+            System.out.println("skipping zero length token");
+          }
+          return;
+        }
+        token = context.acceptSecContext(token, 0, length);
+        if (token != null && context.isEstablished()) {
+          stream.sendLast(token);
+        } else if (token != null) {
+          stream.send(token, false);
+        }
+        if (context.isEstablished()) {
+          System.out.println("Context Established! Client principal is " + context.getSrcName());
+          stream.established();
+          if (!admission.admitPrincipal(context.getSrcName())) {
+            stream.reject();
+            stream.send(new byte[0], true);
+          } else {
+            byte[] ticket = stream.admitted();
+            if (ticket != null) {
+              stream.sendWithNext(ticket);
+            }
+          }
+        }
+        return;
+      }
+      if (length == 0) {
+        // Closed once the replies still in the handler are sent
+        stream.finish();
+        return;
+      }
+
+      MessageProp prop = new MessageProp(0, false);
+      boolean mic = (stream.features() & Preface.INTEGRITY) != 0;
+      byte[] payload;
+      // The datagram server of the session may unprotect on the same context
+      synchronized (context) {
+        payload = Protection.unprotect(context, token, 0, length, prop, mic);
+      }
+      Compression compression = stream.compression();
+      if (compression != null) {
+        payload = compression.inflate(payload);
+      }
+      if (verbose) {
+        System.out.println("Received data \"" + new String(payload, "UTF-8") + "\"");
+      }
+      // The worker is released while the handler runs, the reply is wrapped in order with the
+      // other tasks of the stream: pipelined replies are wrapped in the order they complete
+      CompletionStage<byte[]> replied;
+      try {
+        replied = Payloads.handle(requestHandler, payload, context.getSrcName(), stream.features());
+      } catch (RuntimeException e) {
+        // A handler throwing instead of failing its stage
+        stream.fail(e);
+        return;
+      }
+      stream.requestStarted();
+      replied.whenComplete((reply, error) -> {
+        if (error != null) {
+          stream.requestDone();
+          stream.fail(error instanceof Exception ? (Exception) error : new Exception(error));
+          return;
+        }
+        serial.execute(() -> {
+          try {
+            byte[] output = compression != null ? compression.deflate(reply) : reply;
+            prop.setQOP(0);
+            byte[] protectedReply;
+            synchronized (context) {
+              protectedReply = Protection.protect(context, output, prop, mic);
+            }
+            stream.send(protectedReply, false);
+          } catch (GSSException | IOException | RuntimeException e) {
+            stream.fail(e);
+          } finally {
+            stream.requestDone();
+          }
+        });
+      });
+    } catch (GSSException | IOException e) {
+      stream.fail(e);
+    } finally {
+      stream.release(frame);
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+package com.criteo.gssserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.ietf.jgss.*;
+import java.net.InetAddress;
+import org.junit.Test;
+
+import com.criteo.gssutils.*;
+
+public class AdmissionControllerTest {
+
+  private final Counters counters = new Counters();
+
+  @Test
+  public void testRejectAddressOverItsRate() throws Exception {
+    AdmissionController admission = new AdmissionController(new TokenBuckets<>(1, 2, 100),
+        new TokenBuckets<>(0, 1, 100), new TokenBuckets<>(0, 1, 1), counters);
+    InetAddress client = InetAddress.getByName("10.0.0.1");
+
+    assertTrue(admission.admitAddress(client));
+    assertTrue(admission.admitAddress(client));
+    assertFalse(admission.admitAddress(client));
+    // Other addresses have their own bucket
+    assertTrue(admission.admitAddress(InetAddress.getByName("10.0.0.2")));
+    assertEquals(1, counters.get("admission.rejected.ip"));
+    assertEquals(1, counters.get("connections.rejected"));
+  }
+
+  @Test
+  public void testRejectHandshakesOverTheGlobalRate() throws Exception {
+    AdmissionController admission = new AdmissionController(new TokenBuckets<>(0, 1, 100),
+        new TokenBuckets<>(0, 1, 100), new TokenBuckets<>(1, 1, 1), counters);
+
+    assertTrue(admission.admitAddress(InetAddress.getByName("10.0.0.1")));
+    assertFalse(admission.admitAddress(InetAddress.getByName("10.0.0.2")));
+    assertEquals(1, counters.get("admission.rejected.handshake"));
+  }
+
+  @Test
+  public void testRejectPrincipalOverItsRate() throws Exception {
+    AdmissionController admission = new AdmissionController(new TokenBuckets<>(0, 1, 100),
+        new TokenBuckets<>(1, 1, 100), new TokenBuckets<>(0, 1, 1), counters);
+    GSSManager manager = GSSManager.getInstance();
+    GSSName alice = manager.createName("alice@EXAMPLE.COM", GSSName.NT_USER_NAME);
+    GSSName bob = manager.createName("bob@EXAMPLE.COM", GSSName.NT_USER_NAME);
+
+    assertTrue(admission.admitPrincipal(alice));
+    assertFalse(admission.admitPrincipal(alice));
+    assertTrue(admission.admitPrincipal(bob));
+    assertEquals(1, counters.get("admission.rejected.principal"));
+    assertEquals(1, counters.get("connections.rejected"));
+  }
+
+  @Test
+  public void testNoLimitByDefault() throws Exception {
+    AdmissionController admission = AdmissionController.fromProperties(counters);
+    InetAddress client = InetAddress.getByName("10.0.0.1");
+    GSSName alice = GSSManager.getInstance().createName("alice@EXAMPLE.COM",
+        GSSName.NT_USER_NAME);
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(admission.admitAddress(client));
+      assertTrue(admission.admitPrincipal(alice));
+    }
+    assertEquals(0, counters.get("connections.rejected"));
+  }
+
+}
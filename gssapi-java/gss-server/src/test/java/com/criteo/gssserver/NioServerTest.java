@@ -0,0 +1,111 @@
+package com.criteo.gssserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.ietf.jgss.*;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.criteo.gssutils.*;
+
+/**
+ * Deadlines of NioServer connections against clients which stall, over loopback. Contexts are
+ * only created once a whole frame is read, so no Kerberos setup is needed.
+ */
+public class NioServerTest {
+
+  private static final long HANDSHAKE_MILLIS = 1500;
+  private static final long READ_MILLIS = 300;
+
+  private final Counters counters = new Counters();
+  private ExecutorService workers;
+  private int port;
+
+  @Before
+  public void startServer() throws Exception {
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    workers = Executors.newFixedThreadPool(2);
+    AdmissionController admission = AdmissionController.fromProperties(counters);
+    RequestHandler handler = (request, source) -> CompletableFuture.completedFuture(request);
+    NioServer server = new NioServer(port, 50, 1, 1,
+        new WorkerPoolProcessor(workers, handler, admission), admission, GSSManager.getInstance(),
+        null, counters, new Timeouts(HANDSHAKE_MILLIS, READ_MILLIS, 60000, 20), null, null, null);
+    Thread thread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException | InterruptedException e) {
+        System.err.println("Test server stopped: " + e);
+      }
+    }, "nio-server-test");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @After
+  public void stopWorkers() {
+    workers.shutdown();
+  }
+
+  @Test
+  public void testStalledFrameClosedAtReadDeadline() throws Exception {
+    try (Socket socket = connect()) {
+      long start = System.nanoTime();
+      // Slowloris: a frame header announcing bytes which never come
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(100);
+      out.flush();
+
+      assertEquals(-1, socket.getInputStream().read());
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("closed after " + elapsed + " ms",
+          elapsed >= READ_MILLIS - 50 && elapsed < HANDSHAKE_MILLIS);
+      assertEquals(1, counters.get("connections.timeout.read"));
+    }
+  }
+
+  @Test
+  public void testSilentClientClosedAtHandshakeDeadline() throws Exception {
+    try (Socket socket = connect()) {
+      long start = System.nanoTime();
+
+      assertEquals(-1, socket.getInputStream().read());
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("closed after " + elapsed + " ms", elapsed >= HANDSHAKE_MILLIS - 50);
+      assertEquals(1, counters.get("connections.timeout.handshake"));
+    }
+  }
+
+  /**
+   * @return socket connected to the server once it listens, with a read timeout far above the
+   * deadlines
+   */
+  private Socket connect() throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (true) {
+      try {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(10000);
+        return socket;
+      } catch (ConnectException e) {
+        if (System.nanoTime() - deadline > 0) {
+          throw e;
+        }
+        Thread.sleep(20);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,328 @@
+package com.criteo.gssutils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import org.ietf.jgss.ChannelBinding;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Context protecting messages with AES-GCM under one key per direction, set by the subclass once
+ * established: resumed connections (ResumedContext) and fast channels (SessionKeyContext).
+ * <p>
+ * Tokens start with the id 0x06 (neither a MIC of Protection nor a Kerberos token), a flags byte
+ * (1 encrypted, 2 MIC) and the big-endian sequence number of the sender, which is the nonce of
+ * GCM and is authenticated with the token. Wrap tokens without privacy and MIC tokens carry the
+ * GCM tag of the message in the clear. Received sequence numbers are checked by a SequenceWindow.
+ * <p>
+ * Each direction has its own Cipher, only initialized with a new nonce for every token: the AES key
+ * schedule of a Cipher is computed again only when its key changes. Not thread safe.
+ */
+abstract class AeadContext implements GSSContext {
+
+  private static final byte TOKEN_ID = 6;
+  private static final byte CONF = 1;
+  private static final byte MIC = 2;
+  private static final int HEADER_BYTES = 10;
+  private static final int TAG_BYTES = 16;
+  private static final int TAG_BITS = TAG_BYTES * 8;
+
+  private SecretKey sendKey;
+  private SecretKey receiveKey;
+  private Cipher sendCipher;
+  private Cipher receiveCipher;
+  private long sendSequence;
+  private final SequenceWindow received = new SequenceWindow(false);
+  private boolean established;
+
+  /**
+   * Establish the context with its keys.
+   */
+  void establish(SecretKey sendKey, SecretKey receiveKey) throws GSSException {
+    try {
+      sendCipher = Cipher.getInstance("AES/GCM/NoPadding");
+      receiveCipher = Cipher.getInstance("AES/GCM/NoPadding");
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    this.sendKey = sendKey;
+    this.receiveKey = receiveKey;
+    established = true;
+  }
+
+  @Override
+  public int getWrapSizeLimit(int qop, boolean confReq, int maxTokenSize) {
+    return Math.max(0, maxTokenSize - HEADER_BYTES - TAG_BYTES);
+  }
+
+  @Override
+  public byte[] wrap(byte[] inBuf, int offset, int len, MessageProp msgProp)
+      throws GSSException {
+    boolean conf = msgProp.getPrivacy();
+    byte[] token = new byte[HEADER_BYTES + len + TAG_BYTES];
+    try {
+      seal(token, conf ? CONF : 0);
+      if (conf) {
+        sendCipher.doFinal(inBuf, offset, len, token, HEADER_BYTES);
+      } else {
+        sendCipher.updateAAD(inBuf, offset, len);
+        System.arraycopy(inBuf, offset, token, HEADER_BYTES, len);
+        sendCipher.doFinal(token, HEADER_BYTES + len);
+      }
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    msgProp.setQOP(0);
+    return token;
+  }
+
+  @Override
+  public byte[] unwrap(byte[] inBuf, int offset, int len, MessageProp msgProp)
+      throws GSSException {
+    int flags = open(inBuf, offset, len);
+    if (flags == MIC) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    int end = offset + len;
+    byte[] message;
+    try {
+      if (flags == CONF) {
+        message = receiveCipher.doFinal(inBuf, offset + HEADER_BYTES, len - HEADER_BYTES);
+      } else {
+        receiveCipher.updateAAD(inBuf, offset + HEADER_BYTES, len - HEADER_BYTES - TAG_BYTES);
+        receiveCipher.doFinal(inBuf, end - TAG_BYTES, TAG_BYTES);
+        message = Arrays.copyOfRange(inBuf, offset + HEADER_BYTES, end - TAG_BYTES);
+      }
+    } catch (AEADBadTagException e) {
+      throw new GSSException(GSSException.BAD_MIC);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    msgProp.setPrivacy(flags == CONF);
+    msgProp.setQOP(0);
+    received.received(sequence(inBuf, offset), msgProp);
+    return message;
+  }
+
+  @Override
+  public byte[] getMIC(byte[] inMsg, int offset, int len, MessageProp msgProp)
+      throws GSSException {
+    byte[] token = new byte[HEADER_BYTES + TAG_BYTES];
+    try {
+      seal(token, MIC);
+      sendCipher.updateAAD(inMsg, offset, len);
+      sendCipher.doFinal(token, HEADER_BYTES);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    msgProp.setQOP(0);
+    return token;
+  }
+
+  @Override
+  public void verifyMIC(byte[] inTok, int tokOffset, int tokLen, byte[] inMsg, int msgOffset,
+      int msgLen, MessageProp msgProp) throws GSSException {
+    if (tokLen != HEADER_BYTES + TAG_BYTES || open(inTok, tokOffset, tokLen) != MIC) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    try {
+      receiveCipher.updateAAD(inMsg, msgOffset, msgLen);
+      receiveCipher.doFinal(inTok, tokOffset + HEADER_BYTES, TAG_BYTES);
+    } catch (AEADBadTagException e) {
+      throw new GSSException(GSSException.BAD_MIC);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    msgProp.setPrivacy(false);
+    msgProp.setQOP(0);
+    received.received(sequence(inTok, tokOffset), msgProp);
+  }
+
+  /**
+   * Write the header of a new token and init the send cipher to encrypt it, with the header as
+   * authenticated data.
+   */
+  private void seal(byte[] token, byte flags) throws GeneralSecurityException, GSSException {
+    checkEstablished();
+    long sequence = sendSequence++;
+    ByteBuffer.wrap(token).put(TOKEN_ID).put(flags).putLong(sequence);
+    sendCipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, iv(sequence)));
+    sendCipher.updateAAD(token, 0, HEADER_BYTES);
+  }
+
+  /**
+   * Check the header of a received token and init the receive cipher to decrypt it.
+   *
+   * @return flags of the token
+   */
+  private int open(byte[] token, int offset, int len) throws GSSException {
+    checkEstablished();
+    if (len < HEADER_BYTES + TAG_BYTES || token[offset] != TOKEN_ID
+        || token[offset + 1] < 0 || token[offset + 1] > MIC) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    long sequence = sequence(token, offset);
+    try {
+      receiveCipher.init(Cipher.DECRYPT_MODE, receiveKey,
+          new GCMParameterSpec(TAG_BITS, iv(sequence)));
+      receiveCipher.updateAAD(token, offset, HEADER_BYTES);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    return token[offset + 1];
+  }
+
+  private static long sequence(byte[] token, int offset) {
+    return ByteBuffer.wrap(token, offset + 2, 8).getLong();
+  }
+
+  private static byte[] iv(long sequence) {
+    return ByteBuffer.allocate(12).putInt(0).putLong(sequence).array();
+  }
+
+  private void checkEstablished() throws GSSException {
+    if (!established) {
+      throw new GSSException(GSSException.NO_CONTEXT);
+    }
+  }
+
+  static GSSException failure(GeneralSecurityException e) {
+    return new GSSException(GSSException.FAILURE, -1, e.toString());
+  }
+
+  @Override
+  public boolean isEstablished() {
+    return established;
+  }
+
+  @Override
+  public void dispose() throws GSSException {
+    established = false;
+    sendKey = null;
+    receiveKey = null;
+  }
+
+  @Override
+  public boolean isProtReady() {
+    return established;
+  }
+
+  @Override
+  public boolean isTransferable() {
+    return false;
+  }
+
+  @Override
+  public boolean getReplayDetState() {
+    return true;
+  }
+
+  @Override
+  public boolean getSequenceDetState() {
+    return true;
+  }
+
+  @Override
+  public boolean getConfState() {
+    return true;
+  }
+
+  @Override
+  public boolean getIntegState() {
+    return true;
+  }
+
+  @Override
+  public boolean getAnonymityState() {
+    return false;
+  }
+
+  // The keys decide, requests of the application are ignored
+
+  @Override
+  public void requestMutualAuth(boolean state) {
+  }
+
+  @Override
+  public void requestReplayDet(boolean state) {
+  }
+
+  @Override
+  public void requestSequenceDet(boolean state) {
+  }
+
+  @Override
+  public void requestCredDeleg(boolean state) {
+  }
+
+  @Override
+  public void requestAnonymity(boolean state) {
+  }
+
+  @Override
+  public void requestConf(boolean state) {
+  }
+
+  @Override
+  public void requestInteg(boolean state) {
+  }
+
+  @Override
+  public void requestLifetime(int lifetime) {
+  }
+
+  @Override
+  public void setChannelBinding(ChannelBinding cb) {
+  }
+
+  // Stream based methods are deprecated in GSS-API, only tokens in byte arrays are supported
+
+  @Override
+  public int initSecContext(InputStream inStream, OutputStream outStream) throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public void acceptSecContext(InputStream inStream, OutputStream outStream)
+      throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public void wrap(InputStream inStream, OutputStream outStream, MessageProp msgProp)
+      throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public void unwrap(InputStream inStream, OutputStream outStream, MessageProp msgProp)
+      throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public void getMIC(InputStream inStream, OutputStream outStream, MessageProp msgProp)
+      throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public void verifyMIC(InputStream tokStream, InputStream msgStream, MessageProp msgProp)
+      throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+  @Override
+  public byte[] export() throws GSSException {
+    throw new GSSException(GSSException.UNAVAILABLE);
+  }
+
+}
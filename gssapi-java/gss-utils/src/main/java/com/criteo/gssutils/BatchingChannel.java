@@ -0,0 +1,162 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Coalesce small messages into one wrap token (Preface.BATCH): sent messages are gathered until
+ * maxBytes are pending or maxDelayMillis elapsed since the first one, then wrapped together as
+ * records (Records) and sent with one token. Received tokens are split back into messages.
+ * <p>
+ * Pending messages are also sent before waiting in {@link #receive()}, so that a request/response
+ * exchange never waits for the delay, and by {@link #flush()}. On top of a PipelinedChannel, whose
+ * reader thread waits in receive, a batch thus goes out when full, late, or as soon as the replies
+ * of the previous batches are in. Like the channel underneath, one thread may send while another
+ * one receives; sends may also come from several threads. A batch only holds messages of the same
+ * protection: a message with another confidentiality sends the pending batch first.
+ */
+public class BatchingChannel implements MessageChannel {
+
+  private static final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gss-batch-flusher");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final MessageChannel channel;
+  private final int maxBytes;
+  private final long maxDelayMillis;
+  private final Object lock = new Object();
+  private final Queue<byte[]> received = new ArrayDeque<>();
+  private List<byte[]> batch = new ArrayList<>();
+  private int batchBytes;
+  private boolean batchConfidential;
+  private boolean receivedPrivacy;
+  private ScheduledFuture<?> scheduledFlush;
+  private Exception failure;
+
+  /**
+   * @param channel channel of a connection which negotiated Preface.BATCH, only used by this
+   * instance from now on
+   * @param maxBytes pending bytes sending the batch at once
+   * @param maxDelayMillis time a message may wait for others, 0 to wait for maxBytes, receive or
+   * flush
+   */
+  public BatchingChannel(MessageChannel channel, int maxBytes, long maxDelayMillis) {
+    this.channel = channel;
+    this.maxBytes = maxBytes;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  @Override
+  public GSSContext getContext() {
+    return channel.getContext();
+  }
+
+  /**
+   * Add message to the current batch, sent when full.
+   */
+  @Override
+  public void send(byte[] message, boolean confidential) throws IOException, GSSException {
+    synchronized (lock) {
+      if (failure != null) {
+        throw new IOException("Delayed batch failed", failure);
+      }
+      if (!batch.isEmpty() && batchConfidential != confidential) {
+        sendBatch();
+      }
+      batchConfidential = confidential;
+      batch.add(message);
+      batchBytes += Records.HEADER_BYTES + message.length;
+      if (batchBytes >= maxBytes) {
+        sendBatch();
+      } else if (batch.size() == 1 && maxDelayMillis > 0) {
+        scheduledFlush = flusher.schedule(this::flushLate, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Send the pending messages now.
+   */
+  public void flush() throws IOException, GSSException {
+    synchronized (lock) {
+      if (!batch.isEmpty()) {
+        sendBatch();
+      }
+    }
+  }
+
+  /**
+   * Send the pending messages, then return the next received message.
+   *
+   * @param prop set to the protection of the batch of the message
+   * @return message or null if the peer closed the channel
+   */
+  @Override
+  public byte[] receive(MessageProp prop) throws IOException, GSSException {
+    synchronized (received) {
+      if (received.isEmpty()) {
+        flush();
+        byte[] payload = channel.receive(prop);
+        if (payload == null) {
+          return null;
+        }
+        received.addAll(Records.split(payload));
+        receivedPrivacy = prop.getPrivacy();
+      }
+      prop.setPrivacy(receivedPrivacy);
+      return received.poll();
+    }
+  }
+
+  /**
+   * Send the pending messages and close the channel underneath.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } catch (IOException | GSSException e) {
+      // closing anyway
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void sendBatch() throws IOException, GSSException {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    List<byte[]> messages = batch;
+    batch = new ArrayList<>();
+    batchBytes = 0;
+    channel.send(Records.join(messages), batchConfidential);
+  }
+
+  /**
+   * Flusher thread: send a batch whose first message waited maxDelayMillis.
+   */
+  private void flushLate() {
+    try {
+      flush();
+    } catch (IOException | GSSException e) {
+      synchronized (lock) {
+        failure = e;
+      }
+    }
+  }
+
+}
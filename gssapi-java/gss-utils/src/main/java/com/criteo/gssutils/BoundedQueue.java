@@ -0,0 +1,99 @@
+package com.criteo.gssutils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer FIFO queue.
+ *
+ * Array based ring buffer where each cell carries a sequence number telling producers and
+ * consumers whether it is free or full for the current lap (Dmitry Vyukov's algorithm). Neither
+ * offer nor poll ever blocks: they fail when the queue is full or empty.
+ *
+ * @param <T> type of elements
+ */
+public class BoundedQueue<T> {
+
+  private final int mask;
+  private final AtomicReferenceArray<T> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * @param capacity maximum number of elements, rounded up to a power of two
+   */
+  public BoundedQueue(int capacity) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return false if the queue is full
+   */
+  public boolean offer(T element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+    while (true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long diff = sequences.get(index) - position;
+      if (diff == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+      } else if (diff < 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return head of the queue or null if the queue is empty
+   */
+  public T poll() {
+    while (true) {
+      long position = head.get();
+      int index = (int) position & mask;
+      long diff = sequences.get(index) - (position + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          T element = elements.get(index);
+          elements.lazySet(index, null);
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+      } else if (diff < 0) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return approximate number of elements
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+}
@@ -0,0 +1,108 @@
+package com.criteo.gssutils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of heap ByteBuffers in power of two size classes, so that reading a frame does not
+ * allocate a new array for every token.
+ * <p>
+ * Buffers are heap buffers because GSS-API calls take arrays ({@code buffer.array()}). Each class
+ * keeps at most bytesPerClass bytes of free buffers in a lock-free queue; sizes above maxSize are
+ * allocated and dropped by the garbage collector as before.
+ */
+public class BufferPool {
+
+  private static final BufferPool SHARED = new BufferPool(512, 1024 * 1024, 4 * 1024 * 1024);
+
+  private final int minShift;
+  private final int maxSize;
+  private final BoundedQueue<ByteBuffer>[] classes;
+  private final LongAdder allocated = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+
+  /**
+   * @param minSize size of the smallest class, rounded up to a power of 2
+   * @param maxSize size of the largest class, rounded up to a power of 2
+   * @param bytesPerClass bytes of free buffers kept per class (at least 4 buffers)
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(int minSize, int maxSize, int bytesPerClass) {
+    this.minShift = shift(minSize);
+    int maxShift = shift(maxSize);
+    this.maxSize = 1 << maxShift;
+    this.classes = new BoundedQueue[maxShift - minShift + 1];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new BoundedQueue<>(Math.max(4, bytesPerClass >> (minShift + i)));
+    }
+  }
+
+  /**
+   * @return pool shared by the transports of the process
+   */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * @return cleared buffer with at least size bytes remaining, limited to size
+   */
+  public ByteBuffer acquire(int size) {
+    if (size > maxSize) {
+      allocated.increment();
+      return ByteBuffer.allocate(size);
+    }
+    int index = Math.max(0, shift(size) - minShift);
+    ByteBuffer buffer = classes[index].poll();
+    if (buffer == null) {
+      allocated.increment();
+      buffer = ByteBuffer.allocate(1 << (minShift + index));
+    } else {
+      reused.increment();
+      buffer.clear();
+    }
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Give a buffer back to the pool, it must not be used anymore by the caller.
+   */
+  public void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (capacity > maxSize || Integer.bitCount(capacity) != 1 || !buffer.hasArray()) {
+      return;
+    }
+    int index = shift(capacity) - minShift;
+    if (index >= 0) {
+      classes[index].offer(buffer);
+    }
+  }
+
+  /**
+   * @return number of buffers allocated because none was free
+   */
+  public long allocated() {
+    return allocated.sum();
+  }
+
+  /**
+   * @return number of buffers taken from the pool
+   */
+  public long reused() {
+    return reused.sum();
+  }
+
+  /**
+   * @return log2 of size rounded up to a power of 2
+   */
+  private static int shift(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "allocated=" + allocated() + ", reused=" + reused();
+  }
+
+}
@@ -0,0 +1,563 @@
+package com.criteo.gssutils;
+
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * RFC 4121 wrap tokens of an established krb5 context with an AES key (aes128-cts-hmac-sha1-96 or
+ * aes256-cts-hmac-sha1-96, RFC 3962), written and read in buffers of the caller without any
+ * allocation once warm: tokens are those of GSSContext.wrap and unwrap of the JDK, byte for byte
+ * without privacy, and unwrapped by either side with privacy.
+ * <p>
+ * The engine takes over the message protection of the context with its session key
+ * (ExtendedGSSContext.inquireSecContext): the first token is wrapped by the context itself, which
+ * gives the engine its sequence number and key flags, then the context must not wrap or unwrap
+ * anymore. Keys are derived once (RFC 3961). AES-CTS runs on a reused CBC Cipher per direction,
+ * the last two blocks swapped by the engine, and HMAC-SHA1 on a reused MessageDigest: JCE would
+ * allocate in Cipher.doFinal with buffered input and in Mac.doFinal. Confounders are AES blocks of
+ * a counter under a random key of the engine. Received sequence numbers are checked by a
+ * SequenceWindow.
+ * <p>
+ * Buffers must be heap buffers (as those of BufferPool), a token and its message in different
+ * arrays. One thread may wrap while another one unwraps.
+ */
+public class CfxEngine {
+
+  private static final int TOKEN_ID = 0x0504;
+  private static final int HEADER_BYTES = 16;
+  private static final int BLOCK_BYTES = 16;
+  private static final int CHECKSUM_BYTES = 12;
+  private static final int SHA1_BYTES = 20;
+  private static final int SHA1_BLOCK_BYTES = 64;
+  private static final byte SENT_BY_ACCEPTOR = 1;
+  private static final byte SEALED = 2;
+  private static final byte ACCEPTOR_SUBKEY = 4;
+  // Key usages of RFC 4121, and of RFC 3961 derived keys
+  private static final int ACCEPTOR_SEAL = 22;
+  private static final int INITIATOR_SEAL = 24;
+  private static final int ENCRYPTION = 0xAA;
+  private static final int INTEGRITY = 0x55;
+  private static final int CHECKSUM = 0x99;
+  private static final int AES128_CTS_HMAC_SHA1_96 = 17;
+  private static final int AES256_CTS_HMAC_SHA1_96 = 18;
+
+  private final GSSContext context;
+  private final boolean initiator;
+  private final Direction send;
+  private final Direction receive;
+  private final SequenceWindow received = new SequenceWindow(true);
+  private final Cipher confounders;
+  private final byte[] counter = new byte[BLOCK_BYTES];
+  // -1 until the first token wrapped by the context
+  private long sendSequence = -1;
+  private byte flags;
+
+  /**
+   * Keys and scratch buffers of one direction.
+   */
+  private static class Direction {
+
+    final Cipher cbc;
+    final Cipher ecb;
+    // Ki then Kc, each one XORed with ipad then opad of HMAC
+    final byte[] integrityPads;
+    final byte[] checksumPads;
+    final MessageDigest sha1;
+    final byte[] mac = new byte[SHA1_BYTES];
+    final byte[] header = new byte[HEADER_BYTES];
+    final byte[] confounder = new byte[BLOCK_BYTES];
+    final byte[] plain = new byte[2 * BLOCK_BYTES];
+    final byte[] cipher = new byte[2 * BLOCK_BYTES];
+    // Last block of ciphertext given to cbc when decrypting, its IV for the next token
+    final byte[] chain = new byte[BLOCK_BYTES];
+
+    Direction(byte[] key, int usage, int mode) throws GeneralSecurityException {
+      SecretKeySpec encryption = new SecretKeySpec(derive(key, usage, ENCRYPTION), "AES");
+      cbc = Cipher.getInstance("AES/CBC/NoPadding");
+      cbc.init(mode, encryption, new IvParameterSpec(new byte[BLOCK_BYTES]));
+      ecb = Cipher.getInstance("AES/ECB/NoPadding");
+      ecb.init(mode, encryption);
+      integrityPads = pads(derive(key, usage, INTEGRITY));
+      checksumPads = pads(derive(key, usage, CHECKSUM));
+      sha1 = MessageDigest.getInstance("SHA-1");
+    }
+
+    void macStart(byte[] pads) {
+      sha1.update(pads, 0, SHA1_BLOCK_BYTES);
+    }
+
+    /**
+     * @return HMAC-SHA1 of the bytes given to sha1 since macStart, in mac
+     */
+    byte[] macFinish(byte[] pads) throws DigestException {
+      sha1.digest(mac, 0, SHA1_BYTES);
+      sha1.update(pads, SHA1_BLOCK_BYTES, SHA1_BLOCK_BYTES);
+      sha1.update(mac, 0, SHA1_BYTES);
+      sha1.digest(mac, 0, SHA1_BYTES);
+      return mac;
+    }
+
+    /**
+     * Set the CBC state back to the zero IV, when encrypting: Java 8 allocates in doFinal when
+     * decrypting, whose first block of every token is XORed with chain instead.
+     */
+    void reset() throws GeneralSecurityException {
+      cbc.doFinal(plain, 0, 0, cipher, 0);
+    }
+
+    void unchain(byte[] block) {
+      for (int i = 0; i < BLOCK_BYTES; i++) {
+        block[i] ^= chain[i];
+      }
+    }
+  }
+
+  CfxEngine(GSSContext context, byte[] key, boolean initiator) throws GSSException {
+    this.context = context;
+    this.initiator = initiator;
+    try {
+      send = new Direction(key, initiator ? INITIATOR_SEAL : ACCEPTOR_SEAL, Cipher.ENCRYPT_MODE);
+      receive =
+          new Direction(key, initiator ? ACCEPTOR_SEAL : INITIATOR_SEAL, Cipher.DECRYPT_MODE);
+      byte[] confounderKey = new byte[32];
+      new SecureRandom().nextBytes(confounderKey);
+      confounders = Cipher.getInstance("AES/ECB/NoPadding");
+      confounders.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(confounderKey, "AES"));
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+  }
+
+  /**
+   * Engine whose first token is sent with sequence number sendSequence and key flags, instead of
+   * wrapped by a context.
+   */
+  CfxEngine(byte[] key, boolean initiator, long sendSequence, boolean acceptorSubkey)
+      throws GSSException {
+    this(null, key, initiator);
+    this.sendSequence = sendSequence;
+    this.flags = acceptorSubkey ? ACCEPTOR_SUBKEY : 0;
+  }
+
+  /**
+   * @param context established krb5 context, no longer used once the first token is wrapped
+   * @throws GSSException UNAVAILABLE if the context has no AES session key
+   */
+  public static CfxEngine of(GSSContext context) throws GSSException {
+    if (!(context instanceof ExtendedGSSContext)) {
+      throw new GSSException(GSSException.UNAVAILABLE, -1,
+          "No session key in " + context.getClass().getName());
+    }
+    Key key = (Key) ((ExtendedGSSContext) context)
+        .inquireSecContext(InquireType.KRB5_GET_SESSION_KEY);
+    if (!key.getAlgorithm().equals(Integer.toString(AES128_CTS_HMAC_SHA1_96))
+        && !key.getAlgorithm().equals(Integer.toString(AES256_CTS_HMAC_SHA1_96))) {
+      throw new GSSException(GSSException.UNAVAILABLE, -1,
+          "Not an AES session key: encryption type " + key.getAlgorithm());
+    }
+    return new CfxEngine(context, key.getEncoded(), context.isInitiator());
+  }
+
+  /**
+   * @return length of the wrap token of a message of length bytes
+   */
+  public static int wrapSize(int length, boolean confidential) {
+    return confidential
+        ? HEADER_BYTES + BLOCK_BYTES + length + HEADER_BYTES + CHECKSUM_BYTES
+        : HEADER_BYTES + length + CHECKSUM_BYTES;
+  }
+
+  /**
+   * Wrap the remaining bytes of message, with the privacy of msgProp, in a token put at the
+   * position of token.
+   *
+   * @throws BufferOverflowException if token has less than wrapSize bytes remaining
+   */
+  public void wrap(ByteBuffer message, ByteBuffer token, MessageProp msgProp)
+      throws GSSException {
+    boolean conf = msgProp.getPrivacy();
+    int length = message.remaining();
+    int size = wrapSize(length, conf);
+    if (token.remaining() < size) {
+      throw new BufferOverflowException();
+    }
+    byte[] in = message.array();
+    int inOffset = message.arrayOffset() + message.position();
+    if (sendSequence < 0) {
+      wrapFirst(in, inOffset, length, token, msgProp);
+      message.position(message.limit());
+      return;
+    }
+    byte[] out = token.array();
+    int outOffset = token.arrayOffset() + token.position();
+    try {
+      if (conf) {
+        seal(in, inOffset, length, out, outOffset);
+      } else {
+        sign(in, inOffset, length, out, outOffset);
+      }
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    message.position(message.limit());
+    token.position(token.position() + size);
+    msgProp.setQOP(0);
+  }
+
+  /**
+   * Unwrap the remaining bytes of token and put its message at the position of message. The token
+   * is rotated in place if it has a right rotation count (RRC).
+   *
+   * @throws BufferOverflowException if message has less remaining bytes than token
+   */
+  public void unwrap(ByteBuffer token, ByteBuffer message, MessageProp msgProp)
+      throws GSSException {
+    byte[] in = token.array();
+    int offset = token.arrayOffset() + token.position();
+    int length = token.remaining();
+    if (length < HEADER_BYTES + CHECKSUM_BYTES || getShort(in, offset) != TOKEN_ID
+        || in[offset + 3] != (byte) 0xFF) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    byte tokenFlags = in[offset + 2];
+    if (((tokenFlags & SENT_BY_ACCEPTOR) != 0) != initiator) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Token not sent by the peer");
+    }
+    if (message.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    int rotation = getShort(in, offset + 6);
+    if (rotation != 0) {
+      rotateLeft(in, offset + HEADER_BYTES, length - HEADER_BYTES, rotation);
+    }
+    byte[] out = message.array();
+    int outOffset = message.arrayOffset() + message.position();
+    boolean sealed = (tokenFlags & SEALED) != 0;
+    int messageLength;
+    try {
+      messageLength = sealed ? unseal(in, offset, length, out, outOffset)
+          : verify(in, offset, length, out, outOffset);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    token.position(token.limit());
+    message.position(message.position() + messageLength);
+    msgProp.setPrivacy(sealed);
+    msgProp.setQOP(0);
+    received.received(getLong(in, offset + 8), msgProp);
+  }
+
+  /**
+   * Wrap the first token with the context and take its sequence number and key flags.
+   */
+  private void wrapFirst(byte[] in, int inOffset, int length, ByteBuffer token,
+      MessageProp msgProp) throws GSSException {
+    byte[] first = context.wrap(in, inOffset, length, msgProp);
+    if (first.length < HEADER_BYTES || getShort(first, 0) != TOKEN_ID) {
+      throw new GSSException(GSSException.UNAVAILABLE, -1, "Not an RFC 4121 wrap token");
+    }
+    if (token.remaining() < first.length) {
+      throw new BufferOverflowException();
+    }
+    flags = (byte) (first[2] & ACCEPTOR_SUBKEY);
+    sendSequence = getLong(first, 8) + 1;
+    token.put(first);
+  }
+
+  private void header(byte[] out, int offset, boolean conf) {
+    out[offset] = (byte) (TOKEN_ID >> 8);
+    out[offset + 1] = (byte) TOKEN_ID;
+    out[offset + 2] = (byte) (flags | (initiator ? 0 : SENT_BY_ACCEPTOR) | (conf ? SEALED : 0));
+    out[offset + 3] = (byte) 0xFF;
+    // EC is the length of the checksum without privacy, RRC is always 0
+    out[offset + 4] = 0;
+    out[offset + 5] = (byte) (conf ? 0 : CHECKSUM_BYTES);
+    out[offset + 6] = 0;
+    out[offset + 7] = 0;
+    long sequence = sendSequence++;
+    for (int i = 0; i < 8; i++) {
+      out[offset + 8 + i] = (byte) (sequence >>> (56 - 8 * i));
+    }
+  }
+
+  /**
+   * Token with privacy: header, AES-CTS of confounder | message | header, then HMAC-SHA1-96 of
+   * that plain text (RFC 3961 simplified profile).
+   */
+  private void seal(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+      throws GeneralSecurityException {
+    Direction d = send;
+    header(out, outOffset, true);
+    counter();
+    confounders.update(counter, 0, BLOCK_BYTES, d.confounder, 0);
+
+    d.macStart(d.integrityPads);
+    d.sha1.update(d.confounder, 0, BLOCK_BYTES);
+    d.sha1.update(in, inOffset, length);
+    d.sha1.update(out, outOffset, HEADER_BYTES);
+    System.arraycopy(d.macFinish(d.integrityPads), 0, out,
+        outOffset + wrapSize(length, true) - CHECKSUM_BYTES, CHECKSUM_BYTES);
+
+    // CBC up to the last two blocks of the plain text: confounder, then whole blocks of message
+    int cipherOffset = outOffset + HEADER_BYTES;
+    int aligned = length & -BLOCK_BYTES;
+    int rest = length - aligned;
+    d.cbc.update(d.confounder, 0, BLOCK_BYTES, out, cipherOffset);
+    if (aligned > 0) {
+      d.cbc.update(in, inOffset, aligned, out, cipherOffset + BLOCK_BYTES);
+    }
+    int last = cipherOffset + BLOCK_BYTES + aligned;
+    if (rest == 0) {
+      // The last block is the header, the one before is already encrypted: swap them
+      d.cbc.update(out, outOffset, HEADER_BYTES, d.cipher, 0);
+      System.arraycopy(out, last - BLOCK_BYTES, out, last, BLOCK_BYTES);
+      System.arraycopy(d.cipher, 0, out, last - BLOCK_BYTES, BLOCK_BYTES);
+    } else {
+      // Rest of message and header: one whole block and a partial one, padded with zeros,
+      // written swapped with the partial block truncated
+      System.arraycopy(in, inOffset + aligned, d.plain, 0, rest);
+      System.arraycopy(out, outOffset, d.plain, rest, HEADER_BYTES);
+      for (int i = BLOCK_BYTES + rest; i < 2 * BLOCK_BYTES; i++) {
+        d.plain[i] = 0;
+      }
+      d.cbc.update(d.plain, 0, 2 * BLOCK_BYTES, d.cipher, 0);
+      System.arraycopy(d.cipher, BLOCK_BYTES, out, last, BLOCK_BYTES);
+      System.arraycopy(d.cipher, 0, out, last + BLOCK_BYTES, rest);
+    }
+    d.reset();
+  }
+
+  /**
+   * Token without privacy: header, message, then HMAC-SHA1-96 of message | header with EC and RRC
+   * set to 0.
+   */
+  private void sign(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+      throws GeneralSecurityException {
+    Direction d = send;
+    header(out, outOffset, false);
+    System.arraycopy(in, inOffset, out, outOffset + HEADER_BYTES, length);
+    System.arraycopy(out, outOffset, d.header, 0, HEADER_BYTES);
+    d.header[5] = 0;
+    d.macStart(d.checksumPads);
+    d.sha1.update(in, inOffset, length);
+    d.sha1.update(d.header, 0, HEADER_BYTES);
+    System.arraycopy(d.macFinish(d.checksumPads), 0, out, outOffset + HEADER_BYTES + length,
+        CHECKSUM_BYTES);
+  }
+
+  /**
+   * Decrypt the token into out: message, filler of EC bytes, then the copy of the header.
+   *
+   * @return length of the message
+   */
+  private int unseal(byte[] in, int offset, int length, byte[] out, int outOffset)
+      throws GeneralSecurityException, GSSException {
+    Direction d = receive;
+    int filler = getShort(in, offset + 4);
+    int cipherOffset = offset + HEADER_BYTES;
+    int cipherLength = length - HEADER_BYTES - CHECKSUM_BYTES;
+    int messageLength = cipherLength - BLOCK_BYTES - filler - HEADER_BYTES;
+    if (messageLength < 0) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    // Whole CBC blocks, then the two last blocks of ciphertext stealing
+    int blocks = (cipherLength + BLOCK_BYTES - 1) / BLOCK_BYTES;
+    int partial = cipherLength - (blocks - 1) * BLOCK_BYTES;
+    int tail = (blocks - 2) * BLOCK_BYTES;
+    if (blocks > 2) {
+      d.cbc.update(in, cipherOffset, BLOCK_BYTES, d.confounder, 0);
+      d.unchain(d.confounder);
+      if (blocks > 3) {
+        d.cbc.update(in, cipherOffset + BLOCK_BYTES, tail - BLOCK_BYTES, out, outOffset);
+      }
+    }
+    // Last block decrypted alone gives the previous ciphertext block XOR the partial plain block
+    d.ecb.update(in, cipherOffset + tail, BLOCK_BYTES, d.cipher, BLOCK_BYTES);
+    System.arraycopy(in, cipherOffset + tail + BLOCK_BYTES, d.cipher, 0, partial);
+    System.arraycopy(d.cipher, BLOCK_BYTES + partial, d.cipher, partial, BLOCK_BYTES - partial);
+    d.cbc.update(d.cipher, 0, BLOCK_BYTES, d.plain, 0);
+    if (blocks == 2) {
+      d.unchain(d.plain);
+    }
+    System.arraycopy(d.cipher, 0, d.chain, 0, BLOCK_BYTES);
+    for (int i = 0; i < partial; i++) {
+      d.plain[BLOCK_BYTES + i] = (byte) (d.cipher[BLOCK_BYTES + i] ^ d.cipher[i]);
+    }
+    if (blocks > 2) {
+      System.arraycopy(d.plain, 0, out, outOffset + tail - BLOCK_BYTES, BLOCK_BYTES + partial);
+    } else {
+      System.arraycopy(d.plain, 0, d.confounder, 0, BLOCK_BYTES);
+      System.arraycopy(d.plain, BLOCK_BYTES, out, outOffset, partial);
+    }
+
+    int plainLength = cipherLength - BLOCK_BYTES;
+    d.macStart(d.integrityPads);
+    d.sha1.update(d.confounder, 0, BLOCK_BYTES);
+    d.sha1.update(out, outOffset, plainLength);
+    if (!equal(d.macFinish(d.integrityPads), in, offset + length - CHECKSUM_BYTES)) {
+      throw new GSSException(GSSException.BAD_MIC);
+    }
+    // The encrypted copy of the header has the same fields, except RRC always 0
+    int copy = outOffset + plainLength - HEADER_BYTES;
+    for (int i = 0; i < HEADER_BYTES; i++) {
+      if (i != 6 && i != 7 && out[copy + i] != in[offset + i]) {
+        throw new GSSException(GSSException.BAD_MIC);
+      }
+    }
+    return messageLength;
+  }
+
+  /**
+   * Check the checksum of a token without privacy and copy its message into out.
+   *
+   * @return length of the message
+   */
+  private int verify(byte[] in, int offset, int length, byte[] out, int outOffset)
+      throws GeneralSecurityException, GSSException {
+    Direction d = receive;
+    if (getShort(in, offset + 4) != CHECKSUM_BYTES) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    int messageLength = length - HEADER_BYTES - CHECKSUM_BYTES;
+    System.arraycopy(in, offset, d.header, 0, HEADER_BYTES);
+    for (int i = 4; i < 8; i++) {
+      d.header[i] = 0;
+    }
+    d.macStart(d.checksumPads);
+    d.sha1.update(in, offset + HEADER_BYTES, messageLength);
+    d.sha1.update(d.header, 0, HEADER_BYTES);
+    if (!equal(d.macFinish(d.checksumPads), in, offset + length - CHECKSUM_BYTES)) {
+      throw new GSSException(GSSException.BAD_MIC);
+    }
+    System.arraycopy(in, offset + HEADER_BYTES, out, outOffset, messageLength);
+    return messageLength;
+  }
+
+  /**
+   * Next value of the big-endian confounder counter.
+   */
+  private void counter() {
+    for (int i = BLOCK_BYTES - 1; i >= 0 && ++counter[i] == 0; i--) {
+      // carry
+    }
+  }
+
+  /**
+   * @return true if the first CHECKSUM_BYTES of mac are those at offset of token, in constant
+   * time
+   */
+  private static boolean equal(byte[] mac, byte[] token, int offset) {
+    int difference = 0;
+    for (int i = 0; i < CHECKSUM_BYTES; i++) {
+      difference |= mac[i] ^ token[offset + i];
+    }
+    return difference == 0;
+  }
+
+  private static int getShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF;
+  }
+
+  private static long getLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = value << 8 | bytes[offset + i] & 0xFF;
+    }
+    return value;
+  }
+
+  private static void rotateLeft(byte[] bytes, int offset, int length, int count) {
+    count %= length;
+    reverse(bytes, offset, offset + count);
+    reverse(bytes, offset + count, offset + length);
+    reverse(bytes, offset, offset + length);
+  }
+
+  private static void reverse(byte[] bytes, int from, int to) {
+    for (int i = from, j = to - 1; i < j; i++, j--) {
+      byte b = bytes[i];
+      bytes[i] = bytes[j];
+      bytes[j] = b;
+    }
+  }
+
+  /**
+   * @return key of usage and type derived from key, DK of RFC 3961
+   */
+  static byte[] derive(byte[] key, int usage, int type) throws GeneralSecurityException {
+    byte[] constant = {(byte) (usage >> 24), (byte) (usage >> 16), (byte) (usage >> 8),
+        (byte) usage, (byte) type};
+    Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+    aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+    byte[] derived = new byte[key.length];
+    byte[] block = nfold(constant, BLOCK_BYTES);
+    for (int i = 0; i < derived.length; i += BLOCK_BYTES) {
+      block = aes.doFinal(block);
+      System.arraycopy(block, 0, derived, i, Math.min(BLOCK_BYTES, derived.length - i));
+    }
+    return derived;
+  }
+
+  /**
+   * @return n-fold of RFC 3961: input repeated with 13-bit rotations up to the least common
+   * multiple of both lengths, added in ones' complement in blocks of length bytes
+   */
+  static byte[] nfold(byte[] input, int length) {
+    int inBits = input.length * 8;
+    int lcm = input.length * length / gcd(input.length, length);
+    byte[] out = new byte[length];
+    int carry = 0;
+    for (int i = lcm - 1; i >= 0; i--) {
+      // Most significant bit of byte i of the repeated and rotated input
+      int msbit = (inBits - 1 + (inBits + 13) * (i / input.length)
+          + (input.length - i % input.length) * 8) % inBits;
+      int high = input[(input.length - 1 - (msbit >>> 3)) % input.length] & 0xFF;
+      int low = input[(input.length - (msbit >>> 3)) % input.length] & 0xFF;
+      carry += ((high << 8 | low) >>> ((msbit & 7) + 1)) & 0xFF;
+      carry += out[i % length] & 0xFF;
+      out[i % length] = (byte) carry;
+      carry >>>= 8;
+    }
+    for (int i = length - 1; i >= 0 && carry != 0; i--) {
+      carry += out[i] & 0xFF;
+      out[i] = (byte) carry;
+      carry >>>= 8;
+    }
+    return out;
+  }
+
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+
+  /**
+   * @return HMAC key XORed with ipad then with opad
+   */
+  private static byte[] pads(byte[] key) {
+    byte[] pads = new byte[2 * SHA1_BLOCK_BYTES];
+    for (int i = 0; i < SHA1_BLOCK_BYTES; i++) {
+      byte k = i < key.length ? key[i] : 0;
+      pads[i] = (byte) (k ^ 0x36);
+      pads[SHA1_BLOCK_BYTES + i] = (byte) (k ^ 0x5C);
+    }
+    return pads;
+  }
+
+  private static GSSException failure(GeneralSecurityException e) {
+    return new GSSException(GSSException.FAILURE, -1, e.toString());
+  }
+
+}
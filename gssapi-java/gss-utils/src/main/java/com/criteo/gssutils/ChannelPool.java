@@ -0,0 +1,447 @@
+package com.criteo.gssutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Client side pool of established channels per endpoint (service principal, host and port): a
+ * request takes a channel whose context is already established, sends its message and gets the
+ * reply in one round trip, instead of fetching a service ticket and running the AP exchange first.
+ * <p>
+ * {@link #prefill(Endpoint)} establishes minIdle channels at startup. A background thread then
+ * checks idle channels every checkMillis: channels closed by the server, with unread bytes (a close
+ * frame) or an expired context are dropped, as well as channels idle for more than maxIdleMillis,
+ * kept below the idle timeout of the server. The thread then establishes new channels until every
+ * endpoint has minIdle idle ones again, as the Subject which created the pool. {@link #acquire}
+ * checks the channel it takes the same way, and establishes one in the calling thread when none is
+ * idle.
+ * <p>
+ * A channel is released once the reply of its last request is received, so that the next user
+ * starts on a clean stream. A channel which failed is closed instead. At most maxIdle channels are
+ * kept per endpoint, the others are closed on release.
+ * <p>
+ * Contexts expire with their service ticket, and the first request after the expiry would pay a
+ * new ticket and handshake. The pool notes the lifetime of each context when it is established,
+ * and re-establishes the channel in the background refreshAheadMillis (at most a quarter of the
+ * lifetime) before its expiry, plus a random jitter of up to as much, so that channels established
+ * together are not refreshed together. The new channel replaces the old one in the pool at once;
+ * an old channel in use at that time is closed when released. Requests keep using the old channel,
+ * still valid, until then: none waits for the handshake.
+ */
+public final class ChannelPool implements Closeable {
+
+  public static final int MIN_IDLE = Integer.getInteger("gss.pool.minIdle", 1);
+  public static final int MAX_IDLE = Integer.getInteger("gss.pool.maxIdle", 8);
+  public static final int MAX_IDLE_SECONDS = Integer.getInteger("gss.pool.maxIdleSeconds", 30);
+  public static final int CHECK_SECONDS = Integer.getInteger("gss.pool.checkSeconds", 5);
+  public static final int REFRESH_AHEAD_SECONDS =
+      Integer.getInteger("gss.pool.refreshAheadSeconds", 300);
+
+  private static final boolean verbose = false;
+
+  private final Connector connector;
+  private final int minIdle;
+  private final int maxIdle;
+  private final long maxIdleNanos;
+  private final long refreshAheadNanos;
+  private final Subject subject = Jaas.currentSubject();
+  private final Counters counters = new Counters();
+  private final Map<Endpoint, Deque<Idle>> idle = new HashMap<>();
+  // Time to re-establish each channel, Long.MAX_VALUE once scheduled; replaced channels in use
+  private final Map<GssChannel, Long> refreshNanos = new WeakHashMap<>();
+  private final Set<GssChannel> retired = Collections.newSetFromMap(new WeakHashMap<>());
+  private final ScheduledExecutorService checker =
+      Executors.newSingleThreadScheduledExecutor(ThreadPools.namedDaemonFactory("gss-pool"));
+  private boolean closed;
+
+  /**
+   * Establish a channel with the server of an endpoint.
+   */
+  public interface Connector {
+
+    /**
+     * @return channel of a context established with the service principal of endpoint
+     */
+    GssChannel connect(Endpoint endpoint) throws IOException, GSSException;
+  }
+
+  /**
+   * Key of the pool: service principal, host and port of a server.
+   */
+  public static final class Endpoint {
+
+    private final String servicePrincipal;
+    private final String host;
+    private final int port;
+
+    public Endpoint(String servicePrincipal, String host, int port) {
+      this.servicePrincipal = servicePrincipal;
+      this.host = host;
+      this.port = port;
+    }
+
+    public String servicePrincipal() {
+      return servicePrincipal;
+    }
+
+    public String host() {
+      return host;
+    }
+
+    public int port() {
+      return port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Endpoint)) {
+        return false;
+      }
+      Endpoint other = (Endpoint) o;
+      return servicePrincipal.equals(other.servicePrincipal) && host.equals(other.host)
+          && port == other.port;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(servicePrincipal, host, port);
+    }
+
+    @Override
+    public String toString() {
+      return servicePrincipal + " at " + host + ":" + port;
+    }
+  }
+
+  /**
+   * Channel waiting in the pool since idleNanos.
+   */
+  private static class Idle {
+
+    final GssChannel channel;
+    final long idleNanos = System.nanoTime();
+
+    Idle(GssChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * Pool sized by the gss.pool.* properties.
+   */
+  public ChannelPool(Connector connector) {
+    this(connector, MIN_IDLE, MAX_IDLE, MAX_IDLE_SECONDS * 1000L, CHECK_SECONDS * 1000L,
+        REFRESH_AHEAD_SECONDS * 1000L);
+  }
+
+  /**
+   * @param minIdle idle channels kept ready per endpoint
+   * @param maxIdle idle channels kept at most per endpoint
+   * @param maxIdleMillis time after which an idle channel is closed
+   * @param checkMillis period of the checks of idle channels
+   * @param refreshAheadMillis time before the expiry of a context to re-establish its channel
+   */
+  public ChannelPool(Connector connector, int minIdle, int maxIdle, long maxIdleMillis,
+      long checkMillis, long refreshAheadMillis) {
+    this.connector = connector;
+    this.minIdle = minIdle;
+    this.maxIdle = Math.max(minIdle, maxIdle);
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+    this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+    checker.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Establish channels until endpoint has minIdle idle ones, in the calling thread, and keep it
+   * filled from now on.
+   */
+  public void prefill(Endpoint endpoint) throws IOException, GSSException {
+    while (idleCount(endpoint) < minIdle) {
+      release(endpoint, connect(endpoint));
+    }
+  }
+
+  /**
+   * @return established channel with endpoint, from the pool if one is idle and alive
+   */
+  public GssChannel acquire(Endpoint endpoint) throws IOException, GSSException {
+    while (true) {
+      Idle entry;
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("Pool closed");
+        }
+        entry = idle(endpoint).pollFirst();
+      }
+      if (entry == null) {
+        // The request waits for a handshake
+        counters.increment("pool.missed");
+        return connect(endpoint);
+      }
+      if (isUsable(entry.channel)) {
+        counters.increment("pool.reused");
+        refreshIfDue(endpoint, entry.channel, System.nanoTime());
+        return entry.channel;
+      }
+      counters.increment("pool.dead");
+      closeQuietly(entry.channel);
+    }
+  }
+
+  /**
+   * Give back a channel taken from the pool for endpoint, once the reply of its last request is
+   * received. Closed channels, replaced ones and channels beyond maxIdle are dropped.
+   */
+  public void release(Endpoint endpoint, GssChannel channel) {
+    if (channel.getChannel().isOpen()) {
+      synchronized (this) {
+        Deque<Idle> channels = idle(endpoint);
+        if (retired.remove(channel)) {
+          counters.increment("pool.retired");
+        } else if (!closed && channels.size() < maxIdle) {
+          // Most recently used first: the others age and get evicted
+          channels.addFirst(new Idle(channel));
+          return;
+        }
+      }
+    }
+    closeQuietly(channel);
+  }
+
+  /**
+   * @return counters of the pool: pool.connected, pool.reused, pool.missed (acquired channels
+   * established in the calling thread), pool.dead, pool.evicted, pool.refreshed, pool.retired,
+   * pool.failed
+   */
+  public Counters counters() {
+    return counters;
+  }
+
+  /**
+   * Stop the checks and close the idle channels. Channels in use are closed by their users.
+   */
+  @Override
+  public void close() {
+    checker.shutdownNow();
+    List<Idle> channels = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      for (Deque<Idle> entries : idle.values()) {
+        channels.addAll(entries);
+      }
+      idle.clear();
+    }
+    for (Idle entry : channels) {
+      closeQuietly(entry.channel);
+    }
+  }
+
+  /**
+   * @return true if the context of channel is not expired and the server neither closed the
+   * connection nor sent anything (a close frame) while it was idle
+   */
+  static boolean isUsable(GssChannel channel) {
+    SocketChannel socket = channel.getChannel();
+    if (!socket.isOpen() || channel.getContext().getLifetime() <= 0) {
+      return false;
+    }
+    try {
+      synchronized (socket.blockingLock()) {
+        socket.configureBlocking(false);
+        try {
+          return socket.read(ByteBuffer.allocate(1)) == 0;
+        } finally {
+          socket.configureBlocking(true);
+        }
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private GssChannel connect(Endpoint endpoint) throws IOException, GSSException {
+    GssChannel channel = connector.connect(endpoint);
+    counters.increment("pool.connected");
+    int lifetime = channel.getContext().getLifetime();
+    if (lifetime != GSSContext.INDEFINITE_LIFETIME) {
+      long lifetimeNanos = TimeUnit.SECONDS.toNanos(lifetime);
+      long ahead = Math.min(refreshAheadNanos, lifetimeNanos / 4);
+      long jitter = ahead <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ahead + 1);
+      synchronized (this) {
+        refreshNanos.put(channel, System.nanoTime() + lifetimeNanos - ahead - jitter);
+      }
+    }
+    return channel;
+  }
+
+  /**
+   * Re-establish channel in the checker thread if its context expires soon, once.
+   */
+  private void refreshIfDue(Endpoint endpoint, GssChannel channel, long now) {
+    synchronized (this) {
+      Long due = refreshNanos.get(channel);
+      if (closed || due == null || due - now > 0) {
+        return;
+      }
+      refreshNanos.put(channel, Long.MAX_VALUE);
+    }
+    checker.execute(() -> refresh(endpoint, channel));
+  }
+
+  /**
+   * Establish a channel replacing old in the pool, or on its release if in use (checker thread).
+   */
+  private void refresh(Endpoint endpoint, GssChannel old) {
+    GssChannel channel;
+    try {
+      channel = connectAsSubject(endpoint);
+    } catch (Exception e) {
+      counters.increment("pool.failed");
+      System.out.println("Could not re-establish a pooled channel with " + endpoint + ": " + e);
+      synchronized (this) {
+        // Try again at the next check, old is valid until its expiry
+        refreshNanos.put(old, System.nanoTime());
+      }
+      return;
+    }
+    boolean idleOld = false;
+    boolean added = false;
+    synchronized (this) {
+      Deque<Idle> channels = idle(endpoint);
+      Iterator<Idle> entries = channels.iterator();
+      while (entries.hasNext()) {
+        if (entries.next().channel == old) {
+          entries.remove();
+          idleOld = true;
+          break;
+        }
+      }
+      if (!idleOld) {
+        retired.add(old);
+      }
+      if (!closed && channels.size() < maxIdle) {
+        channels.addFirst(new Idle(channel));
+        added = true;
+      }
+    }
+    counters.increment("pool.refreshed");
+    if (idleOld) {
+      closeQuietly(old);
+    }
+    if (!added) {
+      closeQuietly(channel);
+    }
+  }
+
+  private synchronized Deque<Idle> idle(Endpoint endpoint) {
+    return idle.computeIfAbsent(endpoint, k -> new ArrayDeque<>());
+  }
+
+  private synchronized int idleCount(Endpoint endpoint) {
+    return idle(endpoint).size();
+  }
+
+  /**
+   * Drop dead and long idle channels, then refill every endpoint to minIdle (checker thread).
+   */
+  private void check() {
+    List<Endpoint> endpoints;
+    synchronized (this) {
+      endpoints = new ArrayList<>(idle.keySet());
+    }
+    for (Endpoint endpoint : endpoints) {
+      List<Idle> entries;
+      synchronized (this) {
+        entries = new ArrayList<>(idle(endpoint));
+      }
+      long now = System.nanoTime();
+      for (Idle entry : entries) {
+        // Out of the pool while checked, unless acquired meanwhile
+        synchronized (this) {
+          if (closed || !idle(endpoint).remove(entry)) {
+            continue;
+          }
+        }
+        if (now - entry.idleNanos > maxIdleNanos) {
+          counters.increment("pool.evicted");
+          closeQuietly(entry.channel);
+        } else if (!isUsable(entry.channel)) {
+          counters.increment("pool.dead");
+          closeQuietly(entry.channel);
+        } else {
+          putBack(endpoint, entry);
+          refreshIfDue(endpoint, entry.channel, now);
+        }
+      }
+      refill(endpoint);
+    }
+  }
+
+  /**
+   * Put a checked entry back behind the others, which were checked before it.
+   */
+  private void putBack(Endpoint endpoint, Idle entry) {
+    synchronized (this) {
+      if (!closed) {
+        idle(endpoint).addLast(entry);
+        return;
+      }
+    }
+    closeQuietly(entry.channel);
+  }
+
+  private void refill(Endpoint endpoint) {
+    try {
+      while (!Thread.currentThread().isInterrupted() && idleCount(endpoint) < minIdle) {
+        release(endpoint, connectAsSubject(endpoint));
+      }
+    } catch (Exception e) {
+      counters.increment("pool.failed");
+      System.out.println("Could not establish a pooled channel with " + endpoint + ": " + e);
+    }
+  }
+
+  private GssChannel connectAsSubject(Endpoint endpoint) throws Exception {
+    if (subject == null) {
+      return connect(endpoint);
+    }
+    try {
+      return Subject.doAs(subject, (PrivilegedExceptionAction<GssChannel>) () -> connect(endpoint));
+    } catch (PrivilegedActionException e) {
+      throw e.getException();
+    }
+  }
+
+  private static void closeQuietly(GssChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      if (verbose) {
+        System.out.println("Could not close pooled channel: " + e);
+      }
+    }
+  }
+
+}
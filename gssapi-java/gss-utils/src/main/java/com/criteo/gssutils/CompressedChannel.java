@@ -0,0 +1,64 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Channel compressing its payloads before wrap and inflating them after unwrap (Preface.COMPRESS),
+ * see Compression. Below a BatchingChannel, batches are compressed as a whole.
+ * <p>
+ * Like the channel underneath, one thread may send while another one receives; sends may also
+ * come from several threads, each payload is deflated and wrapped in the same order.
+ */
+public class CompressedChannel implements MessageChannel {
+
+  private final MessageChannel channel;
+  private final Compression compression;
+  private final Object sendLock = new Object();
+
+  /**
+   * @param channel channel of a connection which negotiated Preface.COMPRESS, only used by this
+   * instance from now on
+   */
+  public CompressedChannel(MessageChannel channel) {
+    this(channel, new Compression());
+  }
+
+  public CompressedChannel(MessageChannel channel, Compression compression) {
+    this.channel = channel;
+    this.compression = compression;
+  }
+
+  @Override
+  public GSSContext getContext() {
+    return channel.getContext();
+  }
+
+  @Override
+  public void send(byte[] message, boolean confidential) throws IOException, GSSException {
+    synchronized (sendLock) {
+      channel.send(compression.deflate(message), confidential);
+    }
+  }
+
+  @Override
+  public byte[] receive(MessageProp prop) throws IOException, GSSException {
+    byte[] payload = channel.receive(prop);
+    return payload == null ? null : compression.inflate(payload);
+  }
+
+  /**
+   * Close the channel underneath and free the compression state.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      compression.end();
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the payloads of one context (Preface.COMPRESS), applied before wrap and after
+ * unwrap: compressing encrypted tokens is useless, while compressed payloads leave fewer bytes to
+ * encrypt and send.
+ * <p>
+ * Every payload starts with one byte: 0 when stored as is (payloads under minBytes), 1 when
+ * deflated. Deflated payloads of a context form one raw deflate stream, each one ended by a sync
+ * flush, so that later payloads are compressed against the previous ones (small JSON messages
+ * with the same keys shrink far more than alone). Payloads must thus be deflated in the order
+ * they are wrapped, and inflated in the order they are unwrapped.
+ * <p>
+ * The Deflater and Inflater are created on the first payload to compress and kept for the life of
+ * the context, about 300 KB of native memory each: call {@link #end()} when the context is
+ * disposed. Do not mix secrets with data chosen by an attacker in compressed payloads, the sizes
+ * of the tokens would leak them (CRIME).
+ */
+public class Compression {
+
+  public static final int MIN_BYTES = Integer.getInteger("gss.compression.minBytes", 256);
+  public static final int LEVEL = Integer.getInteger("gss.compression.level", Deflater.BEST_SPEED);
+
+  private static final byte STORED = 0;
+  private static final byte DEFLATED = 1;
+  // Larger output buffers are not kept between payloads
+  private static final int KEPT_BUFFER_BYTES = 64 * 1024;
+
+  private final int minBytes;
+  private final int maxBytes;
+  private final Object deflateLock = new Object();
+  private final Object inflateLock = new Object();
+  private Deflater deflater;
+  private Inflater inflater;
+  private byte[] deflateBuffer;
+  private byte[] inflateBuffer;
+  private volatile boolean ended;
+
+  public Compression() {
+    this(MIN_BYTES, GssTokens.MAX_FRAME_BYTES);
+  }
+
+  /**
+   * @param minBytes payloads smaller than this are stored as is
+   * @param maxBytes maximum length of an inflated payload
+   */
+  public Compression(int minBytes, int maxBytes) {
+    this.minBytes = minBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return payload to wrap, in wrap order
+   */
+  public byte[] deflate(byte[] payload) throws IOException {
+    if (payload.length < minBytes) {
+      byte[] stored = new byte[1 + payload.length];
+      System.arraycopy(payload, 0, stored, 1, payload.length);
+      return stored;
+    }
+    synchronized (deflateLock) {
+      checkNotEnded();
+      if (deflater == null) {
+        deflater = new Deflater(LEVEL, true);
+      }
+      byte[] buffer = deflateBuffer != null ? deflateBuffer : new byte[1024];
+      buffer[0] = DEFLATED;
+      int length = 1;
+      deflater.setInput(payload);
+      while (true) {
+        length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+        if (length < buffer.length) {
+          break;
+        }
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      deflateBuffer = buffer.length <= KEPT_BUFFER_BYTES ? buffer : null;
+      return Arrays.copyOf(buffer, length);
+    }
+  }
+
+  /**
+   * @return payload of an unwrapped message, in unwrap order
+   * @throws FrameRejectedException if the payload is not valid or inflates over maxBytes
+   */
+  public byte[] inflate(byte[] payload) throws IOException {
+    if (payload.length == 0 || (payload[0] != STORED && payload[0] != DEFLATED)) {
+      throw new FrameRejectedException("inflate", "Payload without compression header");
+    }
+    if (payload[0] == STORED) {
+      return Arrays.copyOfRange(payload, 1, payload.length);
+    }
+    synchronized (inflateLock) {
+      checkNotEnded();
+      if (inflater == null) {
+        inflater = new Inflater(true);
+      }
+      byte[] buffer = inflateBuffer != null ? inflateBuffer : new byte[4096];
+      int length = 0;
+      inflater.setInput(payload, 1, payload.length - 1);
+      try {
+        while (true) {
+          if (length == buffer.length) {
+            if (length >= maxBytes) {
+              throw new FrameRejectedException("inflate", "Payload inflated over " + maxBytes);
+            }
+            buffer = Arrays.copyOf(buffer, (int) Math.min(2L * length, maxBytes));
+          }
+          int inflated = inflater.inflate(buffer, length, buffer.length - length);
+          length += inflated;
+          if (length < buffer.length) {
+            if (inflater.needsInput()) {
+              break;
+            }
+            if (inflated == 0) {
+              throw new FrameRejectedException("inflate", "Truncated deflate stream");
+            }
+          }
+        }
+      } catch (DataFormatException e) {
+        throw new FrameRejectedException("inflate", "Invalid deflate stream: " + e.getMessage());
+      }
+      inflateBuffer = buffer.length <= KEPT_BUFFER_BYTES ? buffer : null;
+      return Arrays.copyOf(buffer, length);
+    }
+  }
+
+  /**
+   * Free the native memory of the Deflater and Inflater, the instance can not be used anymore.
+   */
+  public void end() {
+    ended = true;
+    synchronized (deflateLock) {
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
+    }
+    synchronized (inflateLock) {
+      if (inflater != null) {
+        inflater.end();
+        inflater = null;
+      }
+    }
+  }
+
+  private void checkNotEnded() throws IOException {
+    if (ended) {
+      throw new IOException("Compression ended with its context");
+    }
+  }
+
+}
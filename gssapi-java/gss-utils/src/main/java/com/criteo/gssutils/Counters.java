@@ -0,0 +1,60 @@
+package com.criteo.gssutils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named monotonic counters shared by server threads (connections accepted, rejected ...).
+ *
+ * Counters are created on first use and are cheap to increment from many threads at once.
+ */
+public class Counters {
+
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final long startNanos = System.nanoTime();
+
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  public void add(String name, long delta) {
+    LongAdder counter = counters.get(name);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+    counter.add(delta);
+  }
+
+  public long get(String name) {
+    LongAdder counter = counters.get(name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * @return sorted copy of all counter values
+   */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().sum());
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return number of events per second of counter since creation of this instance
+   */
+  public double rate(String name) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return seconds <= 0 ? 0 : get(name) / seconds;
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+
+}
@@ -0,0 +1,107 @@
+package com.criteo.gssutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Fire-and-forget messages sent as UDP datagrams over a context established on a TCP connection
+ * which negotiated Preface.DATAGRAM: no head-of-line blocking, nor kernel state per message
+ * stream. The server hands them to its RequestHandler and drops the replies.
+ * <p>
+ * A datagram holds the 8-byte big-endian id of the session then the token of one message (see
+ * Protection; compression, batching and request ids do not apply). Both sides derive the session
+ * id from the initial context token (the first 8 bytes of its SHA-256), so no message is needed to
+ * open the session; it lasts as long as the TCP connection. Datagrams may be lost or reordered:
+ * the server tolerates gaps and out of sequence tokens but drops duplicates (replays) and tokens
+ * too old to be checked. Contexts meant for datagrams should request replay detection without
+ * sequence detection.
+ * <p>
+ * A sender is not thread safe; it may be used while other threads use the TCP channel, wrap is
+ * synchronized on the context.
+ */
+public class DatagramSender implements Closeable {
+
+  public static final int SESSION_BYTES = 8;
+  // Ethernet MTU minus IPv4 and UDP headers: larger datagrams are fragmented
+  public static final int MAX_DATAGRAM_BYTES = Integer.getInteger("gss.datagram.maxBytes", 1472);
+
+  private final GSSContext context;
+  private final long sessionId;
+  private final boolean mic;
+  private final DatagramChannel channel;
+
+  /**
+   * @param channel channel whose connection negotiated Preface.DATAGRAM, its context is used
+   * @param server address of the UDP socket of the server
+   */
+  public DatagramSender(GssChannel channel, InetSocketAddress server) throws IOException {
+    this(channel.getContext(), channel.sessionId(), (channel.features() & Preface.INTEGRITY) != 0,
+        server);
+  }
+
+  DatagramSender(GSSContext context, long sessionId, boolean mic, InetSocketAddress server)
+      throws IOException {
+    this.context = context;
+    this.sessionId = sessionId;
+    this.mic = mic;
+    this.channel = DatagramChannel.open().connect(server);
+  }
+
+  /**
+   * @return id of the session opened by the initial context token
+   */
+  public static long sessionId(byte[] token, int offset, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(token, offset, length);
+      return ByteBuffer.wrap(digest.digest()).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return length of the largest message sent in one datagram of MAX_DATAGRAM_BYTES
+   */
+  public int maxMessageBytes(boolean confidential) throws GSSException {
+    synchronized (context) {
+      return context.getWrapSizeLimit(0, confidential, MAX_DATAGRAM_BYTES - SESSION_BYTES);
+    }
+  }
+
+  /**
+   * Protect message and send it in one datagram, without waiting for anything.
+   *
+   * @throws IOException if the datagram would be longer than MAX_DATAGRAM_BYTES
+   */
+  public void send(byte[] message, boolean confidential) throws IOException, GSSException {
+    byte[] token;
+    synchronized (context) {
+      token = Protection.protect(context, message, new MessageProp(0, confidential), mic);
+    }
+    if (SESSION_BYTES + token.length > MAX_DATAGRAM_BYTES) {
+      throw new IOException("Datagram of " + (SESSION_BYTES + token.length) + " bytes over "
+          + MAX_DATAGRAM_BYTES);
+    }
+    ByteBuffer datagram = ByteBuffer.allocate(SESSION_BYTES + token.length);
+    datagram.putLong(sessionId).put(token).flip();
+    channel.write(datagram);
+  }
+
+  /**
+   * Close the UDP socket, the TCP channel and its context stay open.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
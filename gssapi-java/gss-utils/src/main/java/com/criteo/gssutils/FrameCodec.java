@@ -0,0 +1,214 @@
+package com.criteo.gssutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Codec of the frames exchanged by GssClient and GssServer: a 4-byte big-endian length followed by
+ * a GSS token. Frames of multiplexed connections (Preface.MULTIPLEX) have an 8-byte header: the
+ * length then the 4-byte big-endian id of the stream of the token.
+ * <p>
+ * Header and token are written with one gathering write, in a single syscall (and TCP segment for
+ * small tokens), without copying the token. Frames are read into heap buffers of a BufferPool,
+ * the token starts at index 0 of the array: the caller passes
+ * {@code frame.array(), 0, frame.remaining()} to the GSS-API and then releases the buffer.
+ */
+public class FrameCodec {
+
+  public static final int HEADER_BYTES = 4;
+  public static final int MUX_HEADER_BYTES = 8;
+
+  private FrameCodec() {
+  }
+
+  /**
+   * @return new header buffer ready to be written, for a token of length bytes
+   */
+  public static ByteBuffer header(int length) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(0, length);
+    return header;
+  }
+
+  /**
+   * @return new multiplexed header buffer ready to be written, for a token of length bytes of
+   * stream
+   */
+  public static ByteBuffer header(int length, int stream) {
+    ByteBuffer header = ByteBuffer.allocate(MUX_HEADER_BYTES);
+    header.putInt(0, length);
+    header.putInt(4, stream);
+    return header;
+  }
+
+  /**
+   * Write a frame of stream on a blocking multiplexed channel.
+   *
+   * @param header MUX_HEADER_BYTES buffer reused by the caller for each frame
+   */
+  public static void write(GatheringByteChannel channel, ByteBuffer header, int stream,
+      byte[] token) throws IOException {
+    header.putInt(4, stream);
+    write(channel, header, token);
+  }
+
+  /**
+   * Write a frame on a blocking channel.
+   *
+   * @param header HEADER_BYTES buffer reused by the caller for each frame, or MUX_HEADER_BYTES
+   * buffer holding the stream id at index 4
+   */
+  public static void write(GatheringByteChannel channel, ByteBuffer header, byte[] token)
+      throws IOException {
+    header.clear();
+    header.putInt(0, token.length);
+    ByteBuffer body = ByteBuffer.wrap(token);
+    ByteBuffer[] frame = {header, body};
+    while (header.hasRemaining() || body.hasRemaining()) {
+      channel.write(frame);
+    }
+  }
+
+  /**
+   * Write frames on a blocking channel with one gathering write.
+   */
+  public static void write(GatheringByteChannel channel, List<byte[]> tokens)
+      throws IOException {
+    ByteBuffer[] frames = new ByteBuffer[2 * tokens.size()];
+    for (int i = 0; i < tokens.size(); i++) {
+      frames[2 * i] = header(tokens.get(i).length);
+      frames[2 * i + 1] = ByteBuffer.wrap(tokens.get(i));
+    }
+    ByteBuffer lastHeader = frames[frames.length - 2];
+    ByteBuffer lastBody = frames[frames.length - 1];
+    while (lastHeader.hasRemaining() || lastBody.hasRemaining()) {
+      channel.write(frames);
+    }
+  }
+
+  /**
+   * Read a frame from a blocking channel.
+   *
+   * @param header HEADER_BYTES buffer reused by the caller for each frame, or MUX_HEADER_BYTES
+   * buffer: the stream id of the frame is then at index 4
+   * @param max maximum length of the token
+   * @return token read in a buffer of pool, or null if the channel reached end of stream before
+   * the frame
+   * @throws EOFException if end of stream is reached in the middle of the frame
+   */
+  public static ByteBuffer read(ReadableByteChannel channel, ByteBuffer header, int max,
+      BufferPool pool) throws IOException {
+    header.clear();
+    while (header.hasRemaining()) {
+      if (channel.read(header) < 0) {
+        if (header.position() == 0) {
+          return null;
+        }
+        throw new EOFException("End of stream in frame header");
+      }
+    }
+    int length = header.getInt(0);
+    GssTokens.checkFrameLength(length, max);
+    ByteBuffer frame = pool.acquire(length);
+    try {
+      while (frame.hasRemaining()) {
+        if (channel.read(frame) < 0) {
+          throw new EOFException("End of stream after " + frame.position() + " of " + length
+              + " bytes");
+        }
+      }
+    } catch (IOException e) {
+      pool.release(frame);
+      throw e;
+    }
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Incremental reader of the frames of a non-blocking channel.
+   */
+  public static class Decoder {
+
+    private final BufferPool pool;
+    private final ByteBuffer header;
+    private ByteBuffer body;
+    private int stream;
+
+    public Decoder(BufferPool pool) {
+      this(pool, HEADER_BYTES);
+    }
+
+    /**
+     * @param headerBytes HEADER_BYTES, or MUX_HEADER_BYTES for multiplexed frames
+     */
+    public Decoder(BufferPool pool, int headerBytes) {
+      this.pool = pool;
+      this.header = ByteBuffer.allocate(headerBytes);
+    }
+
+    /**
+     * Read what is available of the next frame.
+     *
+     * @param max maximum length of the token of the next frame
+     * @return complete token in a buffer of the pool, null if the frame is not complete yet
+     * @throws EOFException at end of stream
+     */
+    public ByteBuffer read(ReadableByteChannel channel, int max) throws IOException {
+      if (body == null) {
+        if (channel.read(header) < 0) {
+          throw new EOFException();
+        }
+        if (header.hasRemaining()) {
+          return null;
+        }
+        int length = header.getInt(0);
+        if (header.capacity() == MUX_HEADER_BYTES) {
+          stream = header.getInt(4);
+        }
+        header.clear();
+        GssTokens.checkFrameLength(length, max);
+        body = pool.acquire(length);
+      }
+      if (channel.read(body) < 0) {
+        throw new EOFException();
+      }
+      if (body.hasRemaining()) {
+        return null;
+      }
+      ByteBuffer frame = body;
+      body = null;
+      frame.flip();
+      return frame;
+    }
+
+    /**
+     * @return stream id of the last frame whose header was read, multiplexed frames only
+     */
+    public int stream() {
+      return stream;
+    }
+
+    /**
+     * @return true if part of a frame has been read
+     */
+    public boolean inFrame() {
+      return body != null || header.position() > 0;
+    }
+
+    /**
+     * Give the buffer of an incomplete frame back to the pool.
+     */
+    public void release() {
+      if (body != null) {
+        pool.release(body);
+        body = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+
+/**
+ * Frame refused before allocation or processing: too large, or not a GSS token.
+ */
+public class FrameRejectedException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String reason;
+
+  /**
+   * @param reason short reason used in counter names (size, tag, mechanism ...)
+   */
+  public FrameRejectedException(String reason, String message) {
+    super(message);
+    this.reason = reason;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+}
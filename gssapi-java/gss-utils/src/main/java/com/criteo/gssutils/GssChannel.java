@@ -0,0 +1,353 @@
+package com.criteo.gssutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Blocking secure channel over a socket channel with an established GSS context.
+ * <p>
+ * Every message is wrapped (with confidentiality) in a frame with a 4-byte big-endian length
+ * header, written and read by FrameCodec with buffers of the shared BufferPool. One context
+ * carries any number of request/response exchanges, the handshake cost is thus paid once per
+ * connection. A frame of length 0 is a close frame: the peer will not send anything else and
+ * closes its side. Frames larger than the limits of GssTokens are refused before allocation with
+ * a FrameRejectedException.
+ * <p>
+ * Messages are wrapped with confidentiality unless sent with confidential false, see Protection.
+ * <p>
+ * With early data (Preface.EARLY_DATA, initiateEarly) the preface and the initial context token of
+ * the client are held back and written with its first message, in one gathering write: the first
+ * reply comes back after one round trip instead of two or three. The acceptor side holds back its
+ * preface answer and last context token the same way (defer), until its first reply.
+ * <p>
+ * With resumption (Preface.RESUME) the first frame after the handshake is the ticket of the server,
+ * read with the first reply (resumptionTicket).
+ * <p>
+ * With Preface.FAST both sides replace the Kerberos context by a SessionKeyContext once it is
+ * established, for bulk messages: getContext returns it.
+ * <p>
+ * A channel is not thread safe, except that one thread may send while another one receives (see
+ * PipelinedChannel): wrap and unwrap are synchronized on the context.
+ */
+public class GssChannel implements MessageChannel {
+
+  private static final boolean verbose = false;
+
+  private final SocketChannel channel;
+  private GSSContext context;
+  private int features;
+  // Frames written with the next one, and flags of an early data preface whose answer is not read
+  private final List<byte[]> deferred = new ArrayList<>();
+  private int earlyFlags = -1;
+  private long sessionId;
+  private boolean ticketPending;
+  private ResumptionTicket ticket;
+  private final BufferPool pool = BufferPool.shared();
+  private final ByteBuffer readHeader = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+  private final ByteBuffer writeHeader = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+  private boolean closed;
+
+  /**
+   * @param channel connected channel in blocking mode
+   * @param context context already established with the peer at the other end of channel
+   */
+  public GssChannel(SocketChannel channel, GSSContext context) {
+    this(channel, context, 0);
+  }
+
+  /**
+   * @param features Preface flags accepted for the connection
+   */
+  public GssChannel(SocketChannel channel, GSSContext context, int features) {
+    this.channel = channel;
+    this.context = context;
+    this.features = features;
+  }
+
+  /**
+   * Run the initiator side of the context establishment loop on socketChannel.
+   *
+   * @param socketChannel connected channel in blocking mode
+   * @param context initiator context, not established yet
+   * @return channel to exchange messages with the acceptor
+   */
+  public static GssChannel initiate(SocketChannel socketChannel, GSSContext context)
+      throws IOException, GSSException {
+    return initiate(socketChannel, context, 0);
+  }
+
+  /**
+   * Run the initiator side of the context establishment loop on socketChannel, after a Preface.
+   *
+   * @param features Preface flags accepted by the server
+   */
+  public static GssChannel initiate(SocketChannel socketChannel, GSSContext context,
+      int features) throws IOException, GSSException {
+
+    GssChannel channel = new GssChannel(socketChannel, context, features);
+    channel.ticketPending = (features & Preface.RESUME) != 0;
+
+    // token is ignored on the first call
+    byte[] token = context.initSecContext(new byte[0], 0, 0);
+    channel.initialToken(token);
+    return establish(channel, token);
+  }
+
+  /**
+   * Run the initiator side of the context establishment loop with early data: when the context is
+   * established by its initial token (krb5 without mutual authentication), the preface asking for
+   * features and Preface.EARLY_DATA and the token are only written with the first message, and
+   * the answer of the server is read before the first reply. The server must then accept all the
+   * features, else the first receive throws a FrameRejectedException. Otherwise the preface and
+   * the initial token are written together, without early data, before the usual loop.
+   *
+   * @param socketChannel connected channel in blocking mode, before any frame
+   * @param context initiator context, not established yet
+   * @param features Preface flags asked for, 0 for none
+   * @return channel to exchange messages with the acceptor
+   */
+  public static GssChannel initiateEarly(SocketChannel socketChannel, GSSContext context,
+      int features) throws IOException, GSSException {
+
+    GssChannel channel = new GssChannel(socketChannel, context, features);
+    byte[] token = context.initSecContext(new byte[0], 0, 0);
+    channel.initialToken(token);
+    channel.ticketPending = (features & Preface.RESUME) != 0;
+    if (context.isEstablished()) {
+      channel.earlyFlags = features | Preface.EARLY_DATA;
+      channel.fast();
+      channel.defer(Preface.encode(channel.earlyFlags));
+      channel.defer(token);
+      return channel;
+    }
+    FrameCodec.write(socketChannel, Arrays.asList(Preface.encode(features), token));
+    channel.features = channel.readAnswer(features);
+    channel.ticketPending = (channel.features & Preface.RESUME) != 0;
+    return establish(channel, null);
+  }
+
+  /**
+   * @param token first token of the initiator to send, null to read the answer of the acceptor
+   */
+  private static GssChannel establish(GssChannel channel, byte[] token)
+      throws IOException, GSSException {
+    GSSContext context = channel.context;
+    while (true) {
+
+      // Send a token to the server if one was generated by initSecContext
+      if (token != null) {
+        if (verbose) {
+          System.out.println("Will send token of size " + token.length + " from initSecContext.");
+        }
+        channel.writeFrame(token);
+      }
+
+      // If the client is done with context establishment
+      // then there will be no more tokens to read in this loop
+      if (context.isEstablished()) {
+        channel.fast();
+        return channel;
+      }
+      ByteBuffer frame = channel.readFrame(GssTokens.MAX_HANDSHAKE_FRAME_BYTES);
+      try {
+        if (verbose) {
+          System.out.println("Read input token of size " + frame.remaining()
+              + " for processing by initSecContext");
+        }
+        token = context.initSecContext(frame.array(), 0, frame.remaining());
+      } finally {
+        channel.pool.release(frame);
+      }
+    }
+  }
+
+  @Override
+  public GSSContext getContext() {
+    return context;
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return Preface flags of the connection: accepted by the server, or asked for with early data
+   */
+  public int features() {
+    return features;
+  }
+
+  /**
+   * @return id of the datagram session of the context (Preface.DATAGRAM), see DatagramSender, also
+   * salting the keys of Preface.FAST
+   */
+  public long sessionId() {
+    return sessionId;
+  }
+
+  /**
+   * @return resumption ticket sent by the server (Preface.RESUME) once the first reply is
+   * received, else null
+   */
+  public ResumptionTicket resumptionTicket() {
+    return ticket;
+  }
+
+  /**
+   * Write token as a frame of its own right before the next frame, in the same write: a preface
+   * answer or a last context token goes out with the first reply (Preface.EARLY_DATA).
+   */
+  public void defer(byte[] token) {
+    deferred.add(token);
+  }
+
+  @Override
+  public void send(byte[] message, boolean confidential) throws IOException, GSSException {
+    MessageProp prop = new MessageProp(0, confidential);
+    byte[] token;
+    synchronized (context) {
+      token = Protection.protect(context, message, prop, mic());
+    }
+    writeFrame(token);
+  }
+
+  /**
+   * Receive the next message and check its protection.
+   *
+   * @return message or null if the peer sent a close frame or closed the connection
+   */
+  @Override
+  public byte[] receive(MessageProp prop) throws IOException, GSSException {
+    if (earlyFlags >= 0) {
+      if (readAnswer(earlyFlags) != earlyFlags) {
+        throw new FrameRejectedException("preface", "Server refused early data or features");
+      }
+      earlyFlags = -1;
+    }
+    while (true) {
+      ByteBuffer frame;
+      try {
+        frame = FrameCodec.read(channel, readHeader, GssTokens.MAX_FRAME_BYTES, pool);
+      } catch (EOFException e) {
+        return null;
+      }
+      if (frame == null) {
+        return null;
+      }
+      try {
+        if (!frame.hasRemaining()) {
+          return null;
+        }
+        synchronized (context) {
+          if (!ticketPending) {
+            return Protection.unprotect(context, frame.array(), 0, frame.remaining(), prop,
+                mic());
+          }
+          ticketPending = false;
+          MessageProp ticketProp = new MessageProp(0, true);
+          byte[] message = context.unwrap(frame.array(), 0, frame.remaining(), ticketProp);
+          if (!ticketProp.getPrivacy()) {
+            throw new FrameRejectedException("ticket", "Resumption ticket sent in the clear");
+          }
+          ticket = ResumptionTicket.decode(message);
+        }
+      } finally {
+        pool.release(frame);
+      }
+    }
+  }
+
+  /**
+   * Send a message and wait for the reply.
+   *
+   * @return reply or null if the peer closed the channel instead of replying
+   */
+  public byte[] request(byte[] message) throws IOException, GSSException {
+    send(message);
+    return receive();
+  }
+
+  /**
+   * Send a close frame, dispose the context and close the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeFrame(new byte[0]);
+    } catch (IOException e) {
+      // peer already gone
+    } finally {
+      try {
+        context.dispose();
+      } catch (GSSException e) {
+        // nothing to do
+      }
+      channel.close();
+    }
+  }
+
+  private void initialToken(byte[] token) {
+    if ((features & (Preface.DATAGRAM | Preface.FAST)) != 0) {
+      sessionId = DatagramSender.sessionId(token, 0, token.length);
+    }
+  }
+
+  /**
+   * Switch to the fast channel of the established context if negotiated (Preface.FAST).
+   */
+  private void fast() throws GSSException {
+    if ((features & Preface.FAST) != 0) {
+      context = SessionKeyContext.of(context, sessionId);
+    }
+  }
+
+  private boolean mic() {
+    return (features & Preface.INTEGRITY) != 0;
+  }
+
+  private void writeFrame(byte[] token) throws IOException {
+    if (deferred.isEmpty()) {
+      FrameCodec.write(channel, writeHeader, token);
+      return;
+    }
+    deferred.add(token);
+    FrameCodec.write(channel, deferred);
+    deferred.clear();
+  }
+
+  /**
+   * @return flags accepted by the preface answer of the server
+   */
+  private int readAnswer(int flags) throws IOException {
+    ByteBuffer frame = readFrame(GssTokens.MAX_HANDSHAKE_FRAME_BYTES);
+    try {
+      return Preface.answer(frame.array(), 0, frame.remaining(), flags);
+    } finally {
+      pool.release(frame);
+    }
+  }
+
+  /**
+   * @return frame in a buffer of the pool, to be released
+   */
+  private ByteBuffer readFrame(int max) throws IOException {
+    ByteBuffer frame = FrameCodec.read(channel, readHeader, max, pool);
+    if (frame == null) {
+      throw new EOFException("Connection closed during context establishment");
+    }
+    return frame;
+  }
+
+}
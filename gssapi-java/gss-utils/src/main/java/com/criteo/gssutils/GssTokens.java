@@ -0,0 +1,94 @@
+package com.criteo.gssutils;
+
+/**
+ * Limits and cheap structural checks of the GSS tokens received in length-prefixed frames, so
+ * that a bad peer cannot make us allocate a huge buffer or run any crypto on garbage.
+ * <p>
+ * Frames are bounded per phase: handshake frames by gss.maxHandshakeFrameBytes (default 64 KiB,
+ * enough for tickets with a large PAC) and frames of an established context by
+ * gss.maxFrameBytes (default 16 MiB).
+ */
+public class GssTokens {
+
+  public static final int MAX_HANDSHAKE_FRAME_BYTES =
+      Integer.getInteger("gss.maxHandshakeFrameBytes", 64 * 1024);
+  public static final int MAX_FRAME_BYTES =
+      Integer.getInteger("gss.maxFrameBytes", 16 * 1024 * 1024);
+
+  /**
+   * DER encoding of the krb5 mechanism OID 1.2.840.113554.1.2.2.
+   */
+  private static final byte[] KRB5_OID = {
+      0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+  private static final int TOKEN_TAG = 0x60;
+  private static final int AP_REQ_TAG = 0x6e;
+
+  private GssTokens() {
+  }
+
+  /**
+   * Check a frame length announced by the peer.
+   *
+   * @param max maximum length of the current phase
+   */
+  public static void checkFrameLength(int length, int max) throws FrameRejectedException {
+    if (length < 0 || length > max) {
+      throw new FrameRejectedException("size", "Frame of " + length + " bytes, maximum " + max);
+    }
+  }
+
+  /**
+   * Check the header of an initial krb5 context token (RFC 2743 section 3.1, RFC 4121 section
+   * 4.1): application tag 0x60, DER length matching the token length, krb5 mechanism OID, AP-REQ
+   * token id 01 00 and the AP-REQ application tag 0x6e. Nothing is decrypted.
+   *
+   * @return null if the token looks valid, else the reason of the rejection
+   */
+  public static String checkInitialToken(byte[] token) {
+    return checkInitialToken(token, 0, token.length);
+  }
+
+  /**
+   * Check the initial token of tokenLength bytes at offset of token.
+   *
+   * @see #checkInitialToken(byte[])
+   */
+  public static String checkInitialToken(byte[] token, int offset, int tokenLength) {
+    int end = offset + tokenLength;
+    if (tokenLength < 2 || (token[offset] & 0xff) != TOKEN_TAG) {
+      return "tag";
+    }
+    int pos = offset + 1;
+    int first = token[pos++] & 0xff;
+    int length = first;
+    if (first >= 0x80) {
+      int bytes = first & 0x7f;
+      if (bytes == 0 || bytes > 3 || end < pos + bytes) {
+        return "length";
+      }
+      length = 0;
+      for (int i = 0; i < bytes; i++) {
+        length = (length << 8) | (token[pos++] & 0xff);
+      }
+    }
+    if (length != end - pos) {
+      return "length";
+    }
+    if (end < pos + KRB5_OID.length + 3) {
+      return "mechanism";
+    }
+    for (byte b : KRB5_OID) {
+      if (token[pos++] != b) {
+        return "mechanism";
+      }
+    }
+    if (token[pos] != 0x01 || token[pos + 1] != 0x00) {
+      return "tokenId";
+    }
+    if ((token[pos + 2] & 0xff) != AP_REQ_TAG) {
+      return "apReq";
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,207 @@
+package com.criteo.gssutils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: timeouts are hashed by expiry tick into a ring of buckets, so scheduling
+ * and cancelling cost O(1) whatever the number of timeouts, and each tick only looks at one bucket.
+ * <p>
+ * Timeouts may be scheduled and cancelled from any thread. Expired timeouts are run by the thread
+ * calling {@link #advance(long)}, either the owner of the wheel (an event loop, between two
+ * selects) or the ticker thread started by {@link #start(String)}. Tasks are never run before
+ * their deadline, and at most one tick after it if advance is called at every tick. Tasks must be
+ * short: they delay the next timeouts.
+ * <p>
+ * Timeouts further than one turn of the wheel wait for their remaining rounds in their bucket.
+ */
+public class HashedTimingWheel {
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startNanos;
+  private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  private long tick;
+  private volatile Thread ticker;
+
+  /**
+   * @param tickDuration duration of a tick, the precision of the timeouts
+   * @param wheelSize number of buckets, rounded up to a power of 2
+   */
+  public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+    this.tickNanos = unit.toNanos(tickDuration);
+    if (tickNanos <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException("Invalid tick " + tickDuration + " or size " + wheelSize);
+    }
+    int size = 1;
+    while (size < wheelSize) {
+      size <<= 1;
+    }
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.startNanos = System.nanoTime();
+  }
+
+  public long tickNanos() {
+    return tickNanos;
+  }
+
+  /**
+   * Run task at deadline (any thread).
+   *
+   * @param deadlineNanos System.nanoTime() value after which task runs
+   */
+  public Timeout schedule(Runnable task, long deadlineNanos) {
+    Timeout timeout = new Timeout(task, deadlineNanos);
+    pending.add(timeout);
+    return timeout;
+  }
+
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    return schedule(task, System.nanoTime() + unit.toNanos(delay));
+  }
+
+  /**
+   * Run the tasks of the timeouts expired at nowNanos, one thread at a time.
+   *
+   * @return number of tasks run
+   */
+  public int advance(long nowNanos) {
+    long target = (nowNanos - startNanos) / tickNanos;
+    Timeout timeout;
+    while ((timeout = pending.poll()) != null) {
+      if (!timeout.cancelled) {
+        add(timeout);
+      }
+    }
+    int expired = 0;
+    for (; tick <= target; tick++) {
+      expired += wheel[(int) (tick & mask)].expire();
+    }
+    return expired;
+  }
+
+  private void add(Timeout timeout) {
+    long deadlineTick = -Math.floorDiv(startNanos - timeout.deadlineNanos, tickNanos);
+    long ticks = Math.max(deadlineTick, tick);
+    timeout.rounds = (ticks - tick) / wheel.length;
+    wheel[(int) (ticks & mask)].add(timeout);
+  }
+
+  /**
+   * Start a daemon thread advancing the wheel at every tick.
+   */
+  public HashedTimingWheel start(String name) {
+    Thread thread = new Thread(() -> {
+      while (ticker != null) {
+        LockSupport.parkNanos(this, tickNanos);
+        advance(System.nanoTime());
+      }
+    }, name);
+    thread.setDaemon(true);
+    ticker = thread;
+    thread.start();
+    return this;
+  }
+
+  public void stop() {
+    Thread thread = ticker;
+    ticker = null;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Handle of a scheduled task.
+   */
+  public static class Timeout {
+
+    private final Runnable task;
+    private final long deadlineNanos;
+    private volatile boolean cancelled;
+    private long rounds;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadlineNanos) {
+      this.task = task;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    public long deadlineNanos() {
+      return deadlineNanos;
+    }
+
+    /**
+     * Do not run the task if it has not run yet, the timeout leaves its bucket at the next visit.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  /**
+   * Doubly linked list of the timeouts of a slot, only used by the thread advancing the wheel.
+   */
+  private static class Bucket {
+
+    private Timeout head;
+
+    void add(Timeout timeout) {
+      timeout.prev = null;
+      timeout.next = head;
+      if (head != null) {
+        head.prev = timeout;
+      }
+      head = timeout;
+    }
+
+    int expire() {
+      int expired = 0;
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.cancelled) {
+          remove(timeout);
+        } else if (timeout.rounds > 0) {
+          timeout.rounds--;
+        } else {
+          remove(timeout);
+          expired++;
+          try {
+            timeout.task.run();
+          } catch (RuntimeException e) {
+            System.err.println("Timeout task failed: " + e);
+          }
+        }
+        timeout = next;
+      }
+      return expired;
+    }
+
+    private void remove(Timeout timeout) {
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+    }
+  }
+
+}
@@ -59,6 +59,31 @@ public class Jaas {
     context.logout();
   }
 
+  /**
+   * Subject of the current Subject.doAs, to run other threads as the login Subject.
+   * Subject.current() from Java 18, Subject.getSubject(AccessController.getContext()) before: the
+   * latter is deprecated for removal and throws UnsupportedOperationException from Java 23 unless
+   * a security manager is allowed. Both are looked up by reflection to keep the project compiling
+   * for Java 8 without warnings on later versions.
+   *
+   * @return current Subject, null if none
+   */
+  public static Subject currentSubject() {
+    try {
+      try {
+        return (Subject) Subject.class.getMethod("current").invoke(null);
+      } catch (NoSuchMethodException e) {
+        Object context = Class.forName("java.security.AccessController").getMethod("getContext")
+            .invoke(null);
+        return (Subject) Subject.class
+            .getMethod("getSubject", Class.forName("java.security.AccessControlContext"))
+            .invoke(null, context);
+      }
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot get the current Subject", e);
+    }
+  }
+
   // Action to perform
   public static class MyAction implements PrivilegedExceptionAction {
 
@@ -0,0 +1,52 @@
+package com.criteo.gssutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Exchange of wrapped messages over an established GSS context: a plain connection (GssChannel) or
+ * a stream of a multiplexed connection (MuxConnection.Stream).
+ * <p>
+ * One thread may send while another one receives, wrap and unwrap are synchronized on the context.
+ */
+public interface MessageChannel extends Closeable {
+
+  GSSContext getContext();
+
+  /**
+   * Wrap message with confidentiality and send it.
+   */
+  default void send(byte[] message) throws IOException, GSSException {
+    send(message, true);
+  }
+
+  /**
+   * Protect message and send it.
+   *
+   * @param confidential false to only protect the integrity of message, sent in the clear (see
+   * Protection)
+   */
+  void send(byte[] message, boolean confidential) throws IOException, GSSException;
+
+  /**
+   * Receive and unwrap the next message.
+   *
+   * @return message or null if the peer closed the channel
+   */
+  default byte[] receive() throws IOException, GSSException {
+    return receive(new MessageProp(0, false));
+  }
+
+  /**
+   * Receive the next message and check its protection.
+   *
+   * @param prop set to the protection of the message: privacy is false for a message only
+   * protected for integrity
+   * @return message or null if the peer closed the channel
+   */
+  byte[] receive(MessageProp prop) throws IOException, GSSException;
+
+}
@@ -0,0 +1,147 @@
+package com.criteo.gssutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Payloads of any length sent as a sequence of messages (chunks) of a MessageChannel, so that
+ * neither side holds the whole payload: heap use is a few chunks however large the payload is.
+ * <p>
+ * Chunks are sized with getWrapSizeLimit so that each wrap token is about gss.stream.chunkBytes
+ * (compression or a MIC may add a few bytes). Each chunk starts with one byte: 1 when more chunks
+ * follow, 0 for the last one (which may be empty), 2 when the sender failed to read its source:
+ * the receiver then throws an IOException and the channel can carry other messages.
+ * <p>
+ * Both peers must expect the stream: no other message may be sent on the channel until the last
+ * chunk (it is not meant for a PipelinedChannel, whose replies arrive in any order).
+ */
+public class MessageStreams {
+
+  public static final int CHUNK_BYTES = Integer.getInteger("gss.stream.chunkBytes", 64 * 1024);
+
+  private static final byte LAST = 0;
+  private static final byte MORE = 1;
+  private static final byte ABORT = 2;
+  private static final int HEADER_BYTES = 1;
+
+  private MessageStreams() {
+  }
+
+  /**
+   * Send the content of in until its end, in chunks.
+   *
+   * @param confidential false to only protect the integrity of the chunks, see Protection
+   * @return number of bytes sent
+   */
+  public static long send(MessageChannel channel, InputStream in, boolean confidential)
+      throws IOException, GSSException {
+    return send(channel, Channels.newChannel(in), confidential);
+  }
+
+  /**
+   * Send the content of in (a FileChannel for instance) until its end, in chunks.
+   *
+   * @param confidential false to only protect the integrity of the chunks, see Protection
+   * @return number of bytes sent
+   */
+  public static long send(MessageChannel channel, ReadableByteChannel in, boolean confidential)
+      throws IOException, GSSException {
+    return send(channel, in, confidential, chunkBytes(channel.getContext(), confidential));
+  }
+
+  static long send(MessageChannel channel, ReadableByteChannel in, boolean confidential,
+      int chunkBytes) throws IOException, GSSException {
+    long sent = 0;
+    while (true) {
+      // A new chunk each time: the channel may keep the previous one (BatchingChannel)
+      ByteBuffer chunk = ByteBuffer.allocate(HEADER_BYTES + chunkBytes);
+      chunk.position(HEADER_BYTES);
+      boolean end = false;
+      try {
+        while (chunk.hasRemaining() && !end) {
+          end = in.read(chunk) < 0;
+        }
+      } catch (IOException e) {
+        channel.send(new byte[] {ABORT}, confidential);
+        throw e;
+      }
+      byte[] message = chunk.array();
+      message[0] = end ? LAST : MORE;
+      if (chunk.hasRemaining()) {
+        message = Arrays.copyOf(message, chunk.position());
+      }
+      channel.send(message, confidential);
+      sent += message.length - HEADER_BYTES;
+      if (end) {
+        return sent;
+      }
+    }
+  }
+
+  /**
+   * Receive the chunks of a stream until its last one and write them to out.
+   *
+   * @return number of bytes received
+   * @throws EOFException if the channel is closed before the last chunk
+   * @throws FrameRejectedException if a message is not a chunk
+   */
+  public static long receive(MessageChannel channel, OutputStream out)
+      throws IOException, GSSException {
+    return receive(channel, Channels.newChannel(out));
+  }
+
+  /**
+   * Receive the chunks of a stream until its last one and write them to out (a FileChannel for
+   * instance).
+   *
+   * @return number of bytes received
+   */
+  public static long receive(MessageChannel channel, WritableByteChannel out)
+      throws IOException, GSSException {
+    MessageProp prop = new MessageProp(0, false);
+    long received = 0;
+    while (true) {
+      byte[] message = channel.receive(prop);
+      if (message == null) {
+        throw new EOFException("Channel closed after " + received + " bytes of a stream");
+      }
+      if (message.length == 0 || message[0] < LAST || message[0] > ABORT) {
+        throw new FrameRejectedException("chunk", "Message without chunk header");
+      }
+      if (message[0] == ABORT) {
+        throw new IOException("Stream aborted by the peer after " + received + " bytes");
+      }
+      ByteBuffer data = ByteBuffer.wrap(message, HEADER_BYTES, message.length - HEADER_BYTES);
+      while (data.hasRemaining()) {
+        out.write(data);
+      }
+      received += message.length - HEADER_BYTES;
+      if (message[0] == LAST) {
+        return received;
+      }
+    }
+  }
+
+  /**
+   * @return bytes of data per chunk, so that its wrap token is about CHUNK_BYTES
+   */
+  static int chunkBytes(GSSContext context, boolean confidential) throws GSSException {
+    int maxToken = Math.min(CHUNK_BYTES, GssTokens.MAX_FRAME_BYTES);
+    int limit;
+    synchronized (context) {
+      limit = context.getWrapSizeLimit(0, confidential, maxToken);
+    }
+    return Math.max(1, limit - HEADER_BYTES);
+  }
+
+}
@@ -0,0 +1,329 @@
+package com.criteo.gssutils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Client side of a multiplexed connection (Preface.MULTIPLEX): many GSS contexts, possibly of
+ * different client principals, share one socket channel, each one in its own stream.
+ * <p>
+ * Frames carry the id of their stream in an 8-byte header (FrameCodec.MUX_HEADER_BYTES). A stream
+ * starts with the first context token of a new id and ends with a frame of length 0 of this id,
+ * from either side. A frame of length 0 on stream 0 closes the whole connection. Within a stream
+ * the protocol is the one of GssChannel: context establishment, then wrapped messages.
+ * <p>
+ * A reader thread dispatches received frames to the queues of their streams, so a stream waiting
+ * for its reply never blocks the others. Frames are written with one gathering write each, under a
+ * lock shared by the streams. A Stream is not thread safe, except that one thread may send while
+ * another one receives; different streams can be used by different threads at the same time.
+ * <p>
+ * Other features can be asked for with the preface, for instance Preface.PIPELINE to use the
+ * streams with PipelinedChannel.
+ */
+public class MuxConnection implements Closeable {
+
+  private static final boolean verbose = false;
+
+  /**
+   * Queued when the stream or the connection is closed by the server.
+   */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+  // Names the reader threads, Unix domain channels have no local port
+  private static final AtomicInteger READERS = new AtomicInteger();
+
+  private final SocketChannel channel;
+  private final BufferPool pool = BufferPool.shared();
+  private final ByteBuffer writeHeader = ByteBuffer.allocate(FrameCodec.MUX_HEADER_BYTES);
+  private final ConcurrentMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+  private final AtomicInteger streamIds = new AtomicInteger();
+  private final int features;
+  private volatile boolean closed;
+
+  private MuxConnection(SocketChannel channel, int features) {
+    this.channel = channel;
+    this.features = features;
+  }
+
+  /**
+   * Negotiate multiplexing on a new connection and start its reader thread.
+   *
+   * @param channel connected channel in blocking mode, closed if the server does not support
+   * multiplexing
+   */
+  public static MuxConnection open(SocketChannel channel) throws IOException {
+    return open(channel, 0);
+  }
+
+  /**
+   * Negotiate multiplexing and other features on a new connection and start its reader thread.
+   *
+   * @param features other Preface flags asked for, see {@link #features()}
+   */
+  public static MuxConnection open(SocketChannel channel, int features) throws IOException {
+    int accepted;
+    try {
+      accepted = Preface.negotiate(channel, Preface.MULTIPLEX | features);
+      if ((accepted & Preface.MULTIPLEX) == 0) {
+        throw new IOException("Server does not support multiplexing");
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    MuxConnection connection = new MuxConnection(channel, accepted);
+    Thread reader = new Thread(connection::readFrames,
+        "gss-mux-reader-" + READERS.incrementAndGet());
+    reader.setDaemon(true);
+    reader.start();
+    return connection;
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return Preface flags accepted by the server
+   */
+  public int features() {
+    return features;
+  }
+
+  /**
+   * Open a new stream and run the initiator side of the context establishment loop on it.
+   *
+   * @param context initiator context, not established yet
+   * @return stream to exchange messages with the acceptor
+   */
+  public Stream initiate(GSSContext context) throws IOException, GSSException {
+    Stream stream = new Stream(streamIds.incrementAndGet(), context);
+    streams.put(stream.id, stream);
+    if (closed) {
+      stream.inbound.add(END);
+    }
+    try {
+      byte[] token = context.initSecContext(new byte[0], 0, 0);
+      while (true) {
+        if (token != null) {
+          write(stream.id, token);
+        }
+        if (context.isEstablished()) {
+          return stream;
+        }
+        ByteBuffer frame = stream.take();
+        if (!frame.hasRemaining()) {
+          throw new EOFException("Stream closed during context establishment");
+        }
+        try {
+          token = context.initSecContext(frame.array(), 0, frame.remaining());
+        } finally {
+          pool.release(frame);
+        }
+      }
+    } catch (IOException | GSSException e) {
+      stream.closed = true;
+      streams.remove(stream.id);
+      context.dispose();
+      throw e;
+    }
+  }
+
+  /**
+   * @return number of open streams
+   */
+  public int streams() {
+    return streams.size();
+  }
+
+  /**
+   * Send a close frame for the connection, then close the channel and dispose the contexts of the
+   * streams still open.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      write(0, new byte[0]);
+    } catch (IOException e) {
+      // server already gone
+    } finally {
+      channel.close();
+      for (Stream stream : streams.values()) {
+        stream.close();
+      }
+    }
+  }
+
+  private boolean mic() {
+    return (features & Preface.INTEGRITY) != 0;
+  }
+
+  private void write(int stream, byte[] token) throws IOException {
+    synchronized (writeHeader) {
+      FrameCodec.write(channel, writeHeader, stream, token);
+    }
+  }
+
+  /**
+   * Reader thread: dispatch frames to their streams until the connection is closed.
+   */
+  private void readFrames() {
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.MUX_HEADER_BYTES);
+    try {
+      ByteBuffer frame;
+      while ((frame = FrameCodec.read(channel, header, GssTokens.MAX_FRAME_BYTES, pool))
+          != null) {
+        int id = header.getInt(4);
+        Stream stream = streams.get(id);
+        if (stream == null) {
+          pool.release(frame);
+          if (id == 0) {
+            break;
+          }
+          continue;
+        }
+        if (!frame.hasRemaining()) {
+          // The server closed the stream, it can not be used anymore
+          streams.remove(id);
+        }
+        stream.inbound.add(frame);
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        System.err.println("Multiplexed connection failed: " + e);
+      }
+    } finally {
+      closed = true;
+      for (Stream stream : streams.values()) {
+        stream.inbound.add(END);
+      }
+    }
+  }
+
+  /**
+   * One GSS context of the connection.
+   */
+  public class Stream implements MessageChannel {
+
+    private final int id;
+    private final GSSContext context;
+    private final BlockingQueue<ByteBuffer> inbound = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    private Stream(int id, GSSContext context) {
+      this.id = id;
+      this.context = context;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    @Override
+    public GSSContext getContext() {
+      return context;
+    }
+
+    @Override
+    public void send(byte[] message, boolean confidential) throws IOException, GSSException {
+      if (closed) {
+        throw new EOFException("Stream " + id + " is closed");
+      }
+      MessageProp prop = new MessageProp(0, confidential);
+      byte[] token;
+      synchronized (context) {
+        token = Protection.protect(context, message, prop, mic());
+      }
+      write(id, token);
+    }
+
+    /**
+     * Receive the next message of this stream and check its protection.
+     *
+     * @return message or null if the server closed the stream or the connection
+     */
+    @Override
+    public byte[] receive(MessageProp prop) throws IOException, GSSException {
+      if (closed) {
+        return null;
+      }
+      ByteBuffer frame = take();
+      try {
+        if (!frame.hasRemaining()) {
+          closed = true;
+          return null;
+        }
+        synchronized (context) {
+          return Protection.unprotect(context, frame.array(), 0, frame.remaining(), prop, mic());
+        }
+      } finally {
+        pool.release(frame);
+      }
+    }
+
+    /**
+     * Send a message and wait for the reply.
+     *
+     * @return reply or null if the server closed the stream instead of replying
+     */
+    public byte[] request(byte[] message) throws IOException, GSSException {
+      send(message);
+      return receive();
+    }
+
+    /**
+     * Send a close frame for this stream if still open and dispose its context, the other streams
+     * go on.
+     */
+    @Override
+    public void close() throws IOException {
+      if (streams.remove(id) != null && !closed && !MuxConnection.this.closed) {
+        try {
+          write(id, new byte[0]);
+        } catch (IOException e) {
+          // connection already gone
+        }
+      }
+      closed = true;
+      try {
+        context.dispose();
+      } catch (GSSException e) {
+        // nothing to do
+      }
+      ByteBuffer frame;
+      while ((frame = inbound.poll()) != null) {
+        pool.release(frame);
+      }
+      // Wake up a thread waiting in receive
+      inbound.add(END);
+      if (verbose) {
+        System.out.println("Closed stream " + id);
+      }
+    }
+
+    private ByteBuffer take() throws IOException {
+      try {
+        return inbound.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for stream " + id);
+      }
+    }
+  }
+
+}
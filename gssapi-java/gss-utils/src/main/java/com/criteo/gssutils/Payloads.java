@@ -0,0 +1,58 @@
+package com.criteo.gssutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.ietf.jgss.GSSName;
+
+/**
+ * Server side of the payload features of the Preface: hand the messages of an unwrapped payload
+ * to the RequestHandler and build the payload of the reply to wrap.
+ * <p>
+ * Without feature the payload is the message. With Preface.PIPELINE it starts with a request id
+ * (RequestIds) copied in front of the reply. With Preface.BATCH it holds records (Records), each
+ * one a message with its own request id when pipelined: the messages are handled concurrently and
+ * their replies are sent back in one payload, in the order of the requests, once all of them are
+ * complete.
+ */
+public class Payloads {
+
+  private Payloads() {
+  }
+
+  /**
+   * @param features Preface flags accepted for the connection
+   * @return stage completed with the reply payload, or exceptionally if a message failed
+   */
+  public static CompletionStage<byte[]> handle(RequestHandler handler, byte[] payload,
+      GSSName source, int features) throws FrameRejectedException {
+    boolean pipelined = (features & Preface.PIPELINE) != 0;
+    if ((features & Preface.BATCH) == 0) {
+      return handle(handler, payload, source, pipelined);
+    }
+    List<byte[]> messages = Records.split(payload);
+    List<CompletableFuture<byte[]>> replies = new ArrayList<>(messages.size());
+    for (byte[] message : messages) {
+      replies.add(handle(handler, message, source, pipelined).toCompletableFuture());
+    }
+    return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      List<byte[]> records = new ArrayList<>(replies.size());
+      for (CompletableFuture<byte[]> reply : replies) {
+        records.add(reply.join());
+      }
+      return Records.join(records);
+    });
+  }
+
+  private static CompletionStage<byte[]> handle(RequestHandler handler, byte[] message,
+      GSSName source, boolean pipelined) throws FrameRejectedException {
+    if (!pipelined) {
+      return handler.handle(message, source);
+    }
+    int requestId = RequestIds.id(message);
+    return handler.handle(RequestIds.strip(message), source)
+        .thenApply(reply -> RequestIds.prefix(requestId, reply));
+  }
+
+}
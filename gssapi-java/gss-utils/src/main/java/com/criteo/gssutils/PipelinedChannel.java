@@ -0,0 +1,140 @@
+package com.criteo.gssutils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Many requests in flight on one established context (Preface.PIPELINE): requests are sent
+ * without waiting for the replies of the previous ones, and a reader thread completes the future
+ * of each request when its reply comes back, in whatever order the server completes them.
+ * <p>
+ * Every payload starts with its request id (RequestIds). Requests are wrapped and written under
+ * one lock so that tokens go out in sequence order. At most maxInFlight requests wait for their
+ * replies, {@link #submit(byte[])} blocks beyond. Throughput is then bound by bandwidth and CPU
+ * instead of one request per round trip.
+ */
+public class PipelinedChannel implements Closeable {
+
+  private final MessageChannel channel;
+  private final Semaphore permits;
+  private final ConcurrentMap<Integer, CompletableFuture<byte[]>> pending =
+      new ConcurrentHashMap<>();
+  private final Object sendLock = new Object();
+  private int nextId;
+  private Exception failure;
+
+  /**
+   * @param channel channel of a connection which negotiated Preface.PIPELINE, only used by this
+   * instance from now on
+   * @param maxInFlight maximum number of requests waiting for their replies
+   */
+  public PipelinedChannel(MessageChannel channel, int maxInFlight) {
+    this.channel = channel;
+    this.permits = new Semaphore(maxInFlight);
+    Thread reader = new Thread(this::readReplies, "gss-pipeline-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  public MessageChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Send a request without waiting for its reply, blocking while maxInFlight requests are
+   * pending.
+   *
+   * @return future completed with the reply, or exceptionally if the channel fails or is closed
+   * before
+   */
+  public CompletableFuture<byte[]> submit(byte[] message) throws IOException, GSSException {
+    return submit(message, true);
+  }
+
+  /**
+   * Send a request without waiting for its reply, blocking while maxInFlight requests are
+   * pending.
+   *
+   * @param confidential false to only protect the integrity of the request, see Protection
+   */
+  public CompletableFuture<byte[]> submit(byte[] message, boolean confidential)
+      throws IOException, GSSException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a pipeline slot");
+    }
+    CompletableFuture<byte[]> reply = new CompletableFuture<>();
+    synchronized (sendLock) {
+      if (failure != null) {
+        permits.release();
+        throw new IOException("Pipelined channel closed", failure);
+      }
+      int id = nextId++;
+      pending.put(id, reply);
+      try {
+        channel.send(RequestIds.prefix(id, message), confidential);
+      } catch (IOException | GSSException e) {
+        pending.remove(id);
+        permits.release();
+        throw e;
+      }
+    }
+    return reply;
+  }
+
+  /**
+   * @return number of requests waiting for their replies
+   */
+  public int inFlight() {
+    return pending.size();
+  }
+
+  /**
+   * Close the underlying channel, requests still pending fail.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reader thread: complete pending requests with their replies until the channel is closed.
+   */
+  private void readReplies() {
+    Exception error;
+    try {
+      byte[] payload;
+      while ((payload = channel.receive()) != null) {
+        int id = RequestIds.id(payload);
+        CompletableFuture<byte[]> reply = pending.remove(id);
+        if (reply == null) {
+          throw new FrameRejectedException("requestId", "Reply to unknown request " + id);
+        }
+        permits.release();
+        reply.complete(RequestIds.strip(payload));
+      }
+      error = new EOFException("Channel closed by peer");
+    } catch (IOException | GSSException e) {
+      error = e;
+    }
+    synchronized (sendLock) {
+      failure = error;
+    }
+    // Wake up a blocked submit, which fails and wakes up the next one
+    permits.release();
+    for (CompletableFuture<byte[]> reply : pending.values()) {
+      reply.completeExceptionally(error);
+    }
+    pending.clear();
+  }
+
+}
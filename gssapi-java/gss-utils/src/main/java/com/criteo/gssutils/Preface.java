@@ -0,0 +1,132 @@
+package com.criteo.gssutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Optional first frame of a connection, sent by the client before any context token to ask for
+ * protocol features. The server answers with a preface holding the features it accepts, possibly
+ * none: the connection then goes on with the plain protocol.
+ * <p>
+ * A preface frame holds 8 bytes: the magic "GSSP" then the big-endian feature flags. It can not be
+ * mistaken for an initial context token, which starts with tag 0x60; a server without preface
+ * support refuses it as any other garbage and closes the connection.
+ */
+public class Preface {
+
+  /**
+   * Many GSS contexts (streams) on one connection, see MuxConnection.
+   */
+  public static final int MULTIPLEX = 1;
+
+  /**
+   * Request ids in every wrapped message so that requests are pipelined and replies come back in
+   * any order, see RequestIds and PipelinedChannel.
+   */
+  public static final int PIPELINE = 2;
+
+  /**
+   * Many application messages per wrapped message, see Records and BatchingChannel.
+   */
+  public static final int BATCH = 4;
+
+  /**
+   * Payloads deflated before wrap and inflated after unwrap, see Compression.
+   */
+  public static final int COMPRESS = 8;
+
+  /**
+   * Messages without privacy sent in the clear next to their MIC, see Protection.
+   */
+  public static final int INTEGRITY = 16;
+
+  /**
+   * The first wrapped message of the client follows its initial context token without waiting for
+   * the answer of the server, which sends its preface and last context token (if any) with the
+   * first reply, see GssChannel.initiateEarly. Only for plain connections.
+   */
+  public static final int EARLY_DATA = 32;
+
+  /**
+   * Once the context is established, messages of the client may also come as UDP datagrams, see
+   * DatagramSender. Only for plain connections.
+   */
+  public static final int DATAGRAM = 64;
+
+  /**
+   * Once the context is established and the client admitted, the server sends a resumption ticket
+   * before any reply; later connections present it instead of an initial context token, see
+   * Resumption and ResumptionTicket. Only for plain connections.
+   */
+  public static final int RESUME = 128;
+
+  /**
+   * Once the context is established, both sides protect messages with AES-GCM under keys derived
+   * from its session key instead of its wrap, see SessionKeyContext. Only for plain connections.
+   */
+  public static final int FAST = 256;
+
+  private static final int MAGIC = 0x47535350;
+  private static final int LENGTH = 8;
+
+  private Preface() {
+  }
+
+  /**
+   * @return token of a preface frame asking for (or accepting) flags
+   */
+  public static byte[] encode(int flags) {
+    return ByteBuffer.allocate(LENGTH).putInt(MAGIC).putInt(flags).array();
+  }
+
+  /**
+   * @return flags of the preface of length bytes at offset of token, or -1 if the token is not a
+   * preface
+   */
+  public static int decode(byte[] token, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(token, offset, length);
+    if (length != LENGTH || buffer.getInt() != MAGIC) {
+      return -1;
+    }
+    return buffer.getInt() & Integer.MAX_VALUE;
+  }
+
+  /**
+   * Client side: send a preface asking for flags on a new blocking channel and read the answer of
+   * the server.
+   *
+   * @return flags accepted by the server
+   */
+  public static int negotiate(SocketChannel channel, int flags) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+    FrameCodec.write(channel, header, encode(flags));
+    BufferPool pool = BufferPool.shared();
+    ByteBuffer frame = FrameCodec.read(channel, header, LENGTH, pool);
+    if (frame == null) {
+      throw new EOFException("Connection closed by server before its preface");
+    }
+    try {
+      return answer(frame.array(), 0, frame.remaining(), flags);
+    } finally {
+      pool.release(frame);
+    }
+  }
+
+  /**
+   * Client side: decode the answer of the server to a preface asking for flags.
+   *
+   * @return flags accepted by the server
+   * @throws FrameRejectedException if the token is not a preface
+   */
+  public static int answer(byte[] token, int offset, int length, int flags)
+      throws FrameRejectedException {
+    int accepted = decode(token, offset, length);
+    if (accepted < 0) {
+      throw new FrameRejectedException("preface", "Server did not answer with a preface");
+    }
+    return accepted & flags;
+  }
+
+}
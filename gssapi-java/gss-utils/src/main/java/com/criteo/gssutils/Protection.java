@@ -0,0 +1,66 @@
+package com.criteo.gssutils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Per-message protection of established contexts. Messages are wrapped with confidentiality by
+ * default; a message which only needs to be authenticated (public data) can be sent with privacy
+ * false, which skips the encryption and only computes a checksum.
+ * <p>
+ * Without Preface.INTEGRITY such a message is wrapped with privacy false, which any acceptor
+ * unwraps. With Preface.INTEGRITY it is sent in the clear next to its MIC (getMIC), without the
+ * copy of the payload into a wrap token: a 0 byte, the 4-byte big-endian length of the MIC, the
+ * MIC then the payload. No wrap token starts with 0 (RFC 1964 tokens start with the 0x60 tag,
+ * RFC 4121 ones with their token id 0x05 0x04).
+ * <p>
+ * Callers synchronize on the context, as for wrap and unwrap.
+ */
+public class Protection {
+
+  private static final byte MIC_TAG = 0;
+  private static final int MIC_HEADER_BYTES = 5;
+
+  private Protection() {
+  }
+
+  /**
+   * @param prop QOP and privacy of the message
+   * @param mic true if the connection negotiated Preface.INTEGRITY
+   * @return token to send
+   */
+  public static byte[] protect(GSSContext context, byte[] message, MessageProp prop, boolean mic)
+      throws GSSException {
+    if (prop.getPrivacy() || !mic) {
+      return context.wrap(message, 0, message.length, prop);
+    }
+    byte[] token = context.getMIC(message, 0, message.length, prop);
+    return ByteBuffer.allocate(MIC_HEADER_BYTES + token.length + message.length).put(MIC_TAG)
+        .putInt(token.length).put(token).put(message).array();
+  }
+
+  /**
+   * @param prop set to the protection of the message
+   * @param mic true if the connection negotiated Preface.INTEGRITY
+   * @return message of token, checked
+   */
+  public static byte[] unprotect(GSSContext context, byte[] token, int offset, int length,
+      MessageProp prop, boolean mic) throws GSSException, FrameRejectedException {
+    if (!mic || length == 0 || token[offset] != MIC_TAG) {
+      return context.unwrap(token, offset, length, prop);
+    }
+    int micLength = length < MIC_HEADER_BYTES ? -1 : ByteBuffer.wrap(token, offset + 1, 4).getInt();
+    if (micLength < 0 || micLength > length - MIC_HEADER_BYTES) {
+      throw new FrameRejectedException("mic", "MIC crossing the end of its message");
+    }
+    int start = offset + MIC_HEADER_BYTES + micLength;
+    int end = offset + length;
+    context.verifyMIC(token, offset + MIC_HEADER_BYTES, micLength, token, start, end - start, prop);
+    prop.setPrivacy(false);
+    return Arrays.copyOfRange(token, start, end);
+  }
+
+}
@@ -0,0 +1,56 @@
+package com.criteo.gssutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record boundaries of batched exchanges (Preface.BATCH): the payload of every wrapped message
+ * holds one or more application messages, each one preceded by its 4-byte big-endian length. One
+ * wrap (checksum, encryption and about 60 bytes of token header) is thus paid per batch instead of
+ * per message.
+ */
+public class Records {
+
+  public static final int HEADER_BYTES = 4;
+
+  private Records() {
+  }
+
+  /**
+   * @return payload to wrap holding messages in order
+   */
+  public static byte[] join(List<byte[]> messages) {
+    int length = 0;
+    for (byte[] message : messages) {
+      length += HEADER_BYTES + message.length;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    for (byte[] message : messages) {
+      payload.putInt(message.length).put(message);
+    }
+    return payload.array();
+  }
+
+  /**
+   * @return messages of an unwrapped payload, in order
+   */
+  public static List<byte[]> split(byte[] payload) throws FrameRejectedException {
+    List<byte[]> messages = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    while (buffer.hasRemaining()) {
+      int length = buffer.remaining() < HEADER_BYTES ? -1 : buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        throw new FrameRejectedException("record", "Record crossing the end of its batch");
+      }
+      byte[] message = new byte[length];
+      buffer.get(message);
+      messages.add(message);
+    }
+    if (messages.isEmpty()) {
+      throw new FrameRejectedException("record", "Batch without record");
+    }
+    return messages;
+  }
+
+}
@@ -0,0 +1,23 @@
+package com.criteo.gssutils;
+
+import java.util.concurrent.CompletionStage;
+import org.ietf.jgss.GSSName;
+
+/**
+ * Application logic of a GSS server, called with every message unwrapped from an established
+ * context.
+ * <p>
+ * The reply is returned as a completion stage so that a handler may call other backends without
+ * blocking the calling thread: the server wraps and sends the reply when the stage completes,
+ * and closes the connection if it completes exceptionally.
+ */
+public interface RequestHandler {
+
+  /**
+   * @param request unwrapped message received from the client
+   * @param source authenticated client principal of the context
+   * @return stage completed with the reply to wrap and send back to the client
+   */
+  CompletionStage<byte[]> handle(byte[] request, GSSName source);
+
+}
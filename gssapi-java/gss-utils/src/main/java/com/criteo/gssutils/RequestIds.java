@@ -0,0 +1,43 @@
+package com.criteo.gssutils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Request ids of pipelined exchanges (Preface.PIPELINE): the payload of every wrapped message
+ * starts with the 4-byte big-endian id of its request, and a reply carries the id of the request it
+ * answers. Replies may thus come back in any order, while tokens are still wrapped and sent in
+ * sequence order on each side.
+ */
+public class RequestIds {
+
+  public static final int BYTES = 4;
+
+  private RequestIds() {
+  }
+
+  /**
+   * @return payload to wrap: id followed by message
+   */
+  public static byte[] prefix(int id, byte[] message) {
+    return ByteBuffer.allocate(BYTES + message.length).putInt(id).put(message).array();
+  }
+
+  /**
+   * @return request id of an unwrapped payload
+   */
+  public static int id(byte[] payload) throws FrameRejectedException {
+    if (payload.length < BYTES) {
+      throw new FrameRejectedException("requestId", "Pipelined message without request id");
+    }
+    return ByteBuffer.wrap(payload).getInt();
+  }
+
+  /**
+   * @return message of an unwrapped payload, without its request id
+   */
+  public static byte[] strip(byte[] payload) {
+    return Arrays.copyOfRange(payload, BYTES, payload.length);
+  }
+
+}
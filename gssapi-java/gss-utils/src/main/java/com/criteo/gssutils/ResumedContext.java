@@ -0,0 +1,152 @@
+package com.criteo.gssutils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+/**
+ * Context of a resumed connection (Resumption, ResumptionTicket), used by the channels and the
+ * server like a Kerberos context. The initiator sends a resumption token with its nonce and the
+ * ticket, the acceptor opens the ticket and answers with its own 16-byte nonce: each side then
+ * derives one AES-256-GCM key per direction with HMAC-SHA256 of the ticket key over both nonces.
+ * The keys are thus fresh on every connection, messages recorded on another connection of the
+ * same ticket do not unwrap: no replay cache is needed. Messages are protected as by any
+ * AeadContext.
+ * <p>
+ * The server is authenticated by its first message, which only the holder of the ticket key can
+ * protect: mutual authentication is reported false as with early data. Not thread safe.
+ */
+class ResumedContext extends AeadContext {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final Resumption resumption;
+  private final ResumptionTicket ticket;
+  private byte[] nonce;
+  private GSSName source;
+  private long expiresMillis;
+
+  /**
+   * Acceptor context of a server.
+   */
+  ResumedContext(Resumption resumption) {
+    this.resumption = resumption;
+    this.ticket = null;
+  }
+
+  /**
+   * Initiator context of a client.
+   */
+  ResumedContext(ResumptionTicket ticket) {
+    this.resumption = null;
+    this.ticket = ticket;
+    this.expiresMillis = ticket.expiresMillis();
+  }
+
+  @Override
+  public byte[] initSecContext(byte[] inputBuf, int offset, int len) throws GSSException {
+    if (ticket == null || isEstablished()) {
+      throw new GSSException(GSSException.FAILURE, -1, "Not an initiator being established");
+    }
+    if (nonce == null) {
+      nonce = new byte[Resumption.NONCE_BYTES];
+      RANDOM.nextBytes(nonce);
+      return Resumption.token(nonce, ticket.ticket());
+    }
+    if (len != Resumption.NONCE_BYTES) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    establish(ticket.key(), nonce, Arrays.copyOfRange(inputBuf, offset, offset + len));
+    return null;
+  }
+
+  @Override
+  public byte[] acceptSecContext(byte[] inToken, int offset, int len) throws GSSException {
+    if (resumption == null || isEstablished()) {
+      throw new GSSException(GSSException.FAILURE, -1, "Not an acceptor being established");
+    }
+    Resumption.Session session = resumption.open(inToken, offset, len);
+    source = session.source;
+    expiresMillis = session.expiresMillis;
+    byte[] answer = resumption.random(Resumption.NONCE_BYTES);
+    establish(session.key, Resumption.nonce(inToken, offset), answer);
+    return answer;
+  }
+
+  private void establish(byte[] key, byte[] initiatorNonce, byte[] acceptorNonce)
+      throws GSSException {
+    SecretKey toAcceptor;
+    SecretKey toInitiator;
+    try {
+      toAcceptor = derive(key, "initiator", initiatorNonce, acceptorNonce);
+      toInitiator = derive(key, "acceptor", initiatorNonce, acceptorNonce);
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    if (resumption == null) {
+      establish(toAcceptor, toInitiator);
+    } else {
+      establish(toInitiator, toAcceptor);
+    }
+  }
+
+  private static SecretKey derive(byte[] key, String label, byte[] initiatorNonce,
+      byte[] acceptorNonce) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    mac.update(label.getBytes(StandardCharsets.US_ASCII));
+    mac.update(initiatorNonce);
+    mac.update(acceptorNonce);
+    return new SecretKeySpec(mac.doFinal(), "AES");
+  }
+
+  @Override
+  public int getLifetime() {
+    long remaining = (expiresMillis - System.currentTimeMillis()) / 1000;
+    return (int) Math.max(0, Math.min(remaining, Integer.MAX_VALUE));
+  }
+
+  @Override
+  public GSSName getSrcName() {
+    return source;
+  }
+
+  @Override
+  public GSSName getTargName() {
+    return null;
+  }
+
+  @Override
+  public Oid getMech() {
+    return null;
+  }
+
+  @Override
+  public boolean isInitiator() {
+    return resumption == null;
+  }
+
+  @Override
+  public boolean getMutualAuthState() {
+    return false;
+  }
+
+  @Override
+  public boolean getCredDelegState() {
+    return false;
+  }
+
+  @Override
+  public GSSCredential getDelegCred() throws GSSException {
+    throw new GSSException(GSSException.NO_CRED);
+  }
+
+}
@@ -0,0 +1,242 @@
+package com.criteo.gssutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+
+/**
+ * Server side of session resumption (Preface.RESUME): once a context is established and its
+ * client admitted, the server issues a ticket; a later connection of the client presents it
+ * instead of an AP-REQ and gets a ResumedContext without any Kerberos work nor replay cache.
+ * <p>
+ * A ticket holds the client principal, a fresh 256-bit key and an expiry, encrypted with AES-GCM
+ * under a key of the server: the server keeps no state per ticket. The client receives the
+ * ticket, the key and the expiry wrapped by the context (ResumptionTicket). The expiry is no later
+ * than the one of the context, hence of the Kerberos ticket, nor than
+ * gss.server.resumption.lifetimeSeconds (default 3600). The key of the server is replaced every
+ * lifetime and the previous one kept for one more lifetime, so that any ticket can be resumed
+ * until its expiry. Keys are only in memory: tickets do not survive a restart of the server and
+ * are not accepted by other servers.
+ * <p>
+ * A resumption token is the magic "GSSR", a 16-byte nonce of the client then the ticket: it can
+ * not be mistaken for a preface nor for an initial context token.
+ */
+public class Resumption {
+
+  public static final int LIFETIME_SECONDS =
+      Integer.getInteger("gss.server.resumption.lifetimeSeconds", 3600);
+
+  static final int KEY_BYTES = 32;
+  static final int NONCE_BYTES = 16;
+  static final int TAG_BYTES = 16;
+  private static final int MAGIC = 0x47535352;
+  private static final int IV_BYTES = 12;
+  private static final int TOKEN_HEADER_BYTES = 4 + NONCE_BYTES;
+  private static final int TICKET_HEADER_BYTES = 4 + IV_BYTES;
+
+  private final long lifetimeMillis;
+  private final SecureRandom random = new SecureRandom();
+  private ServerKey current;
+  private ServerKey previous;
+
+  /**
+   * Key of the server encrypting the tickets issued during one lifetime.
+   */
+  private static class ServerKey {
+
+    final int id;
+    final SecretKey key;
+    final long createdMillis;
+
+    ServerKey(int id, byte[] key, long createdMillis) {
+      this.id = id;
+      this.key = new SecretKeySpec(key, "AES");
+      this.createdMillis = createdMillis;
+    }
+  }
+
+  /**
+   * Content of a ticket opened by the server.
+   */
+  static class Session {
+
+    final long expiresMillis;
+    final byte[] key;
+    final GSSName source;
+
+    Session(long expiresMillis, byte[] key, GSSName source) {
+      this.expiresMillis = expiresMillis;
+      this.key = key;
+      this.source = source;
+    }
+  }
+
+  public Resumption() {
+    this(LIFETIME_SECONDS * 1000L);
+  }
+
+  Resumption(long lifetimeMillis) {
+    this.lifetimeMillis = lifetimeMillis;
+  }
+
+  /**
+   * @return true if the token of length bytes at offset is a resumption token, sent in place of
+   * an initial context token
+   */
+  public static boolean isToken(byte[] token, int offset, int length) {
+    return length > TOKEN_HEADER_BYTES && ByteBuffer.wrap(token, offset, length).getInt() == MAGIC;
+  }
+
+  /**
+   * Issue a ticket for the client of context. Callers synchronize on the context, as for wrap.
+   *
+   * @param context established context of an admitted client
+   * @return ticket message wrapped with confidentiality, to send to the client
+   */
+  public byte[] issue(GSSContext context) throws GSSException {
+    long now = System.currentTimeMillis();
+    byte[] key = random(KEY_BYTES);
+    long expires = now + Math.min(lifetimeMillis, context.getLifetime() * 1000L);
+    byte[] ticket = seal(expires, key, context.getSrcName(), now);
+    byte[] message = ResumptionTicket.encode(expires, key, ticket);
+    return context.wrap(message, 0, message.length, new MessageProp(0, true));
+  }
+
+  /**
+   * @return acceptor context established by the resumption token of a client (its first call to
+   * acceptSecContext), to use instead of a new Kerberos context
+   */
+  public GSSContext newContext() {
+    return new ResumedContext(this);
+  }
+
+  /**
+   * @return resumption token presenting ticket with the nonce of the client
+   */
+  static byte[] token(byte[] nonce, byte[] ticket) {
+    return ByteBuffer.allocate(TOKEN_HEADER_BYTES + ticket.length).putInt(MAGIC).put(nonce)
+        .put(ticket).array();
+  }
+
+  /**
+   * @return nonce of the client in a resumption token
+   */
+  static byte[] nonce(byte[] token, int offset) {
+    return Arrays.copyOfRange(token, offset + 4, offset + TOKEN_HEADER_BYTES);
+  }
+
+  /**
+   * Open the ticket of a resumption token.
+   *
+   * @throws GSSException if the ticket is invalid, expired or encrypted by a key of the server
+   * which was dropped
+   */
+  Session open(byte[] token, int offset, int length) throws GSSException {
+    if (!isToken(token, offset, length) || length < TOKEN_HEADER_BYTES + TICKET_HEADER_BYTES) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+    int start = offset + TOKEN_HEADER_BYTES;
+    int id = ByteBuffer.wrap(token, start, 4).getInt();
+    long now = System.currentTimeMillis();
+    ServerKey serverKey = key(now);
+    if (serverKey.id != id) {
+      synchronized (this) {
+        serverKey = previous;
+      }
+      if (serverKey == null || serverKey.id != id) {
+        throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+      }
+    }
+    byte[] plain;
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, serverKey.key,
+          new GCMParameterSpec(TAG_BYTES * 8, token, start + 4, IV_BYTES));
+      cipher.updateAAD(token, start, 4);
+      plain = cipher.doFinal(token, start + TICKET_HEADER_BYTES,
+          offset + length - start - TICKET_HEADER_BYTES);
+    } catch (AEADBadTagException e) {
+      throw new GSSException(GSSException.BAD_MIC);
+    } catch (GeneralSecurityException e) {
+      throw new GSSException(GSSException.FAILURE, -1, e.toString());
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+      long expires = in.readLong();
+      byte[] key = new byte[KEY_BYTES];
+      in.readFully(key);
+      Oid nameType = new Oid(in.readUTF());
+      String principal = in.readUTF();
+      if (expires <= now) {
+        throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+      }
+      return new Session(expires, key,
+          GSSManager.getInstance().createName(principal, nameType));
+    } catch (IOException e) {
+      throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+    }
+  }
+
+  byte[] random(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return ticket: id of the key of the server, IV then the encrypted expiry, key and principal
+   */
+  private byte[] seal(long expires, byte[] key, GSSName source, long now) throws GSSException {
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(plain)) {
+      out.writeLong(expires);
+      out.write(key);
+      out.writeUTF(source.getStringNameType().toString());
+      out.writeUTF(source.toString());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    ServerKey serverKey = key(now);
+    byte[] iv = random(IV_BYTES);
+    ByteBuffer ticket = ByteBuffer.allocate(TICKET_HEADER_BYTES + plain.size() + TAG_BYTES);
+    ticket.putInt(serverKey.id).put(iv);
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, serverKey.key, new GCMParameterSpec(TAG_BYTES * 8, iv));
+      cipher.updateAAD(ticket.array(), 0, 4);
+      cipher.doFinal(ByteBuffer.wrap(plain.toByteArray()), ticket);
+    } catch (GeneralSecurityException e) {
+      throw new GSSException(GSSException.FAILURE, -1, e.toString());
+    }
+    return ticket.array();
+  }
+
+  /**
+   * @return current key of the server, replaced once older than the lifetime
+   */
+  private synchronized ServerKey key(long now) {
+    if (current == null || now - current.createdMillis >= lifetimeMillis) {
+      previous = current;
+      current = new ServerKey(current == null ? random.nextInt() : current.id + 1,
+          random(KEY_BYTES), now);
+    }
+    return current;
+  }
+
+}
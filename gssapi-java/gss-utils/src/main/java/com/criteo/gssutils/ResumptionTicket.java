@@ -0,0 +1,112 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import org.ietf.jgss.GSSContext;
+
+/**
+ * Client side of session resumption: ticket issued by the server on a connection which negotiated
+ * Preface.RESUME (GssChannel.resumptionTicket), with its key and expiry. A later connection to the
+ * same server uses the context of newContext instead of a Kerberos context: one round trip, and
+ * no Kerberos work on either side.
+ * <p>
+ * The key protects every message of the resumed connections: a saved ticket must be readable by
+ * its owner only, as a credential cache.
+ */
+public class ResumptionTicket {
+
+  private static final int HEADER_BYTES = 8 + Resumption.KEY_BYTES;
+
+  private final long expiresMillis;
+  private final byte[] key;
+  private final byte[] ticket;
+
+  ResumptionTicket(long expiresMillis, byte[] key, byte[] ticket) {
+    this.expiresMillis = expiresMillis;
+    this.key = key;
+    this.ticket = ticket;
+  }
+
+  /**
+   * @return ticket message sent by the server: big-endian expiry in milliseconds since the epoch,
+   * key then the opaque ticket
+   */
+  static byte[] encode(long expiresMillis, byte[] key, byte[] ticket) {
+    return ByteBuffer.allocate(HEADER_BYTES + ticket.length).putLong(expiresMillis).put(key)
+        .put(ticket).array();
+  }
+
+  /**
+   * @throws FrameRejectedException if message is too short to be a ticket message
+   */
+  static ResumptionTicket decode(byte[] message) throws FrameRejectedException {
+    if (message.length <= HEADER_BYTES) {
+      throw new FrameRejectedException("ticket", "Message of " + message.length
+          + " bytes is not a resumption ticket");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(message);
+    return new ResumptionTicket(buffer.getLong(),
+        Arrays.copyOfRange(message, 8, HEADER_BYTES),
+        Arrays.copyOfRange(message, HEADER_BYTES, message.length));
+  }
+
+  /**
+   * @return expiry in milliseconds since the epoch, after which the server refuses the ticket
+   */
+  public long expiresMillis() {
+    return expiresMillis;
+  }
+
+  public boolean isExpired() {
+    return System.currentTimeMillis() >= expiresMillis;
+  }
+
+  /**
+   * @return initiator context presenting the ticket, established once the server answers its
+   * initial token. Its lifetime is the one of the ticket.
+   */
+  public GSSContext newContext() {
+    return new ResumedContext(this);
+  }
+
+  byte[] key() {
+    return key;
+  }
+
+  byte[] ticket() {
+    return ticket;
+  }
+
+  /**
+   * Replace file with the ticket, readable by the owner only where permissions are supported.
+   */
+  public void save(Path file) throws IOException {
+    // Temporary files are created rw------- on POSIX file systems
+    Path temp = Files.createTempFile(file.toAbsolutePath().getParent(),
+        file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, encode(expiresMillis, key, ticket));
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * @return ticket saved in file, null if there is none
+   */
+  public static ResumptionTicket load(Path file) throws IOException {
+    try {
+      return decode(Files.readAllBytes(file));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+}
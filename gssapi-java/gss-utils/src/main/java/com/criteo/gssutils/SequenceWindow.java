@@ -0,0 +1,52 @@
+package com.criteo.gssutils;
+
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Sequence numbers received on a context, reported in the supplementary states of MessageProp as
+ * Kerberos does: duplicated, old (beyond a window of 64), out of sequence tokens and gaps. Not
+ * thread safe.
+ */
+class SequenceWindow {
+
+  private static final int WINDOW = 64;
+
+  private final boolean anyFirst;
+  // Highest sequence number received and bit i set when highest - i was received
+  private long highest = -1;
+  private long window;
+
+  /**
+   * @param anyFirst true if the first sequence number of the peer is random (Kerberos), false if
+   * it is 0
+   */
+  SequenceWindow(boolean anyFirst) {
+    this.anyFirst = anyFirst;
+  }
+
+  /**
+   * Update the window with the sequence number of an authenticated token.
+   */
+  void received(long sequence, MessageProp msgProp) {
+    boolean duplicate = false;
+    boolean old = false;
+    boolean unsequenced = false;
+    boolean gap = false;
+    if (sequence > highest) {
+      long shift = sequence - highest;
+      // The window is empty before the first token only
+      gap = shift > 1 && !(anyFirst && window == 0);
+      window = shift >= WINDOW ? 1 : window << shift | 1;
+      highest = sequence;
+    } else if (highest - sequence >= WINDOW) {
+      old = true;
+    } else if ((window & 1L << (highest - sequence)) != 0) {
+      duplicate = true;
+    } else {
+      unsequenced = true;
+      window |= 1L << (highest - sequence);
+    }
+    msgProp.setSupplementaryStates(duplicate, old, unsequenced, gap, 0, null);
+  }
+
+}
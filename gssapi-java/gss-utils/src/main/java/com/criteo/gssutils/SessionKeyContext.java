@@ -0,0 +1,141 @@
+package com.criteo.gssutils;
+
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+/**
+ * Fast channel of an established Kerberos context (Preface.FAST): messages are protected with
+ * AES-256-GCM, which JCE runs with hardware instructions, instead of the wrap of the mechanism
+ * (AES-CTS with HMAC-SHA1 for aes256-cts-hmac-sha1-96).
+ * <p>
+ * Both sides take the session key of the context (the acceptor or initiator subkey, which JDK and
+ * MIT initiators generate for every AP-REQ) and derive one key per direction with HKDF-SHA256
+ * (RFC 5869), salted with the id of the session opened by the initial context token
+ * (DatagramSender.sessionId). Tokens and sequence checks are those of AeadContext. Names,
+ * lifetime and flags are those of the Kerberos context, disposed with this one.
+ */
+public class SessionKeyContext extends AeadContext {
+
+  private final GSSContext context;
+
+  SessionKeyContext(GSSContext context, byte[] sessionKey, long sessionId)
+      throws GSSException {
+    this.context = context;
+    SecretKey toAcceptor;
+    SecretKey toInitiator;
+    try {
+      toAcceptor = derive(sessionKey, sessionId, "gss fast initiator");
+      toInitiator = derive(sessionKey, sessionId, "gss fast acceptor");
+    } catch (GeneralSecurityException e) {
+      throw failure(e);
+    }
+    if (context.isInitiator()) {
+      establish(toAcceptor, toInitiator);
+    } else {
+      establish(toInitiator, toAcceptor);
+    }
+  }
+
+  /**
+   * @param context established context
+   * @param sessionId id of the session opened by the initial context token of context
+   * @return fast channel context in place of context, or context itself if it already protects
+   * messages with AES-GCM (resumed connection)
+   * @throws GSSException UNAVAILABLE if the mechanism does not give its session key
+   */
+  public static GSSContext of(GSSContext context, long sessionId) throws GSSException {
+    if (context instanceof AeadContext) {
+      return context;
+    }
+    if (!(context instanceof ExtendedGSSContext)) {
+      throw new GSSException(GSSException.UNAVAILABLE, -1,
+          "No session key in " + context.getClass().getName());
+    }
+    Key key = (Key) ((ExtendedGSSContext) context)
+        .inquireSecContext(InquireType.KRB5_GET_SESSION_KEY);
+    return new SessionKeyContext(context, key.getEncoded(), sessionId);
+  }
+
+  /**
+   * @return HKDF-SHA256 of the session key, one block of output
+   */
+  private static SecretKey derive(byte[] sessionKey, long sessionId, String label)
+      throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(ByteBuffer.allocate(8).putLong(sessionId).array(), "HmacSHA256"));
+    byte[] pseudoRandomKey = mac.doFinal(sessionKey);
+    mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+    mac.update(label.getBytes(StandardCharsets.US_ASCII));
+    mac.update((byte) 1);
+    return new SecretKeySpec(mac.doFinal(), "AES");
+  }
+
+  @Override
+  public byte[] initSecContext(byte[] inputBuf, int offset, int len) throws GSSException {
+    throw new GSSException(GSSException.FAILURE, -1, "Context already established");
+  }
+
+  @Override
+  public byte[] acceptSecContext(byte[] inToken, int offset, int len) throws GSSException {
+    throw new GSSException(GSSException.FAILURE, -1, "Context already established");
+  }
+
+  @Override
+  public void dispose() throws GSSException {
+    super.dispose();
+    context.dispose();
+  }
+
+  @Override
+  public int getLifetime() {
+    return context.getLifetime();
+  }
+
+  @Override
+  public GSSName getSrcName() throws GSSException {
+    return context.getSrcName();
+  }
+
+  @Override
+  public GSSName getTargName() throws GSSException {
+    return context.getTargName();
+  }
+
+  @Override
+  public Oid getMech() throws GSSException {
+    return context.getMech();
+  }
+
+  @Override
+  public boolean isInitiator() throws GSSException {
+    return context.isInitiator();
+  }
+
+  @Override
+  public boolean getMutualAuthState() {
+    return context.getMutualAuthState();
+  }
+
+  @Override
+  public boolean getCredDelegState() {
+    return context.getCredDelegState();
+  }
+
+  @Override
+  public GSSCredential getDelegCred() throws GSSException {
+    return context.getDelegCred();
+  }
+
+}
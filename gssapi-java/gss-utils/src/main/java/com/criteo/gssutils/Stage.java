@@ -0,0 +1,212 @@
+package com.criteo.gssutils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Stage of a staged event-driven (SEDA) pipeline: a fixed number of worker threads, each one
+ * draining its own bounded lock-free queue with the stage handler.
+ * <p>
+ * Every task is submitted with a key (a connection id for instance) and tasks with the same key
+ * always go to the same worker. They are thus handled one at a time and in submission order,
+ * while tasks of different keys are handled in parallel. Chaining stages keeps this per key
+ * order end to end.
+ * <p>
+ * When the queue of a worker is full, submit waits for room: a slow stage pushes back on the
+ * stages before it instead of buffering without limit. Threads which must not block (event loops)
+ * use trySubmit instead, and are called back once the worker has room again.
+ *
+ * @param <T> type of tasks
+ */
+public class Stage<T> {
+
+  private final String name;
+  private final Consumer<T> handler;
+  private final Worker[] workers;
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder serviceNanos = new LongAdder();
+  private final LongAdder full = new LongAdder();
+  private volatile boolean running = true;
+
+  /**
+   * @param name stage name, used in thread names and metrics
+   * @param parallelism number of worker threads
+   * @param capacity queue capacity of each worker
+   * @param handler task handler, exceptions are reported and do not stop the worker
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public Stage(String name, int parallelism, int capacity, Consumer<T> handler) {
+    this.name = name;
+    this.handler = handler;
+    this.workers = (Worker[]) new Stage.Worker[parallelism];
+    for (int i = 0; i < parallelism; i++) {
+      workers[i] = new Worker(capacity);
+      workers[i].thread = new Thread(workers[i], "gss-stage-" + name + "-" + (i + 1));
+      workers[i].thread.setDaemon(true);
+    }
+  }
+
+  public Stage<T> start() {
+    for (Worker worker : workers) {
+      worker.thread.start();
+    }
+    return this;
+  }
+
+  public void shutdown() {
+    running = false;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker.thread);
+    }
+  }
+
+  /**
+   * Queue task for the worker of key, waiting while its queue is full.
+   */
+  public void submit(long key, T task) {
+    Worker worker = worker(key);
+    if (!worker.queue.offer(task)) {
+      full.increment();
+      long backoff = 1000;
+      while (!worker.queue.offer(task)) {
+        LockSupport.parkNanos(backoff);
+        backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+    wake(worker);
+  }
+
+  /**
+   * Queue task for the worker of key without waiting.
+   *
+   * @param onRoom run once by the worker thread when its queue has room again, if task is refused;
+   * it may run while the queue is already full again
+   * @return false if the queue of the worker is full, task is not queued
+   */
+  public boolean trySubmit(long key, T task, Runnable onRoom) {
+    Worker worker = worker(key);
+    if (worker.queue.offer(task)) {
+      wake(worker);
+      return true;
+    }
+    full.increment();
+    worker.waiters.add(onRoom);
+    // The worker may have drained its queue before seeing the waiter
+    wake(worker);
+    return false;
+  }
+
+  private Worker worker(long key) {
+    return workers[(int) Math.floorMod(key, (long) workers.length)];
+  }
+
+  private static void wake(Stage<?>.Worker worker) {
+    if (worker.parked) {
+      LockSupport.unpark(worker.thread);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return number of tasks waiting in the queues of all workers
+   */
+  public int queueDepth() {
+    int depth = 0;
+    for (Worker worker : workers) {
+      depth += worker.queue.size();
+    }
+    return depth;
+  }
+
+  public long processed() {
+    return processed.sum();
+  }
+
+  /**
+   * @return number of submissions which had to wait for a full queue
+   */
+  public long fullCount() {
+    return full.sum();
+  }
+
+  /**
+   * @return mean time spent in the handler per task, in microseconds
+   */
+  public double meanServiceMicros() {
+    long count = processed.sum();
+    return count == 0 ? 0 : serviceNanos.sum() / 1e3 / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[threads=%d, depth=%d, processed=%d, full=%d, service=%.1fus]",
+        name, workers.length, queueDepth(), processed(), fullCount(), meanServiceMicros());
+  }
+
+  private class Worker implements Runnable {
+
+    private final BoundedQueue<T> queue;
+    // Callbacks of refused trySubmit, run once the queue is half empty
+    private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private volatile boolean parked;
+
+    Worker(int capacity) {
+      this.queue = new BoundedQueue<>(capacity);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        if (!waiters.isEmpty() && queue.size() <= queue.capacity() / 2) {
+          callWaiters();
+        }
+        T task = queue.poll();
+        if (task == null) {
+          // Producers unpark when they see the flag, re-check the queue and waiters after setting
+          // it
+          parked = true;
+          task = queue.poll();
+          if (task == null) {
+            if (!waiters.isEmpty()) {
+              parked = false;
+              callWaiters();
+              continue;
+            }
+            LockSupport.park(this);
+            parked = false;
+            continue;
+          }
+          parked = false;
+        }
+        long start = System.nanoTime();
+        try {
+          handler.accept(task);
+        } catch (RuntimeException e) {
+          System.err.println("Stage " + name + " task failed: " + e);
+        }
+        serviceNanos.add(System.nanoTime() - start);
+        processed.increment();
+      }
+    }
+
+    private void callWaiters() {
+      Runnable waiter;
+      while ((waiter = waiters.poll()) != null) {
+        try {
+          waiter.run();
+        } catch (RuntimeException e) {
+          System.err.println("Stage " + name + " callback failed: " + e);
+        }
+      }
+    }
+  }
+
+}
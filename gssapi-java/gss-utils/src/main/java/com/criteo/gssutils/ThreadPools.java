@@ -0,0 +1,113 @@
+package com.criteo.gssutils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class to create executors for server and client threads.
+ */
+public class ThreadPools {
+
+  /**
+   * Create a thread factory of daemon threads named prefix-1, prefix-2 ...
+   *
+   * @param prefix thread name prefix
+   * @return thread factory
+   */
+  public static ThreadFactory namedDaemonFactory(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Create an executor running each task in its own virtual thread when the runtime supports it
+   * (Java 21+), otherwise a bounded pool of platform threads.
+   *
+   * The platform fallback has at most maxThreads threads and a queue of the same size. When both
+   * are full the task is rejected (RejectedExecutionException), the submitting thread never runs
+   * it: an acceptor running a persistent connection would stop accepting while it lasts.
+   *
+   * @param prefix thread name prefix of platform threads
+   * @param maxThreads maximum number of platform threads for the fallback pool
+   * @return executor to shutdown when not needed anymore
+   */
+  public static ExecutorService newPerTaskExecutor(String prefix, int maxThreads) {
+    ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+    if (virtual != null) {
+      return virtual;
+    }
+    return newBoundedExecutor(prefix, maxThreads);
+  }
+
+  /**
+   * Create a pool of at most maxThreads platform threads with a queue of the same size. When both
+   * are full execute throws RejectedExecutionException.
+   *
+   * @param prefix thread name prefix
+   * @param maxThreads maximum number of threads
+   * @return executor to shutdown when not needed anymore
+   */
+  public static ExecutorService newBoundedExecutor(String prefix, int maxThreads) {
+    return newBoundedExecutor(prefix, maxThreads, maxThreads);
+  }
+
+  /**
+   * Create a pool of at most maxThreads platform threads with a queue of queueSize tasks. When both
+   * are full execute throws RejectedExecutionException.
+   *
+   * @param prefix thread name prefix
+   * @param maxThreads maximum number of threads
+   * @param queueSize maximum number of queued tasks, at least 1
+   * @return executor to shutdown when not needed anymore
+   */
+  public static ExecutorService newBoundedExecutor(String prefix, int maxThreads, int queueSize) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        maxThreads,
+        maxThreads,
+        60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        namedDaemonFactory(prefix),
+        new ThreadPoolExecutor.AbortPolicy()
+    );
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return true if virtual threads are available in current runtime
+   */
+  public static boolean hasVirtualThreads() {
+    return virtualExecutorFactory() != null;
+  }
+
+  // Looked up by reflection to keep the project compiling for Java 8
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    Method factory = virtualExecutorFactory();
+    if (factory == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static Method virtualExecutorFactory() {
+    try {
+      return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.criteo.gssutils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter: up to burst permits at once, refilled at rate permits per second.
+ *
+ * Times are System.nanoTime() values passed by the caller so that one clock read can serve
+ * several buckets (and tests can use their own clock).
+ */
+public class TokenBucket {
+
+  private final double permitsPerNano;
+  private final double burst;
+  private double tokens;
+  private long lastNanos;
+
+  /**
+   * @param ratePerSecond permits added per second
+   * @param burst maximum number of permits available at once, the bucket starts full
+   * @param nowNanos current time
+   */
+  public TokenBucket(double ratePerSecond, double burst, long nowNanos) {
+    if (ratePerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Invalid rate " + ratePerSecond + " or burst " + burst);
+    }
+    this.permitsPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.tokens = burst;
+    this.lastNanos = nowNanos;
+  }
+
+  /**
+   * Take one permit if available.
+   *
+   * @return true if a permit was taken, false if the rate is exceeded
+   */
+  public synchronized boolean tryAcquire(long nowNanos) {
+    refill(nowNanos);
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    return true;
+  }
+
+  /**
+   * @return true if the bucket has refilled completely, i.e. forgetting it changes nothing
+   */
+  public synchronized boolean isFull(long nowNanos) {
+    refill(nowNanos);
+    return tokens >= burst;
+  }
+
+  private void refill(long nowNanos) {
+    long elapsed = nowNanos - lastNanos;
+    if (elapsed > 0) {
+      tokens = Math.min(burst, tokens + elapsed * permitsPerNano);
+      lastNanos = nowNanos;
+    }
+  }
+
+}
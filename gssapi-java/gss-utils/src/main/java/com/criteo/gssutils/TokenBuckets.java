@@ -0,0 +1,80 @@
+package com.criteo.gssutils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One TokenBucket per key (client address, principal ...), created on first use.
+ *
+ * Buckets which have refilled completely carry no state and are dropped when the number of keys
+ * exceeds maxKeys (at most once per second, the scan is linear), so that a large population of
+ * clients does not grow the map forever.
+ *
+ * @param <K> key type
+ */
+public class TokenBuckets<K> {
+
+  private static final long EVICTION_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final ConcurrentMap<K, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final double ratePerSecond;
+  private final double burst;
+  private final int maxKeys;
+  private volatile long lastEvictionNanos;
+
+  /**
+   * @param ratePerSecond permits per second of each key, 0 to disable limiting
+   * @param burst maximum number of permits available at once for each key
+   * @param maxKeys number of keys above which full buckets are dropped
+   */
+  public TokenBuckets(double ratePerSecond, double burst, int maxKeys) {
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    this.maxKeys = maxKeys;
+    this.lastEvictionNanos = System.nanoTime() - EVICTION_PERIOD_NANOS;
+  }
+
+  public boolean isEnabled() {
+    return ratePerSecond > 0;
+  }
+
+  /**
+   * Take one permit from the bucket of key.
+   *
+   * @return true if a permit was taken or limiting is disabled
+   */
+  public boolean tryAcquire(K key, long nowNanos) {
+    if (!isEnabled()) {
+      return true;
+    }
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= maxKeys && nowNanos - lastEvictionNanos > EVICTION_PERIOD_NANOS) {
+        evictFull(nowNanos);
+      }
+      bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(ratePerSecond, burst, nowNanos));
+    }
+    return bucket.tryAcquire(nowNanos);
+  }
+
+  public boolean tryAcquire(K key) {
+    return tryAcquire(key, System.nanoTime());
+  }
+
+  public int size() {
+    return buckets.size();
+  }
+
+  private void evictFull(long nowNanos) {
+    lastEvictionNanos = nowNanos;
+    Iterator<TokenBucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().isFull(nowNanos)) {
+        it.remove();
+      }
+    }
+  }
+
+}
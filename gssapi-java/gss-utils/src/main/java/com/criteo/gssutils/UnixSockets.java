@@ -0,0 +1,147 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Unix domain socket channels (Java 16+) for clients on the same host as the server: the frames
+ * and the GSS handshake are the same as over TCP, without the loopback TCP/IP stack. Access to the
+ * socket file is granted by its file system permissions, clients are still authenticated by their
+ * context.
+ * <p>
+ * Unix domain channels have no Socket adaptor (channel.socket() throws) nor inet address: see
+ * inetAddress.
+ */
+public class UnixSockets {
+
+  private UnixSockets() {
+  }
+
+  /**
+   * @return true if Unix domain socket channels are available in current runtime
+   */
+  public static boolean isSupported() {
+    return Api.UNIX != null;
+  }
+
+  /**
+   * @return channel in blocking mode connected to the server listening on path
+   * @throws IOException if the runtime does not support Unix domain sockets
+   */
+  public static SocketChannel connect(String path) throws IOException {
+    SocketChannel channel = (SocketChannel) open(Api.OPEN_SOCKET);
+    try {
+      channel.connect(address(path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Listen on path, replacing the socket file left by a previous server if any (but no other
+   * kind of file).
+   *
+   * @return listening channel in blocking mode
+   * @throws IOException if the runtime does not support Unix domain sockets
+   */
+  public static ServerSocketChannel listen(String path, int backlog) throws IOException {
+    Path file = Paths.get(path);
+    if (Files.exists(file, LinkOption.NOFOLLOW_LINKS) && Files.readAttributes(file,
+        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+      Files.delete(file);
+    }
+    ServerSocketChannel server = (ServerSocketChannel) open(Api.OPEN_SERVER);
+    try {
+      server.bind(address(path), backlog);
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  /**
+   * @return inet address of the peer of channel, the loopback address for a Unix domain channel
+   * (its peer is on the same host)
+   */
+  public static InetAddress inetAddress(SocketChannel channel) {
+    try {
+      SocketAddress remote = channel.getRemoteAddress();
+      if (remote instanceof InetSocketAddress) {
+        return ((InetSocketAddress) remote).getAddress();
+      }
+    } catch (IOException e) {
+      // closed, the connection fails right after
+    }
+    return InetAddress.getLoopbackAddress();
+  }
+
+  private static Object open(Method factory) throws IOException {
+    if (factory == null) {
+      throw new IOException("Unix domain sockets need Java 16+");
+    }
+    try {
+      return factory.invoke(null, Api.UNIX);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static SocketAddress address(String path) throws IOException {
+    try {
+      return (SocketAddress) Api.ADDRESS_OF.invoke(null, path);
+    } catch (InvocationTargetException | IllegalAccessException e) {
+      throw new IOException("Invalid Unix domain socket path " + path, e);
+    }
+  }
+
+  // Looked up by reflection to keep the project compiling for Java 8
+  private static class Api {
+
+    static final ProtocolFamily UNIX;
+    static final Method OPEN_SOCKET;
+    static final Method OPEN_SERVER;
+    static final Method ADDRESS_OF;
+
+    static {
+      ProtocolFamily unix = null;
+      Method socket = null;
+      Method server = null;
+      Method of = null;
+      try {
+        of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        socket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        server = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        unix = StandardProtocolFamily.valueOf("UNIX");
+      } catch (ReflectiveOperationException | IllegalArgumentException e) {
+        socket = null;
+        server = null;
+      }
+      UNIX = unix;
+      OPEN_SOCKET = socket;
+      OPEN_SERVER = server;
+      ADDRESS_OF = of;
+    }
+  }
+
+}
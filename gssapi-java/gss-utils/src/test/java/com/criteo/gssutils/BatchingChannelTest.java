@@ -0,0 +1,77 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class BatchingChannelTest {
+
+  @Test
+  public void recordsRoundTrip() throws Exception {
+    List<byte[]> messages = Arrays.asList(new byte[] {1, 2}, new byte[0], new byte[] {3});
+    byte[] payload = Records.join(messages);
+    assertEquals(3 * Records.HEADER_BYTES + 3, payload.length);
+    List<byte[]> split = Records.split(payload);
+    assertEquals(3, split.size());
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(messages.get(i), split.get(i));
+    }
+  }
+
+  @Test
+  public void truncatedRecordsAreRejected() throws Exception {
+    byte[] payload = Records.join(Arrays.asList(new byte[10]));
+    for (byte[] bad : new byte[][] {new byte[0], new byte[2],
+        Arrays.copyOf(payload, payload.length - 1)}) {
+      try {
+        Records.split(bad);
+        fail("Bad batch of " + bad.length + " bytes");
+      } catch (FrameRejectedException e) {
+        assertEquals("record", e.getReason());
+      }
+    }
+  }
+
+  @Test
+  public void batchIsSentWhenFull() throws Exception {
+    QueueChannel channel = new QueueChannel();
+    BatchingChannel batching = new BatchingChannel(channel, 3 * (Records.HEADER_BYTES + 4), 0);
+    for (int i = 0; i < 7; i++) {
+      batching.send(new byte[] {(byte) i, 0, 0, 0});
+    }
+    assertEquals(2, channel.sent.size());
+    assertEquals(3, Records.split(channel.sent.take()).size());
+    assertEquals(3, Records.split(channel.sent.take()).size());
+
+    // The last message goes out before waiting for replies
+    channel.replies.add(Records.join(Arrays.asList(new byte[] {1}, new byte[] {2})));
+    assertArrayEquals(new byte[] {1}, batching.receive());
+    List<byte[]> last = Records.split(channel.sent.take());
+    assertEquals(1, last.size());
+    assertEquals(6, last.get(0)[0]);
+    assertArrayEquals(new byte[] {2}, batching.receive());
+    batching.close();
+    assertNull(batching.receive());
+  }
+
+  @Test
+  public void batchIsSentAfterTheDelay() throws Exception {
+    QueueChannel channel = new QueueChannel();
+    BatchingChannel batching = new BatchingChannel(channel, 1 << 20, 50);
+    long start = System.nanoTime();
+    batching.send(new byte[1]);
+    batching.send(new byte[1]);
+    byte[] payload = channel.sent.poll(1, TimeUnit.SECONDS);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(2, Records.split(payload).size());
+    batching.close();
+  }
+
+}
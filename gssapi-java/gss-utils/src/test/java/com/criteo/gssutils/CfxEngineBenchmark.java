@@ -0,0 +1,68 @@
+package com.criteo.gssutils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Cost per message and bytes allocated per message of the JDK krb5 wrap and unwrap
+ * (aes256-cts-hmac-sha1-96) vs CfxEngine with the same key and the same tokens, in reused buffers,
+ * with confidentiality.
+ * <p>
+ * The krb5 contexts are those of Krb5Contexts, run with its options.
+ */
+public class CfxEngineBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    Object initiator = Krb5Contexts.context(true);
+    Object acceptor = Krb5Contexts.context(false);
+    Method wrap = Krb5Contexts.method("wrap", byte[].class, int.class, int.class,
+        MessageProp.class);
+    Method unwrap = Krb5Contexts.method("unwrap", byte[].class, int.class, int.class,
+        MessageProp.class);
+    CfxEngine engineInitiator = new CfxEngine(new byte[32], true, 0, false);
+    CfxEngine engineAcceptor = new CfxEngine(new byte[32], false, 0, false);
+
+    System.out.println("bytes    krb5 us/message  bytes/message    CfxEngine us/message  "
+        + "bytes/message");
+    for (int size : new int[] {64, 1024, 16384}) {
+      ByteBuffer message = ByteBuffer.allocate(size);
+      ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(size, true));
+      ByteBuffer received = ByteBuffer.allocate(token.capacity());
+      MessageProp sendProp = new MessageProp(0, true);
+      MessageProp receiveProp = new MessageProp(0, false);
+      int n = Math.max(1000, 40000000 / (size + 200));
+      double[] results = new double[4];
+      // The last of 3 rounds is reported, after warm up
+      for (int round = 0; round < 3; round++) {
+        for (int mode = 0; mode < 2; mode++) {
+          long allocated = threads.getThreadAllocatedBytes(thread);
+          long start = System.nanoTime();
+          for (int i = 0; i < n; i++) {
+            if (mode == 0) {
+              byte[] wrapped = (byte[]) wrap.invoke(initiator, message.array(), 0, size, sendProp);
+              unwrap.invoke(acceptor, wrapped, 0, wrapped.length, receiveProp);
+            } else {
+              message.clear();
+              token.clear();
+              received.clear();
+              engineInitiator.wrap(message, token, sendProp);
+              token.flip();
+              engineAcceptor.unwrap(token, received, receiveProp);
+            }
+          }
+          results[mode * 2] = (System.nanoTime() - start) / 1000.0 / n;
+          results[mode * 2 + 1] =
+              (double) (threads.getThreadAllocatedBytes(thread) - allocated) / n;
+        }
+      }
+      System.out.println(String.format("%5d    %8.2f         %8.0f         %8.2f              "
+          + "%8.0f", size, results[0], results[1], results[2], results[3]));
+    }
+  }
+
+}
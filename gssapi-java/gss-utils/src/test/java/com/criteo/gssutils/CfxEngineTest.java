@@ -0,0 +1,202 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.security.jgss.ExtendedGSSContext;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import org.junit.Test;
+
+public class CfxEngineTest {
+
+  private static final int[] SIZES = {0, 1, 15, 16, 17, 31, 32, 33, 100, 4096};
+
+  @Test
+  public void nfoldGivesTheVectorsOfRfc3961() {
+    assertNfold("be072631276b1955", "012345", 8);
+    assertNfold("78a07b6caf85fa", "password", 7);
+    assertNfold("bb6ed30870b7f0e0", "Rough Consensus, and Running Code", 8);
+    assertNfold("59e4a8ca7c0385c3c37b3f6d2000247cb6e6bd5b3e", "password", 21);
+    assertNfold("6b65726265726f737b9b5b2b93132b93", "kerberos", 16);
+  }
+
+  private static void assertNfold(String expected, String input, int length) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : CfxEngine.nfold(input.getBytes(StandardCharsets.US_ASCII), length)) {
+      hex.append(String.format("%02x", b));
+    }
+    assertEquals(expected, hex.toString());
+  }
+
+  @Test
+  public void tokensAreThoseOfTheJdkMechanism() throws Exception {
+    Object initiator = Krb5Contexts.context(true);
+    Object acceptor = Krb5Contexts.context(false);
+    Method wrap = Krb5Contexts.method("wrap", byte[].class, int.class, int.class,
+        MessageProp.class);
+    Method unwrap = Krb5Contexts.method("unwrap", byte[].class, int.class, int.class,
+        MessageProp.class);
+    // The engine takes over the acceptor, and its sequence numbers after its first token
+    CfxEngine engine = CfxEngine.of((GSSContext) Proxy.newProxyInstance(
+        GSSContext.class.getClassLoader(), new Class<?>[] {ExtendedGSSContext.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "isInitiator":
+              return false;
+            case "inquireSecContext":
+              return new SecretKeySpec(new byte[32], "18");
+            case "wrap":
+              return wrap.invoke(acceptor, args);
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        }));
+    Random random = new Random(0);
+    for (boolean conf : new boolean[] {true, false}) {
+      for (int size : SIZES) {
+        byte[] message = new byte[size];
+        random.nextBytes(message);
+        ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(size, conf));
+        engine.wrap(ByteBuffer.wrap(message), token, new MessageProp(0, conf));
+        assertFalse(token.hasRemaining());
+        MessageProp prop = new MessageProp(0, false);
+        assertArrayEquals(message,
+            (byte[]) unwrap.invoke(initiator, token.array(), 0, token.limit(), prop));
+        assertEquals(conf, prop.getPrivacy());
+        assertFalse(prop.isGapToken() || prop.isUnseqToken());
+
+        token = ByteBuffer.wrap(
+            (byte[]) wrap.invoke(initiator, message, 0, size, new MessageProp(0, conf)));
+        ByteBuffer received = ByteBuffer.allocate(token.limit() + 1);
+        received.put((byte) 9);
+        prop = new MessageProp(0, false);
+        engine.unwrap(token, received, prop);
+        assertEquals(1 + size, received.position());
+        assertArrayEquals(message, Arrays.copyOfRange(received.array(), 1, 1 + size));
+        assertEquals(conf, prop.getPrivacy());
+        assertFalse(prop.isGapToken() || prop.isUnseqToken() || prop.isDuplicateToken());
+      }
+    }
+
+    // Without privacy, tokens of the same sequence number are the same
+    CfxEngine fresh = new CfxEngine(new byte[32], false, 0, false);
+    Object freshAcceptor = Krb5Contexts.context(false);
+    byte[] message = "message".getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(message.length, false));
+    fresh.wrap(ByteBuffer.wrap(message), token, new MessageProp(0, false));
+    assertArrayEquals(token.array(), (byte[]) wrap.invoke(freshAcceptor, message, 0,
+        message.length, new MessageProp(0, false)));
+  }
+
+  @Test
+  public void tamperedTokensFailWithBadMic() throws Exception {
+    byte[] key = new byte[16];
+    new Random(1).nextBytes(key);
+    CfxEngine initiator = new CfxEngine(key, true, 1000, true);
+    CfxEngine acceptor = new CfxEngine(key, false, 0, true);
+    for (boolean conf : new boolean[] {true, false}) {
+      for (int size : SIZES) {
+        ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(size, conf));
+        initiator.wrap(ByteBuffer.allocate(size), token, new MessageProp(0, conf));
+        byte[] bytes = token.array();
+        bytes[bytes.length / 2 + 4] ^= 1;
+        try {
+          acceptor.unwrap(ByteBuffer.wrap(bytes), ByteBuffer.allocate(bytes.length),
+              new MessageProp(0, false));
+          fail();
+        } catch (GSSException e) {
+          assertEquals(GSSException.BAD_MIC, e.getMajor());
+        }
+      }
+    }
+    // A token of the other direction is refused
+    ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(10, true));
+    initiator.wrap(ByteBuffer.allocate(10), token, new MessageProp(0, true));
+    try {
+      initiator.unwrap((ByteBuffer) token.flip(), ByteBuffer.allocate(100),
+          new MessageProp(0, false));
+      fail();
+    } catch (GSSException e) {
+      assertEquals(GSSException.DEFECTIVE_TOKEN, e.getMajor());
+    }
+  }
+
+  @Test
+  public void rotatedTokensAndReplaysAreUnwrapped() throws Exception {
+    byte[] key = new byte[32];
+    CfxEngine initiator = new CfxEngine(key, true, 7, false);
+    CfxEngine acceptor = new CfxEngine(key, false, 0, false);
+    byte[] message = new byte[50];
+    Arrays.fill(message, (byte) 3);
+    ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(message.length, true));
+    initiator.wrap(ByteBuffer.wrap(message), token, new MessageProp(0, true));
+    byte[] original = token.array().clone();
+
+    // Right rotation of 28 bytes after the header, as sent by Windows
+    byte[] rotated = original.clone();
+    int length = rotated.length - 16;
+    for (int i = 0; i < length; i++) {
+      rotated[16 + (i + 28) % length] = original[16 + i];
+    }
+    rotated[7] = 28;
+    ByteBuffer received = ByteBuffer.allocate(rotated.length);
+    MessageProp prop = new MessageProp(0, false);
+    acceptor.unwrap(ByteBuffer.wrap(rotated), received, prop);
+    assertArrayEquals(message, Arrays.copyOf(received.array(), received.position()));
+    assertFalse(prop.isDuplicateToken());
+
+    received.clear();
+    acceptor.unwrap(ByteBuffer.wrap(original), received, prop);
+    assertArrayEquals(message, Arrays.copyOf(received.array(), received.position()));
+    assertTrue(prop.isDuplicateToken());
+  }
+
+  @Test
+  public void wrapAndUnwrapDoNotAllocate() throws Exception {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    byte[] key = new byte[32];
+    CfxEngine initiator = new CfxEngine(key, true, 0, false);
+    CfxEngine acceptor = new CfxEngine(key, false, 0, false);
+    ByteBuffer message = ByteBuffer.allocate(1000);
+    ByteBuffer token = ByteBuffer.allocate(CfxEngine.wrapSize(1000, true));
+    ByteBuffer received = ByteBuffer.allocate(token.capacity());
+    MessageProp sendProp = new MessageProp(0, true);
+    MessageProp receiveProp = new MessageProp(0, false);
+    long allocated = 0;
+    for (int round = 0; round < 2; round++) {
+      long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+      for (int i = 0; i < 20000; i++) {
+        message.clear();
+        token.clear();
+        received.clear();
+        sendProp.setPrivacy(i % 2 == 0);
+        initiator.wrap(message, token, sendProp);
+        token.flip();
+        acceptor.unwrap(token, received, receiveProp);
+      }
+      allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    }
+    // Less than one byte per message once warm
+    assertTrue(allocated + " bytes", allocated < 20000);
+  }
+
+}
@@ -0,0 +1,194 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.ietf.jgss.GSSContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelPoolTest {
+
+  private final ChannelPool.Endpoint endpoint =
+      new ChannelPool.Endpoint("host@server", "localhost", 4567);
+  private final List<SocketChannel> accepted = new ArrayList<>();
+  private ServerSocketChannel server;
+  private volatile int lifetime = 3600;
+
+  @Before
+  public void listen() throws Exception {
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  @After
+  public void close() throws Exception {
+    for (SocketChannel channel : accepted) {
+      channel.close();
+    }
+    server.close();
+  }
+
+  /**
+   * @return channel over a new connection to the test server, with a fake established context
+   */
+  private GssChannel connect(ChannelPool.Endpoint target) throws IOException {
+    assertEquals(endpoint, target);
+    SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+    synchronized (accepted) {
+      accepted.add(server.accept());
+    }
+    int contextLifetime = lifetime;
+    GSSContext context = (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getLifetime":
+              return contextLifetime;
+            case "dispose":
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    return new GssChannel(socket, context);
+  }
+
+  @Test
+  public void prefilledChannelsAreReused() throws Exception {
+    try (ChannelPool pool = new ChannelPool(this::connect, 2, 4, 60000, 60000, 60000)) {
+      pool.prefill(endpoint);
+      assertEquals(2, pool.counters().get("pool.connected"));
+      GssChannel channel = pool.acquire(endpoint);
+      pool.release(endpoint, channel);
+      // Most recently used first
+      assertSame(channel, pool.acquire(endpoint));
+      pool.acquire(endpoint);
+      assertEquals(3, pool.counters().get("pool.reused"));
+      assertEquals(2, pool.counters().get("pool.connected"));
+      pool.acquire(endpoint);
+      assertEquals(3, pool.counters().get("pool.connected"));
+    }
+  }
+
+  @Test
+  public void deadOrExpiredChannelsAreReplaced() throws Exception {
+    try (ChannelPool pool = new ChannelPool(this::connect, 1, 4, 60000, 60000, 60000)) {
+      pool.prefill(endpoint);
+      GssChannel first = pool.acquire(endpoint);
+      GssChannel second = pool.acquire(endpoint);
+      pool.release(endpoint, first);
+      pool.release(endpoint, second);
+
+      // The server closed the connection of second, and sent a close frame on first
+      accepted.get(1).close();
+      accepted.get(0).write(ByteBuffer.allocate(FrameCodec.HEADER_BYTES));
+      Thread.sleep(100);
+      GssChannel third = pool.acquire(endpoint);
+      assertNotSame(first, third);
+      assertNotSame(second, third);
+      assertEquals(2, pool.counters().get("pool.dead"));
+      assertFalse(first.getChannel().isOpen());
+
+      lifetime = 0;
+      GssChannel expired = pool.acquire(endpoint);
+      pool.release(endpoint, expired);
+      assertNotSame(expired, pool.acquire(endpoint));
+      assertEquals(3, pool.counters().get("pool.dead"));
+    }
+  }
+
+  @Test
+  public void channelsBeyondMaxIdleAreClosed() throws Exception {
+    try (ChannelPool pool = new ChannelPool(this::connect, 0, 1, 60000, 60000, 60000)) {
+      GssChannel first = pool.acquire(endpoint);
+      GssChannel second = pool.acquire(endpoint);
+      pool.release(endpoint, first);
+      pool.release(endpoint, second);
+      assertTrue(first.getChannel().isOpen());
+      assertFalse(second.getChannel().isOpen());
+      second.close();
+      // Closed channels are not pooled
+      GssChannel third = pool.acquire(endpoint);
+      assertSame(first, third);
+      third.close();
+      pool.release(endpoint, third);
+      assertEquals(2, pool.counters().get("pool.connected"));
+      assertEquals(1, pool.counters().get("pool.reused"));
+    }
+  }
+
+  @Test
+  public void idleChannelsAreEvictedAndReplaced() throws Exception {
+    try (ChannelPool pool = new ChannelPool(this::connect, 1, 4, 50, 20, 60000)) {
+      pool.prefill(endpoint);
+      GssChannel channel = pool.acquire(endpoint);
+      pool.release(endpoint, channel);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.counters().get("pool.connected") < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(pool.counters().get("pool.evicted") >= 1);
+      assertFalse(channel.getChannel().isOpen());
+      assertNotSame(channel, pool.acquire(endpoint));
+    }
+  }
+
+  @Test
+  public void idleChannelsAreReplacedBeforeTheirContextExpires() throws Exception {
+    lifetime = 1;
+    try (ChannelPool pool = new ChannelPool(this::connect, 1, 4, 60000, 20, 250)) {
+      pool.prefill(endpoint);
+      GssChannel channel = pool.acquire(endpoint);
+      pool.release(endpoint, channel);
+      // Refreshed between 500 and 750 ms after the handshake
+      Thread.sleep(400);
+      assertEquals(0, pool.counters().get("pool.refreshed"));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.counters().get("pool.refreshed") < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(50);
+      assertFalse(channel.getChannel().isOpen());
+      assertNotSame(channel, pool.acquire(endpoint));
+      assertEquals(0, pool.counters().get("pool.evicted"));
+    }
+  }
+
+  @Test
+  public void channelsInUseAreReplacedOnRelease() throws Exception {
+    lifetime = 1;
+    try (ChannelPool pool = new ChannelPool(this::connect, 1, 4, 60000, 60000, 250)) {
+      pool.prefill(endpoint);
+      Thread.sleep(800);
+      // Due for refresh: still handed out, and replaced in the background
+      GssChannel channel = pool.acquire(endpoint);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.counters().get("pool.refreshed") < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(channel.getChannel().isOpen());
+      GssChannel replacement = pool.acquire(endpoint);
+      assertNotSame(channel, replacement);
+      pool.release(endpoint, channel);
+      assertFalse(channel.getChannel().isOpen());
+      assertEquals(1, pool.counters().get("pool.retired"));
+      pool.release(endpoint, replacement);
+      assertSame(replacement, pool.acquire(endpoint));
+      assertEquals(2, pool.counters().get("pool.connected"));
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+public class CompressionTest {
+
+  private static byte[] json(int i) {
+    return ("{\"host\":\"web-" + i % 10 + ".example.com\",\"metric\":\"requests\",\"count\":" + i
+        + ",\"tags\":[\"prod\",\"eu-west\",\"frontend\"]}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void payloadsRoundTripAgainstThePreviousOnes() throws Exception {
+    Compression sender = new Compression(16, 1 << 20);
+    Compression receiver = new Compression(16, 1 << 20);
+    int first = 0;
+    int last = 0;
+    for (int i = 0; i < 100; i++) {
+      byte[] payload = json(i);
+      byte[] deflated = sender.deflate(payload);
+      assertArrayEquals(payload, receiver.inflate(deflated));
+      if (i == 0) {
+        first = deflated.length;
+      }
+      last = deflated.length;
+    }
+    // Later payloads reuse the strings of the first ones
+    assertTrue(last + " vs " + first, last * 2 < first);
+
+    // Large and incompressible payloads grow the buffers
+    byte[] random = new byte[300000];
+    new Random(1).nextBytes(random);
+    assertArrayEquals(random, receiver.inflate(sender.deflate(random)));
+    byte[] zeros = new byte[200000];
+    assertArrayEquals(zeros, receiver.inflate(sender.deflate(zeros)));
+    sender.end();
+    receiver.end();
+  }
+
+  @Test
+  public void smallPayloadsAreStored() throws Exception {
+    Compression compression = new Compression(16, 1 << 20);
+    byte[] stored = compression.deflate(new byte[] {1, 2, 3});
+    assertArrayEquals(new byte[] {0, 1, 2, 3}, stored);
+    assertArrayEquals(new byte[] {1, 2, 3}, compression.inflate(stored));
+    compression.end();
+  }
+
+  @Test
+  public void bombsAndGarbageAreRejected() throws Exception {
+    Compression sender = new Compression(0, 1 << 20);
+    Compression receiver = new Compression(0, 1000);
+    byte[] bomb = sender.deflate(new byte[100000]);
+    for (byte[] bad : new byte[][] {new byte[0], new byte[] {2, 0}, new byte[] {1, -1, -1, -1},
+        bomb}) {
+      try {
+        new Compression(0, 1000).inflate(bad);
+        fail("Inflated " + bad.length + " bytes");
+      } catch (FrameRejectedException e) {
+        assertEquals("inflate", e.getReason());
+      }
+    }
+    receiver.end();
+    try {
+      receiver.inflate(bomb);
+      fail("Inflated after end");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import org.ietf.jgss.GSSContext;
+import org.junit.Test;
+
+public class DatagramSenderTest {
+
+  @Test
+  public void sessionIdIsDerivedFromTheInitialToken() {
+    byte[] token = "initial token".getBytes();
+    byte[] framed = ("xx" + "initial token").getBytes();
+    long id = DatagramSender.sessionId(token, 0, token.length);
+    assertEquals(id, DatagramSender.sessionId(framed, 2, token.length));
+    assertNotEquals(id, DatagramSender.sessionId(token, 0, token.length - 1));
+  }
+
+  @Test
+  public void oversizedDatagramsAreNotSent() throws Exception {
+    // The fake wrap token is as long as the message
+    GSSContext context = (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getWrapSizeLimit":
+              return args[2];
+            case "wrap":
+              return ((byte[]) args[0]).clone();
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    try (DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress(0));
+        DatagramSender sender = new DatagramSender(context, 42, false,
+            (InetSocketAddress) server.getLocalAddress())) {
+      int max = sender.maxMessageBytes(true);
+      assertEquals(DatagramSender.MAX_DATAGRAM_BYTES - DatagramSender.SESSION_BYTES, max);
+      sender.send(new byte[max], true);
+      try {
+        sender.send(new byte[max + 1], true);
+        fail("Oversized datagram");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("over " + DatagramSender.MAX_DATAGRAM_BYTES));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class FrameCodecTest {
+
+  @Test
+  public void frameRoundTrip() throws Exception {
+    Pipe pipe = Pipe.open();
+    BufferPool pool = new BufferPool(16, 1024, 4096);
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+    byte[] token = "token".getBytes("UTF-8");
+
+    FrameCodec.write(pipe.sink(), header, token);
+    FrameCodec.write(pipe.sink(), header, new byte[0]);
+    pipe.sink().close();
+
+    ByteBuffer frame = FrameCodec.read(pipe.source(), header, 100, pool);
+    assertEquals(token.length, frame.remaining());
+    assertArrayEquals(token, Arrays.copyOf(frame.array(), frame.remaining()));
+    pool.release(frame);
+
+    ByteBuffer close = FrameCodec.read(pipe.source(), header, 100, pool);
+    assertFalse(close.hasRemaining());
+    assertSame(frame, close);
+    assertNull(FrameCodec.read(pipe.source(), header, 100, pool));
+    assertEquals(1, pool.allocated());
+    assertEquals(1, pool.reused());
+  }
+
+  @Test
+  public void oversizedFrameIsRejectedBeforeAllocation() throws Exception {
+    Pipe pipe = Pipe.open();
+    BufferPool pool = new BufferPool(16, 1024, 4096);
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+    FrameCodec.write(pipe.sink(), header, new byte[101]);
+    try {
+      FrameCodec.read(pipe.source(), header, 100, pool);
+      fail();
+    } catch (FrameRejectedException e) {
+      assertEquals("size", e.getReason());
+    }
+    assertEquals(0, pool.allocated());
+  }
+
+  @Test
+  public void decoderReadsPartialFrames() throws Exception {
+    Pipe pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+    FrameCodec.Decoder decoder = new FrameCodec.Decoder(new BufferPool(16, 1024, 4096));
+
+    pipe.sink().write(ByteBuffer.wrap(new byte[] {0, 0}));
+    assertNull(decoder.read(pipe.source(), 100));
+    assertTrue(decoder.inFrame());
+    pipe.sink().write(ByteBuffer.wrap(new byte[] {0, 3, 1, 2}));
+    assertNull(decoder.read(pipe.source(), 100));
+    pipe.sink().write(ByteBuffer.wrap(new byte[] {3}));
+    ByteBuffer frame = decoder.read(pipe.source(), 100);
+    assertEquals(3, frame.remaining());
+    assertEquals(3, frame.get(2));
+    assertFalse(decoder.inFrame());
+
+    pipe.sink().close();
+    try {
+      decoder.read(pipe.source(), 100);
+      fail();
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void multiplexedFramesCarryTheirStream() throws Exception {
+    Pipe pipe = Pipe.open();
+    BufferPool pool = new BufferPool(16, 1024, 4096);
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.MUX_HEADER_BYTES);
+    FrameCodec.write(pipe.sink(), header, 7, new byte[] {1, 2});
+    FrameCodec.write(pipe.sink(), header, 9, new byte[] {3});
+
+    ByteBuffer frame = FrameCodec.read(pipe.source(), header, 100, pool);
+    assertEquals(2, frame.remaining());
+    assertEquals(7, header.getInt(4));
+
+    pipe.source().configureBlocking(false);
+    FrameCodec.Decoder decoder = new FrameCodec.Decoder(pool, FrameCodec.MUX_HEADER_BYTES);
+    frame = decoder.read(pipe.source(), 100);
+    assertEquals(1, frame.remaining());
+    assertEquals(3, frame.get(0));
+    assertEquals(9, decoder.stream());
+  }
+
+  @Test
+  public void deferredFramesAreWrittenTogether() throws Exception {
+    Pipe pipe = Pipe.open();
+    BufferPool pool = new BufferPool(16, 1024, 4096);
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+    byte[] answer = Preface.encode(Preface.EARLY_DATA | Preface.COMPRESS);
+    FrameCodec.write(pipe.sink(), Arrays.asList(answer, new byte[] {1, 2, 3}, new byte[0]));
+    pipe.sink().close();
+
+    ByteBuffer frame = FrameCodec.read(pipe.source(), header, 100, pool);
+    assertEquals(Preface.EARLY_DATA, Preface.answer(frame.array(), 0, frame.remaining(),
+        Preface.EARLY_DATA | Preface.INTEGRITY));
+    assertEquals(3, FrameCodec.read(pipe.source(), header, 100, pool).remaining());
+    assertFalse(FrameCodec.read(pipe.source(), header, 100, pool).hasRemaining());
+    assertNull(FrameCodec.read(pipe.source(), header, 100, pool));
+    try {
+      Preface.answer(new byte[] {1, 2, 3}, 0, 3, Preface.EARLY_DATA);
+      fail();
+    } catch (FrameRejectedException e) {
+      assertEquals("preface", e.getReason());
+    }
+  }
+
+  @Test
+  public void prefaceIsNotAContextToken() {
+    byte[] preface = Preface.encode(Preface.MULTIPLEX);
+    assertEquals(Preface.MULTIPLEX, Preface.decode(preface, 0, preface.length));
+    assertEquals("tag", GssTokens.checkInitialToken(preface));
+    assertEquals(-1, Preface.decode(new byte[8], 0, 8));
+    assertEquals(-1, Preface.decode(new byte[0], 0, 0));
+  }
+
+  @Test
+  public void poolRoundsToSizeClasses() {
+    BufferPool pool = new BufferPool(16, 1024, 4096);
+    ByteBuffer small = pool.acquire(3);
+    assertEquals(16, small.capacity());
+    assertEquals(3, small.limit());
+    ByteBuffer medium = pool.acquire(600);
+    assertEquals(1024, medium.capacity());
+    pool.release(medium);
+    assertSame(medium, pool.acquire(513));
+    ByteBuffer large = pool.acquire(2000);
+    assertEquals(2000, large.capacity());
+    pool.release(large);
+    assertEquals(3, pool.allocated());
+    assertEquals(1, pool.reused());
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class GssTokensTest {
+
+  private static final byte[] KRB5_OID = {
+      0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+  /**
+   * @return initial token with an AP-REQ of apReqLength bytes
+   */
+  private static byte[] initialToken(int apReqLength) {
+    ByteArrayOutputStream inner = new ByteArrayOutputStream();
+    inner.write(KRB5_OID, 0, KRB5_OID.length);
+    inner.write(0x01);
+    inner.write(0x00);
+    inner.write(0x6e);
+    inner.write(new byte[apReqLength - 1], 0, apReqLength - 1);
+    int length = inner.size();
+    ByteArrayOutputStream token = new ByteArrayOutputStream();
+    token.write(0x60);
+    if (length < 0x80) {
+      token.write(length);
+    } else {
+      token.write(0x82);
+      token.write(length >> 8);
+      token.write(length);
+    }
+    token.write(inner.toByteArray(), 0, length);
+    return token.toByteArray();
+  }
+
+  @Test
+  public void testValidTokens() {
+    assertNull(GssTokens.checkInitialToken(initialToken(10)));
+    assertNull(GssTokens.checkInitialToken(initialToken(2000)));
+  }
+
+  @Test
+  public void testInvalidTokens() {
+    assertEquals("tag", GssTokens.checkInitialToken(new byte[0]));
+    assertEquals("tag", GssTokens.checkInitialToken("GET / HTTP/1.1".getBytes()));
+
+    byte[] truncated = initialToken(2000);
+    assertEquals("length", GssTokens.checkInitialToken(Arrays.copyOf(truncated, 1000)));
+
+    byte[] token = initialToken(10);
+    token[6] = 0x49;
+    assertEquals("mechanism", GssTokens.checkInitialToken(token));
+
+    token = initialToken(10);
+    token[13] = 0x02;
+    assertEquals("tokenId", GssTokens.checkInitialToken(token));
+
+    token = initialToken(10);
+    token[15] = 0x30;
+    assertEquals("apReq", GssTokens.checkInitialToken(token));
+  }
+
+  @Test
+  public void testFrameLength() throws FrameRejectedException {
+    GssTokens.checkFrameLength(0, 10);
+    GssTokens.checkFrameLength(10, 10);
+    for (int length : new int[]{-1, 11, Integer.MAX_VALUE}) {
+      try {
+        GssTokens.checkFrameLength(length, 10);
+        fail();
+      } catch (FrameRejectedException e) {
+        assertEquals("size", e.getReason());
+      }
+    }
+  }
+
+}
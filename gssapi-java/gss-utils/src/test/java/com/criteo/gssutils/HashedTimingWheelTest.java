@@ -0,0 +1,72 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HashedTimingWheelTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testExpiryOrderAndRounds() {
+    HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 8);
+    // Ticks are counted from the creation of the wheel
+    long start = System.nanoTime();
+    List<Integer> expired = new ArrayList<>();
+    wheel.schedule(() -> expired.add(1), start + 5 * MILLI);
+    wheel.schedule(() -> expired.add(2), start + 25 * MILLI);
+    // More than one turn of the wheel (80 ms), same bucket as the 25 ms timeout
+    wheel.schedule(() -> expired.add(3), start + 185 * MILLI);
+    wheel.schedule(() -> expired.add(4), start + 30 * MILLI).cancel();
+
+    wheel.advance(start + 40 * MILLI);
+    assertEquals(Arrays.asList(1, 2), expired);
+    wheel.advance(start + 180 * MILLI);
+    assertEquals(Arrays.asList(1, 2), expired);
+    assertEquals(1, wheel.advance(start + 200 * MILLI));
+    assertEquals(Arrays.asList(1, 2, 3), expired);
+  }
+
+  @Test
+  public void testPastDeadlineAndReschedule() {
+    HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 8);
+    long start = System.nanoTime();
+    wheel.advance(start + 105 * MILLI);
+    List<Long> runs = new ArrayList<>();
+    wheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runs.add(start);
+        if (runs.size() < 3) {
+          wheel.schedule(this, start + 100 * MILLI + runs.size() * 45 * MILLI);
+        }
+      }
+    }, start);
+
+    // Past deadline: next tick
+    assertEquals(1, wheel.advance(start + 115 * MILLI));
+    assertEquals(0, wheel.advance(start + 145 * MILLI));
+    assertEquals(1, wheel.advance(start + 155 * MILLI));
+    assertEquals(1, wheel.advance(start + 305 * MILLI));
+    assertEquals(3, runs.size());
+  }
+
+  @Test
+  public void testTicker() throws InterruptedException {
+    HashedTimingWheel wheel = new HashedTimingWheel(5, TimeUnit.MILLISECONDS, 16).start("ticker");
+    CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      wheel.schedule(done::countDown, i, TimeUnit.MILLISECONDS);
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    wheel.stop();
+  }
+
+}
@@ -0,0 +1,20 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.PrivilegedAction;
+import javax.security.auth.Subject;
+import org.junit.Test;
+
+public class JaasTest {
+
+  @Test
+  public void currentSubjectIsTheOneOfDoAs() {
+    Subject subject = new Subject();
+    assertSame(subject,
+        Subject.doAs(subject, (PrivilegedAction<Subject>) Jaas::currentSubject));
+    assertNull(Jaas.currentSubject());
+  }
+
+}
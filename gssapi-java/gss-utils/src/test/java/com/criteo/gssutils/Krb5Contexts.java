@@ -0,0 +1,66 @@
+package com.criteo.gssutils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Established krb5 contexts of the JDK mechanism around a fixed session key, built with
+ * reflection on the JDK internals: a KDC is not needed. Java 9 and later need
+ * {@code --add-opens java.security.jgss/sun.security.jgss.krb5=ALL-UNNAMED
+ * --add-opens java.security.jgss/sun.security.jgss=ALL-UNNAMED
+ * --add-opens java.security.jgss/sun.security.krb5=ALL-UNNAMED
+ * --add-opens jdk.unsupported/sun.misc=ALL-UNNAMED}, passed to the tests by the jdk9 profile.
+ */
+class Krb5Contexts {
+
+  private static final String CONTEXT = "sun.security.jgss.krb5.Krb5Context";
+  private static final int AES256_CTS_HMAC_SHA1_96 = 18;
+
+  /**
+   * @return established krb5 context with an all-zero AES-256 session key
+   */
+  static Object context(boolean initiator) throws Exception {
+    Class<?> type = Class.forName(CONTEXT);
+    Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+    unsafeField.setAccessible(true);
+    Object unsafe = unsafeField.get(null);
+    Object context = unsafe.getClass().getMethod("allocateInstance", Class.class)
+        .invoke(unsafe, type);
+    set(context, "state", get(type, "STATE_DONE"));
+    set(context, "initiator", initiator);
+    set(context, "confState", true);
+    set(context, "integState", true);
+    set(context, "mySeqNumberLock", new Object());
+    set(context, "peerSeqNumberLock", new Object());
+    set(context, "peerTokenTracker", Class.forName("sun.security.jgss.TokenTracker")
+        .getConstructor(int.class).newInstance(0));
+    Class<?> keyType = Class.forName("sun.security.krb5.EncryptionKey");
+    Constructor<?> keyConstructor =
+        keyType.getConstructor(byte[].class, int.class, Integer.class);
+    Object key = keyConstructor.newInstance(new byte[32], AES256_CTS_HMAC_SHA1_96, null);
+    Method setKey = type.getDeclaredMethod("setKey", int.class, keyType);
+    setKey.setAccessible(true);
+    setKey.invoke(context, get(type, "SESSION_KEY"), key);
+    return context;
+  }
+
+  static Method method(String name, Class<?>... parameters) throws Exception {
+    Method method = Class.forName(CONTEXT).getDeclaredMethod(name, parameters);
+    method.setAccessible(true);
+    return method;
+  }
+
+  private static Object get(Class<?> type, String name) throws Exception {
+    Field field = type.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(null);
+  }
+
+  private static void set(Object object, String name, Object value) throws Exception {
+    Field field = object.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(object, value);
+  }
+
+}
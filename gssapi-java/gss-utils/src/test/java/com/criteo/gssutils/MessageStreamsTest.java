@@ -0,0 +1,137 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.ietf.jgss.GSSContext;
+import org.junit.Test;
+
+public class MessageStreamsTest {
+
+  /**
+   * @return chunks sent for payload
+   */
+  private static List<byte[]> send(byte[] payload, int chunkBytes) throws Exception {
+    QueueChannel channel = new QueueChannel();
+    long sent = MessageStreams.send(channel, Channels.newChannel(new ByteArrayInputStream(payload)),
+        true, chunkBytes);
+    assertEquals(payload.length, sent);
+    List<byte[]> chunks = new ArrayList<>();
+    channel.sent.drainTo(chunks);
+    return chunks;
+  }
+
+  private static byte[] receive(List<byte[]> chunks) throws Exception {
+    QueueChannel channel = new QueueChannel();
+    channel.replies.addAll(chunks);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long received = MessageStreams.receive(channel, out);
+    assertEquals(out.size(), received);
+    assertTrue(channel.replies.isEmpty());
+    return out.toByteArray();
+  }
+
+  @Test
+  public void payloadsAreSentInChunks() throws Exception {
+    byte[] payload = new byte[10500];
+    new Random(1).nextBytes(payload);
+    List<byte[]> chunks = send(payload, 1000);
+    assertEquals(11, chunks.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(1001, chunks.get(i).length);
+      assertEquals(1, chunks.get(i)[0]);
+    }
+    assertEquals(501, chunks.get(10).length);
+    assertEquals(0, chunks.get(10)[0]);
+    assertArrayEquals(payload, receive(chunks));
+
+    // A payload ending on a chunk boundary ends with an empty chunk
+    payload = new byte[2000];
+    chunks = send(payload, 1000);
+    assertEquals(3, chunks.size());
+    assertArrayEquals(new byte[] {0}, chunks.get(2));
+    assertArrayEquals(payload, receive(chunks));
+
+    chunks = send(new byte[0], 1000);
+    assertEquals(1, chunks.size());
+    assertArrayEquals(new byte[0], receive(chunks));
+  }
+
+  @Test
+  public void chunksAreSizedWithTheWrapSizeLimit() throws Exception {
+    GSSContext context = (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          assertEquals("getWrapSizeLimit", method.getName());
+          return (Integer) args[2] - ((Boolean) args[1] ? 60 : 28);
+        });
+    assertEquals(MessageStreams.CHUNK_BYTES - 61, MessageStreams.chunkBytes(context, true));
+    assertEquals(MessageStreams.CHUNK_BYTES - 29, MessageStreams.chunkBytes(context, false));
+  }
+
+  @Test
+  public void readFailuresAbortTheStream() throws Exception {
+    InputStream failing = new InputStream() {
+      private int count;
+
+      @Override
+      public int read() throws IOException {
+        if (++count > 1500) {
+          throw new IOException("disk failure");
+        }
+        return 7;
+      }
+    };
+    QueueChannel channel = new QueueChannel();
+    try {
+      MessageStreams.send(channel, Channels.newChannel(failing), true, 1000);
+      fail("Source failure");
+    } catch (IOException e) {
+      assertEquals("disk failure", e.getMessage());
+    }
+    List<byte[]> chunks = new ArrayList<>();
+    channel.sent.drainTo(chunks);
+    assertEquals(2, chunks.size());
+    assertArrayEquals(new byte[] {2}, chunks.get(1));
+    try {
+      receive(chunks);
+      fail("Aborted stream");
+    } catch (IOException e) {
+      assertFalse(e instanceof EOFException);
+      assertTrue(e.getMessage().contains("aborted"));
+    }
+  }
+
+  @Test
+  public void receiveRejectsMessagesWhichAreNotChunks() throws Exception {
+    try {
+      receive(Collections.singletonList(new byte[] {7, 1}));
+      fail("Not a chunk");
+    } catch (FrameRejectedException e) {
+      assertEquals("chunk", e.getReason());
+    }
+    QueueChannel channel = new QueueChannel();
+    channel.replies.add(new byte[] {1, 2, 3});
+    channel.close();
+    try {
+      MessageStreams.receive(channel, new ByteArrayOutputStream());
+      fail("Closed before the last chunk");
+    } catch (EOFException e) {
+      assertTrue(e.getMessage().contains("2 bytes"));
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PipelinedChannelTest {
+
+  @Test
+  public void requestIdsRoundTrip() throws Exception {
+    byte[] payload = RequestIds.prefix(0x01020304, "abc".getBytes("UTF-8"));
+    assertEquals(RequestIds.BYTES + 3, payload.length);
+    assertEquals(0x01020304, RequestIds.id(payload));
+    assertArrayEquals("abc".getBytes("UTF-8"), RequestIds.strip(payload));
+    try {
+      RequestIds.id(new byte[3]);
+      fail("Payload shorter than a request id");
+    } catch (FrameRejectedException e) {
+      assertEquals("requestId", e.getReason());
+    }
+  }
+
+  @Test
+  public void repliesCompleteTheirRequestInAnyOrder() throws Exception {
+    QueueChannel channel = new QueueChannel();
+    PipelinedChannel pipeline = new PipelinedChannel(channel, 8);
+    List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      replies.add(pipeline.submit(new byte[] {(byte) i}));
+    }
+    assertEquals(3, pipeline.inFlight());
+
+    // Requests go out in order, replies come back reversed
+    List<byte[]> requests = new ArrayList<>();
+    channel.sent.drainTo(requests);
+    assertEquals(3, requests.size());
+    for (int i = 2; i >= 0; i--) {
+      byte[] request = requests.get(i);
+      assertEquals(i, RequestIds.id(request));
+      byte[] message = RequestIds.strip(request);
+      channel.replies.add(RequestIds.prefix(i, new byte[] {(byte) (message[0] + 10)}));
+      assertArrayEquals(new byte[] {(byte) (i + 10)}, replies.get(i).get(1, TimeUnit.SECONDS));
+      assertEquals(i == 0, replies.get(0).isDone());
+    }
+    assertEquals(0, pipeline.inFlight());
+    pipeline.close();
+  }
+
+  @Test
+  public void submitBlocksBeyondMaxInFlight() throws Exception {
+    QueueChannel channel = new QueueChannel();
+    PipelinedChannel pipeline = new PipelinedChannel(channel, 1);
+    CompletableFuture<byte[]> first = pipeline.submit(new byte[1]);
+    CompletableFuture<CompletableFuture<byte[]>> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return pipeline.submit(new byte[1]);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(second.isDone());
+    assertEquals(1, channel.sent.size());
+
+    channel.replies.add(RequestIds.prefix(0, new byte[0]));
+    first.get(1, TimeUnit.SECONDS);
+    CompletableFuture<byte[]> reply = second.get(1, TimeUnit.SECONDS);
+    assertEquals(2, channel.sent.size());
+    assertFalse(reply.isDone());
+    pipeline.close();
+  }
+
+  @Test
+  public void pendingRequestsFailWhenTheChannelCloses() throws Exception {
+    QueueChannel channel = new QueueChannel();
+    PipelinedChannel pipeline = new PipelinedChannel(channel, 4);
+    CompletableFuture<byte[]> reply = pipeline.submit(new byte[1]);
+    pipeline.close();
+    try {
+      reply.get(1, TimeUnit.SECONDS);
+      fail("Reply after close");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof EOFException);
+    }
+    try {
+      pipeline.submit(new byte[1]);
+      fail("Submit after close");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof EOFException);
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import org.junit.Test;
+
+public class ProtectionTest {
+
+  /**
+   * Context whose wrap tokens are 0x05 followed by the message, and MIC the hash of the message.
+   */
+  private static GSSContext context() {
+    return (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          byte[] b = (byte[]) args[0];
+          int o = (Integer) args[1];
+          int l = (Integer) args[2];
+          switch (method.getName()) {
+            case "wrap":
+              byte[] token = new byte[l + 1];
+              token[0] = 5;
+              System.arraycopy(b, o, token, 1, l);
+              return token;
+            case "unwrap":
+              ((MessageProp) args[3]).setPrivacy(true);
+              return Arrays.copyOfRange(b, o + 1, o + l);
+            case "getMIC":
+              return mic(b, o, l);
+            case "verifyMIC":
+              byte[] m = (byte[]) args[3];
+              if (!Arrays.equals(Arrays.copyOfRange(b, o, o + l),
+                  mic(m, (Integer) args[4], (Integer) args[5]))) {
+                throw new GSSException(GSSException.BAD_MIC);
+              }
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static byte[] mic(byte[] b, int o, int l) {
+    return Integer.toString(Arrays.hashCode(Arrays.copyOfRange(b, o, o + l))).getBytes();
+  }
+
+  @Test
+  public void integrityOnlyMessagesAreSentInTheClearWithTheirMic() throws Exception {
+    GSSContext context = context();
+    byte[] message = "public data".getBytes("UTF-8");
+    byte[] token = Protection.protect(context, message, new MessageProp(0, false), true);
+    assertEquals(0, token[0]);
+    MessageProp prop = new MessageProp(0, true);
+    assertArrayEquals(message, Protection.unprotect(context, token, 0, token.length, prop, true));
+    assertFalse(prop.getPrivacy());
+
+    // Confidential messages, and all of them without Preface.INTEGRITY, are wrapped
+    for (boolean mic : new boolean[] {true, false}) {
+      for (boolean confidential : new boolean[] {true, mic}) {
+        token = Protection.protect(context, message, new MessageProp(0, confidential), mic);
+        assertEquals(5, token[0]);
+        prop = new MessageProp(0, false);
+        assertArrayEquals(message,
+            Protection.unprotect(context, token, 0, token.length, prop, mic));
+        assertTrue(prop.getPrivacy());
+      }
+    }
+  }
+
+  @Test
+  public void tamperedMessagesAreRefused() throws Exception {
+    GSSContext context = context();
+    byte[] token = Protection.protect(context, new byte[10], new MessageProp(0, false), true);
+    byte[] tampered = token.clone();
+    tampered[tampered.length - 1] = 1;
+    try {
+      Protection.unprotect(context, tampered, 0, tampered.length, new MessageProp(0, false), true);
+      fail("Tampered message accepted");
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+    byte[] truncated = Arrays.copyOf(token, 6);
+    try {
+      Protection.unprotect(context, truncated, 0, truncated.length, new MessageProp(0, false),
+          true);
+      fail("Truncated MIC accepted");
+    } catch (FrameRejectedException e) {
+      assertEquals("mic", e.getReason());
+    }
+  }
+
+}
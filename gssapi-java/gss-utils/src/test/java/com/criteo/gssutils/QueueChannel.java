@@ -0,0 +1,43 @@
+package com.criteo.gssutils;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Channel whose messages are not wrapped: tests play the server with the sent payloads.
+ */
+class QueueChannel implements MessageChannel {
+
+  private static final byte[] END = new byte[0];
+
+  final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+  final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+
+  @Override
+  public GSSContext getContext() {
+    return null;
+  }
+
+  @Override
+  public void send(byte[] message, boolean confidential) {
+    sent.add(message);
+  }
+
+  @Override
+  public byte[] receive(MessageProp prop) throws IOException {
+    try {
+      byte[] reply = replies.take();
+      return reply == END ? null : reply;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    replies.add(END);
+  }
+}
@@ -0,0 +1,180 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import org.junit.Test;
+
+public class ResumptionTest {
+
+  /**
+   * @return ticket issued by resumption for a Kerberos context of lifetime seconds, whose fake
+   * wrap tokens are the messages
+   */
+  private static ResumptionTicket issue(Resumption resumption, int lifetime) throws Exception {
+    GSSName client =
+        GSSManager.getInstance().createName("client@EXAMPLE.COM", GSSName.NT_USER_NAME);
+    GSSContext kerberos = (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getLifetime":
+              return lifetime;
+            case "getSrcName":
+              return client;
+            case "wrap":
+              assertTrue(((MessageProp) args[3]).getPrivacy());
+              return ((byte[]) args[0]).clone();
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    return ResumptionTicket.decode(resumption.issue(kerberos));
+  }
+
+  /**
+   * @return initiator and acceptor contexts of a connection resumed with ticket
+   */
+  private static GSSContext[] resume(Resumption resumption, ResumptionTicket ticket)
+      throws GSSException {
+    GSSContext initiator = ticket.newContext();
+    GSSContext acceptor = resumption.newContext();
+    byte[] token = initiator.initSecContext(new byte[0], 0, 0);
+    assertTrue(Resumption.isToken(token, 0, token.length));
+    assertEquals("tag", GssTokens.checkInitialToken(token));
+    assertEquals(-1, Preface.decode(token, 0, token.length));
+    byte[] answer = acceptor.acceptSecContext(token, 0, token.length);
+    assertTrue(acceptor.isEstablished());
+    assertFalse(initiator.isEstablished());
+    assertNull(initiator.initSecContext(answer, 0, answer.length));
+    assertTrue(initiator.isEstablished());
+    return new GSSContext[] {initiator, acceptor};
+  }
+
+  @Test
+  public void resumedContextsProtectMessages() throws Exception {
+    Resumption resumption = new Resumption(60000);
+    ResumptionTicket ticket = issue(resumption, 3600);
+    assertTrue(ticket.expiresMillis() <= System.currentTimeMillis() + 60000);
+    GSSContext[] contexts = resume(resumption, ticket);
+    GSSContext client = contexts[0];
+    GSSContext server = contexts[1];
+    assertEquals("client@EXAMPLE.COM", server.getSrcName().toString());
+    assertTrue(server.getLifetime() > 50);
+
+    byte[] message = "metric.cpu 0.5".getBytes("UTF-8");
+    for (boolean confidential : new boolean[] {true, false}) {
+      MessageProp prop = new MessageProp(0, false);
+      byte[] token = client.wrap(message, 0, message.length, new MessageProp(0, confidential));
+      assertArrayEquals(message, server.unwrap(token, 0, token.length, prop));
+      assertEquals(confidential, prop.getPrivacy());
+      token = server.wrap(message, 0, message.length, new MessageProp(0, confidential));
+      assertArrayEquals(message, client.unwrap(token, 0, token.length, prop));
+    }
+    // Protection with Preface.INTEGRITY uses getMIC and verifyMIC
+    MessageProp prop = new MessageProp(0, false);
+    byte[] token = Protection.protect(client, message, prop, true);
+    assertArrayEquals(message, Protection.unprotect(server, token, 0, token.length, prop, true));
+
+    token = client.wrap(message, 0, message.length, new MessageProp(0, true));
+    token[token.length - 1] ^= 1;
+    try {
+      server.unwrap(token, 0, token.length, prop);
+      fail("Tampered token");
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+  }
+
+  @Test
+  public void replayedAndReorderedTokensAreReported() throws Exception {
+    Resumption resumption = new Resumption(60000);
+    GSSContext[] contexts = resume(resumption, issue(resumption, 3600));
+    byte[] message = new byte[] {1, 2, 3};
+    byte[] first = contexts[0].wrap(message, 0, 3, new MessageProp(0, true));
+    byte[] second = contexts[0].wrap(message, 0, 3, new MessageProp(0, true));
+
+    MessageProp prop = new MessageProp(0, false);
+    contexts[1].unwrap(second, 0, second.length, prop);
+    assertTrue(prop.isGapToken());
+    contexts[1].unwrap(first, 0, first.length, prop);
+    assertTrue(prop.isUnseqToken());
+    assertFalse(prop.isDuplicateToken());
+    contexts[1].unwrap(first, 0, first.length, prop);
+    assertTrue(prop.isDuplicateToken());
+
+    // Keys are fresh on every connection resumed with the same ticket
+    GSSContext[] other = resume(resumption, issue(resumption, 3600));
+    try {
+      other[1].unwrap(second, 0, second.length, prop);
+      fail("Token of another connection");
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+  }
+
+  @Test
+  public void expiredOrForgedTicketsAreRefused() throws Exception {
+    Resumption resumption = new Resumption(60000);
+    // The ticket expires with the Kerberos context
+    ResumptionTicket expired = issue(resumption, 0);
+    assertTrue(expired.isExpired());
+    byte[] token = expired.newContext().initSecContext(new byte[0], 0, 0);
+    try {
+      resumption.newContext().acceptSecContext(token, 0, token.length);
+      fail("Expired ticket");
+    } catch (GSSException e) {
+      assertEquals(GSSException.CREDENTIALS_EXPIRED, e.getMajor());
+    }
+
+    token = issue(resumption, 3600).newContext().initSecContext(new byte[0], 0, 0);
+    token[token.length - 20] ^= 1;
+    try {
+      resumption.newContext().acceptSecContext(token, 0, token.length);
+      fail("Forged ticket");
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+
+    // Tickets of another server (or of a restarted one) are refused
+    token = issue(new Resumption(60000), 3600).newContext().initSecContext(new byte[0], 0, 0);
+    try {
+      resumption.newContext().acceptSecContext(token, 0, token.length);
+      fail("Ticket of another server");
+    } catch (GSSException e) {
+      assertEquals(GSSException.CREDENTIALS_EXPIRED, e.getMajor());
+    }
+  }
+
+  @Test
+  public void ticketsAreSavedForTheNextRun() throws Exception {
+    Resumption resumption = new Resumption(60000);
+    ResumptionTicket ticket = issue(resumption, 3600);
+    Path dir = Files.createTempDirectory("gss");
+    Path file = dir.resolve("ticket");
+    try {
+      assertNull(ResumptionTicket.load(file));
+      ticket.save(file);
+      ticket.save(file);
+      ResumptionTicket loaded = ResumptionTicket.load(file);
+      assertEquals(ticket.expiresMillis(), loaded.expiresMillis());
+      resume(resumption, loaded);
+      assertEquals(1, dir.toFile().list().length);
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(dir);
+    }
+  }
+
+}
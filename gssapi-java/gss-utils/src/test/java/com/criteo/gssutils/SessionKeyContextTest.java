@@ -0,0 +1,114 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+import org.junit.Test;
+
+public class SessionKeyContextTest {
+
+  private final boolean[] disposed = new boolean[2];
+
+  /**
+   * @return fake established Kerberos context of the given side with session key
+   */
+  private GSSContext kerberos(boolean initiator, byte[] sessionKey) {
+    return (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {ExtendedGSSContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "isInitiator":
+              return initiator;
+            case "getLifetime":
+              return 3600;
+            case "inquireSecContext":
+              assertEquals(InquireType.KRB5_GET_SESSION_KEY, args[0]);
+              return new SecretKeySpec(sessionKey, "AES");
+            case "dispose":
+              disposed[initiator ? 0 : 1] = true;
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  @Test
+  public void bothSidesDeriveTheKeysOfEachDirection() throws Exception {
+    byte[] sessionKey = new byte[32];
+    Arrays.fill(sessionKey, (byte) 7);
+    GSSContext client = SessionKeyContext.of(kerberos(true, sessionKey), 42);
+    GSSContext server = SessionKeyContext.of(kerberos(false, sessionKey), 42);
+    assertTrue(client.isEstablished());
+    assertEquals(3600, server.getLifetime());
+
+    byte[] message = new byte[64 * 1024];
+    Arrays.fill(message, (byte) 1);
+    for (boolean confidential : new boolean[] {true, false}) {
+      byte[] token = client.wrap(message, 0, message.length, new MessageProp(0, confidential));
+      assertEquals(confidential, !Arrays.equals(message, Arrays.copyOfRange(token,
+          token.length - 16 - message.length, token.length - 16)));
+      MessageProp prop = new MessageProp(0, false);
+      assertArrayEquals(message, server.unwrap(token, 0, token.length, prop));
+      assertEquals(confidential, prop.getPrivacy());
+      byte[] reply = server.wrap(message, 0, 10, new MessageProp(0, confidential));
+      assertArrayEquals(Arrays.copyOf(message, 10),
+          client.unwrap(reply, 0, reply.length, new MessageProp(0, false)));
+    }
+    // A token of one direction does not unwrap in the other one
+    byte[] token = client.wrap(message, 0, 10, new MessageProp(0, true));
+    try {
+      client.unwrap(token, 0, token.length, new MessageProp(0, false));
+      fail();
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+
+    server.dispose();
+    assertFalse(server.isEstablished());
+    assertTrue(disposed[1]);
+    assertFalse(disposed[0]);
+  }
+
+  @Test
+  public void keysDependOnTheSession() throws Exception {
+    byte[] sessionKey = new byte[16];
+    GSSContext client = SessionKeyContext.of(kerberos(true, sessionKey), 1);
+    GSSContext server = SessionKeyContext.of(kerberos(false, sessionKey), 2);
+    byte[] token = client.wrap(new byte[10], 0, 10, new MessageProp(0, true));
+    try {
+      server.unwrap(token, 0, token.length, new MessageProp(0, false));
+      fail();
+    } catch (GSSException e) {
+      assertEquals(GSSException.BAD_MIC, e.getMajor());
+    }
+  }
+
+  @Test
+  public void contextsWithoutSessionKeyAreKept() throws Exception {
+    GSSContext resumed = new Resumption(60000).newContext();
+    assertSame(resumed, SessionKeyContext.of(resumed, 0));
+    GSSContext other = (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(),
+        new Class<?>[] {GSSContext.class}, (proxy, method, args) -> {
+          throw new UnsupportedOperationException(method.getName());
+        });
+    try {
+      SessionKeyContext.of(other, 0);
+      fail();
+    } catch (GSSException e) {
+      assertEquals(GSSException.UNAVAILABLE, e.getMajor());
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class StageTest {
+
+  @Test
+  public void testBoundedQueue() {
+    BoundedQueue<Integer> queue = new BoundedQueue<>(3);
+    assertEquals(4, queue.capacity());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(4, queue.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Integer.valueOf(i), queue.poll());
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void testOrderPerKey() throws InterruptedException {
+    int keys = 8;
+    int tasksPerKey = 10000;
+    List<List<Integer>> received = new ArrayList<>();
+    for (int i = 0; i < keys; i++) {
+      received.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+    Stage<int[]> second = new Stage<int[]>("second", 3, 16, task -> {
+      received.get(task[0]).add(task[1]);
+      done.countDown();
+    }).start();
+    Stage<int[]> first = new Stage<int[]>("first", 2, 16, task -> second.submit(task[0], task))
+        .start();
+
+    for (int i = 0; i < tasksPerKey; i++) {
+      for (int key = 0; key < keys; key++) {
+        first.submit(key, new int[]{key, i});
+      }
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    for (List<Integer> values : received) {
+      assertEquals(tasksPerKey, values.size());
+      for (int i = 0; i < tasksPerKey; i++) {
+        assertEquals(Integer.valueOf(i), values.get(i));
+      }
+    }
+    assertEquals(keys * tasksPerKey, second.processed());
+    first.shutdown();
+    second.shutdown();
+  }
+
+  @Test
+  public void trySubmitCallsBackOnceThereIsRoom() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch room = new CountDownLatch(1);
+    Stage<Integer> stage = new Stage<Integer>("slow", 1, 2, task -> {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }).start();
+    int refused = 0;
+    for (int i = 0; i < 4; i++) {
+      if (!stage.trySubmit(0, i, room::countDown)) {
+        refused++;
+      }
+    }
+    // One task in the handler at most, two in the queue
+    assertTrue(refused >= 1);
+    assertEquals(1, room.getCount());
+    blocked.countDown();
+    assertTrue(room.await(10, TimeUnit.SECONDS));
+    assertTrue(stage.trySubmit(0, 5, () -> { }));
+    stage.shutdown();
+  }
+
+}
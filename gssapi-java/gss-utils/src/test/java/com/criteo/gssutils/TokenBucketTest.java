@@ -0,0 +1,62 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testBurstThenRate() {
+    long now = System.nanoTime();
+    TokenBucket bucket = new TokenBucket(10, 3, now);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire(now));
+    }
+    assertFalse(bucket.tryAcquire(now));
+
+    // One permit every 100 ms
+    assertFalse(bucket.tryAcquire(now + 99 * MILLI));
+    assertTrue(bucket.tryAcquire(now + 100 * MILLI));
+    assertFalse(bucket.tryAcquire(now + 100 * MILLI));
+
+    // Never more than burst permits
+    now += 10000 * MILLI;
+    assertTrue(bucket.isFull(now));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire(now));
+    }
+    assertFalse(bucket.tryAcquire(now));
+  }
+
+  @Test
+  public void testBucketPerKey() {
+    long now = System.nanoTime();
+    TokenBuckets<String> buckets = new TokenBuckets<>(1, 1, 2);
+    assertTrue(buckets.tryAcquire("a", now));
+    assertFalse(buckets.tryAcquire("a", now));
+    assertTrue(buckets.tryAcquire("b", now));
+    assertEquals(2, buckets.size());
+
+    // Refilled buckets are dropped to make room for new keys
+    now += 2000 * MILLI;
+    assertTrue(buckets.tryAcquire("c", now));
+    assertEquals(1, buckets.size());
+    assertFalse(buckets.tryAcquire("c", now));
+  }
+
+  @Test
+  public void testDisabled() {
+    TokenBuckets<String> buckets = new TokenBuckets<>(0, 1, 10);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(buckets.tryAcquire("a"));
+    }
+    assertEquals(0, buckets.size());
+  }
+
+}
@@ -0,0 +1,51 @@
+package com.criteo.gssutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import org.junit.Test;
+
+public class UnixSocketsTest {
+
+  @Test
+  public void framesGoThroughUnixDomainSockets() throws Exception {
+    assumeTrue(UnixSockets.isSupported());
+    File dir = Files.createTempDirectory("gss").toFile();
+    String path = new File(dir, "server.sock").getPath();
+    // A socket file left by a previous server is replaced
+    UnixSockets.listen(path, 1).close();
+    try (ServerSocketChannel server = UnixSockets.listen(path, 1);
+        SocketChannel client = UnixSockets.connect(path);
+        SocketChannel accepted = server.accept()) {
+      ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+      FrameCodec.write(client, header, new byte[] {1, 2, 3});
+      ByteBuffer frame = FrameCodec.read(accepted, header, 100, new BufferPool(16, 1024, 4096));
+      assertEquals(3, frame.remaining());
+      assertEquals(InetAddress.getLoopbackAddress(), UnixSockets.inetAddress(accepted));
+    } finally {
+      new File(path).delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void inetAddressOfTcpChannels() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+          SocketChannel accepted = server.accept()) {
+        assertTrue(UnixSockets.inetAddress(accepted).isLoopbackAddress());
+        assertEquals(InetAddress.getLoopbackAddress(), UnixSockets.inetAddress(client));
+      }
+    }
+  }
+
+}